@@ -0,0 +1,56 @@
+package cosc202.andie;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * <p>
+ * Runs the ANDIE benchmarks and writes the results as JSON.
+ * </p>
+ *
+ * <p>
+ * Results go to {@code benchmarks/results/<time>.json} by default, or to the
+ * file given as the first argument. Any further arguments are JMH command line
+ * options, for example {@code -p megapixels=1} to only run the smallest images
+ * or a regular expression to pick out benchmarks.
+ * Runs can be compared with any JMH result viewer, or by reading the
+ * {@code primaryMetric} of each entry.
+ * </p>
+ *
+ * @version 1.0
+ */
+public class BenchmarkMain {
+
+    /**
+     * <p>
+     * Run the benchmarks.
+     * </p>
+     *
+     * @param args The results file, then any JMH options.
+     * @throws Exception If the benchmarks cannot be run.
+     */
+    public static void main(String[] args) throws Exception {
+        String results;
+        String[] jmhArgs;
+        if (args.length > 0 && args[0].endsWith(".json")) {
+            results = args[0];
+            jmhArgs = java.util.Arrays.copyOfRange(args, 1, args.length);
+        } else {
+            results = "benchmarks/results/" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json";
+            jmhArgs = args;
+        }
+        new File(results).getAbsoluteFile().getParentFile().mkdirs();
+
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(jmhArgs))
+                .resultFormat(ResultFormatType.JSON)
+                .result(results)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,89 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>
+ * JMH benchmarks of replaying the operations of an {@link EditableImage}.
+ * </p>
+ *
+ * <p>
+ * Measures {@link EditableImage#refresh()} with 1, 10 and 100 operations on the
+ * stack, over synthetic images of 1, 12 and 50 megapixels. The stack cycles
+ * through a mix of colour, filter and transform operations.
+ * Checkpoints are switched off with a budget of 0, so every refresh replays the
+ * whole stack from the original.
+ * </p>
+ *
+ * <p>
+ * Opened images are always converted to a packed format, so unlike
+ * {@link ImageOperationBenchmark} there is no image type parameter.
+ * </p>
+ *
+ * @see BenchmarkMain
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g", "-Djava.awt.headless=true", "-Dandie.checkpointBudget=0" })
+public class EditableImageBenchmark {
+
+    /** The number of operations on the stack. */
+    @Param({ "1", "10", "100" })
+    public int depth;
+
+    /** The size of the image, in megapixels. */
+    @Param({ "1", "12", "50" })
+    public int megapixels;
+
+    /** The image being refreshed. */
+    private EditableImage image;
+
+    /** The file the synthetic image was written to. */
+    private File file;
+
+    /**
+     * <p>
+     * Write a synthetic image to a file, open it, and fill its stack.
+     * </p>
+     *
+     * @throws Exception If the image cannot be written or opened.
+     */
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        file = File.createTempFile("andie-bench", ".png");
+        ImageIO.write(ImageOperationBenchmark.syntheticImage(megapixels, BufferedImage.TYPE_INT_RGB), "png", file);
+        image = new EditableImage();
+        image.open(file.getPath());
+
+        ImageOperation[] cycle = { new BrightnessContrast(10, 10), new GaussianFilter(3), new ConvertToNegative(),
+                new SharpenFilter(), new Posterisation(16), new MeanFilter(2), new RotateImage(RotateImage.ROTATE_180),
+                new ConvertToGrey(), new ImageFlip(ImageFlip.FLIP_VERTICAL), new MedianFilter(1) };
+        for (int i = 0; i < depth; i++) {
+            image.apply(cycle[i % cycle.length]);
+        }
+    }
+
+    /**
+     * Remove the synthetic image file.
+     */
+    @TearDown(Level.Trial)
+    public void delete() {
+        file.delete();
+        new File(file.getPath() + ".ops").delete();
+    }
+
+    @Benchmark
+    public BufferedImage refresh() {
+        image.refresh();
+        return image.getCurrentImage();
+    }
+
+}
@@ -0,0 +1,199 @@
+package cosc202.andie;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>
+ * JMH benchmarks of every {@link ImageOperation}.
+ * </p>
+ *
+ * <p>
+ * Each operation is applied to a synthetic image of 1, 12 or 50 megapixels,
+ * held either in the packed {@code TYPE_INT_ARGB} format ANDIE works in, or in
+ * {@code TYPE_3BYTE_BGR} as many decoders produce it, so the cost of converting
+ * to a {@link PixelBuffer} is measured as well.
+ * </p>
+ *
+ * <p>
+ * Some operations change their input in place, so every invocation is given a
+ * fresh copy of the image. The copy is made outside the timed part.
+ * </p>
+ *
+ * @see BenchmarkMain
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g", "-Djava.awt.headless=true" })
+public class ImageOperationBenchmark {
+
+    /** The size of the image, in megapixels. */
+    @Param({ "1", "12", "50" })
+    public int megapixels;
+
+    /** The format of the image, as a BufferedImage type name. */
+    @Param({ "TYPE_INT_ARGB", "TYPE_3BYTE_BGR" })
+    public String type;
+
+    /** The image each invocation starts from. */
+    private BufferedImage source;
+
+    /** A fresh copy of the source for the next invocation. */
+    private BufferedImage input;
+
+    /**
+     * <p>
+     * Make the synthetic source image.
+     * </p>
+     *
+     * <p>
+     * The image is 4:3 and filled with smooth gradients plus noise from a fixed
+     * seed, so every run sees the same pixels.
+     * </p>
+     */
+    @Setup(Level.Trial)
+    public void makeSource() {
+        source = syntheticImage(megapixels, type.equals("TYPE_INT_ARGB") ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    /**
+     * Copy the source so the invocation can change its input freely.
+     */
+    @Setup(Level.Invocation)
+    public void copySource() {
+        input = EditableImage.deepCopy(source);
+    }
+
+    /**
+     * <p>
+     * Make a synthetic test image.
+     * </p>
+     *
+     * @param megapixels The size of the image, in megapixels.
+     * @param imageType  The BufferedImage type of the image.
+     * @return The image.
+     */
+    static BufferedImage syntheticImage(int megapixels, int imageType) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        int height = (int) Math.round(megapixels * 1e6 / width);
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        int[] row = new int[width];
+        Random random = new Random(202);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                int r = (255 * x / width + noise) & 0xFF;
+                int g = (255 * y / height + noise) & 0xFF;
+                int b = (r ^ g) & 0xFF;
+                row[x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage convertToGrey() {
+        return new ConvertToGrey().apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage convertToNegative() {
+        return new ConvertToNegative().apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage brightnessContrast() {
+        return new BrightnessContrast(20, 30).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage posterisation() {
+        return new Posterisation(8).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage lookupTable() {
+        return LookupTable.compose(Arrays.asList(new BrightnessContrast(20, 30), new ConvertToNegative(),
+                new Posterisation(8))).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage meanFilter() {
+        return new MeanFilter(5).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage medianFilter() {
+        return new MedianFilter(5).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage gaussianFilterSeparable() {
+        return new GaussianFilter(GaussianFilter.MAX_SEPARABLE_RADIUS).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage gaussianFilterRecursive() {
+        return new GaussianFilter(30).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage sharpenFilter() {
+        return new SharpenFilter().apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage embossFilter() {
+        return new EmbossFilter(EmbossFilter.NORTHEAST).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage sobelFilter() {
+        return new SobelFilter(true).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage rotate90() {
+        return new RotateImage(RotateImage.ROTATE_90).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage rotate180() {
+        return new RotateImage(RotateImage.ROTATE_180).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage flipHorizontal() {
+        return new ImageFlip(ImageFlip.FLIP_HORIZONTAL).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage resizeHalf() {
+        return new ResizeImage(input.getHeight() / 2, input.getWidth() / 2, 50).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage crop() {
+        Shape selection = new Rectangle(input.getWidth() / 4, input.getHeight() / 4, input.getWidth() / 2,
+                input.getHeight() / 2);
+        return new CropOperation(selection, 1, 0, 0).apply(input);
+    }
+
+    @Benchmark
+    public BufferedImage drawing() {
+        Shape shape = new Ellipse2D.Double(input.getWidth() / 4, input.getHeight() / 4, input.getWidth() / 2,
+                input.getHeight() / 2);
+        return new DrawingOperation(shape, 1, 0, 0, Color.RED, true).apply(input);
+    }
+
+}
@@ -1,7 +1,10 @@
 package cosc202.andie;
 
+import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 import java.awt.*;
+import java.awt.event.*;
 import javax.swing.*;
 import javax.imageio.*;
 
@@ -27,6 +30,9 @@ import javax.imageio.*;
  */
 public class Andie {
 
+    /** The journal of edits, or null if this copy of ANDIE is running without one. */
+    private static OperationJournal journal;
+
     /**
      * <p>
      * Launches the main GUI for the ANDIE program.
@@ -72,7 +78,14 @@ public class Andie {
                     JOptionPane.OK_OPTION, null);
         }
 
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // Closing the window quits as the Exit action does
+        frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                exit();
+            }
+        });
 
         // The main content area is an ImagePanel
         ImagePanel imagePanel = new ImagePanel();
@@ -110,7 +123,15 @@ public class Andie {
 
         RightSideMenu rightSideMenu = new RightSideMenu();
 
-        frame.add(rightSideMenu, BorderLayout.EAST);
+        // The profiler sits under the right side menu, in a tool bar so it can be
+        // dragged out into its own window and docked back again
+        JToolBar profilerBar = new JToolBar("Profiler", JToolBar.VERTICAL);
+        profilerBar.add(new ProfilerPanel(imagePanel.getImage()));
+
+        JPanel sidePanel = new JPanel(new BorderLayout());
+        sidePanel.add(rightSideMenu, BorderLayout.NORTH);
+        sidePanel.add(profilerBar, BorderLayout.CENTER);
+        frame.add(sidePanel, BorderLayout.EAST);
 
         OptionsBar optionsBar = new OptionsBar();
 
@@ -136,6 +157,68 @@ public class Andie {
         frame.pack();
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
+
+        // Keeps a journal of the edits, so they can be restored after a crash
+        startJournal(frame, imagePanel);
+    }
+
+    /**
+     * <p>
+     * Start recording edits in the {@link OperationJournal}, first offering to
+     * restore any edits a crash left in it.
+     * </p>
+     * 
+     * <p>
+     * If another copy of ANDIE is already using the journal, this one runs
+     * without one. The journal is deleted only when the user quits, through
+     * {@link #exit()}. If ANDIE is killed or the user logs out instead, the
+     * journal is left to be offered for restoring next time.
+     * </p>
+     * 
+     * @param frame      The main window.
+     * @param imagePanel The panel showing the image.
+     */
+    private static void startJournal(JFrame frame, ImagePanel imagePanel) {
+        try {
+            journal = new OperationJournal(OperationJournal.defaultFile());
+        } catch (IOException ex) {
+            return;
+        }
+        EditableImage image = imagePanel.getImage();
+        image.setJournal(journal);
+
+        OperationJournal.Session session = journal.recover();
+        boolean restored = false;
+        if (session != null) {
+            int option = JOptionPane.showConfirmDialog(frame,
+                    "ANDIE did not close properly. Restore the " + session.size() + " unsaved changes to "
+                            + session.getImageFilename() + "?",
+                    "Restore Session", JOptionPane.YES_NO_OPTION);
+            if (option == JOptionPane.YES_OPTION) {
+                // Replayed in the background, with the saved image shown meanwhile
+                image.recoverInBackground(session, imagePanel);
+                restored = true;
+            }
+        }
+        if (!restored) {
+            journal.clear();
+        }
+    }
+
+    /**
+     * <p>
+     * Quit ANDIE, when the user closes the window or chooses Exit.
+     * </p>
+     * 
+     * <p>
+     * The journal is deleted first, as nothing in it needs restoring.
+     * </p>
+     */
+    static void exit() {
+        if (journal != null) {
+            journal.close();
+        }
+        System.exit(0);
     }
 
     /**
@@ -148,11 +231,22 @@ public class Andie {
      * As a result, this is essentially a wrapper around {@code createAndShowGUI()}.
      * </p>
      * 
-     * @param args Command line arguments, not currently used
+     * <p>
+     * If the first argument is {@code --batch}, no GUI is shown. Instead the rest
+     * of the arguments are passed to the {@link BatchProcessor}, and the program
+     * exits when it is done.
+     * </p>
+     * 
+     * @param args Command line arguments, used only for batch processing
      * @throws Exception If something goes awry
      * @see #createAndShowGUI()
+     * @see BatchProcessor#runBatch(String[])
      */
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(BatchProcessor.runBatch(Arrays.copyOfRange(args, 1, args.length)));
+        }
         javax.swing.SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 try {
@@ -0,0 +1,333 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.imageio.*;
+
+/**
+ * <p>
+ * Applies a saved sequence of operations to every image in a directory,
+ * without the GUI.
+ * </p>
+ *
+ * <p>
+ * The operations are read from an <code>.ops</code> or <code>.macro</code>
+ * file. Each image goes through three stages: it is decoded, the operations
+ * are applied, and it is encoded and written to the output directory under the
+ * same name and format. The stages run on their own threads and hand images on
+ * through bounded queues, so reading and writing files overlaps with the work
+ * of applying the operations, while only a few images are held in memory at
+ * once.
+ * </p>
+ *
+ * <p>
+ * Run with
+ * <code>java cosc202.andie.Andie --batch OPS_FILE INPUT_DIR OUTPUT_DIR [--workers N] [--io-threads M]</code>.
+ * By default there is one worker per processor and two threads each for
+ * decoding and encoding. A summary of the throughput is printed at the end.
+ * </p>
+ *
+ * @see EditableImage#applyAll(BufferedImage, List)
+ * @version 1.0
+ */
+public class BatchProcessor {
+
+    /** How many images each worker may have waiting in a queue. */
+    private static final int QUEUE_DEPTH = 2;
+
+    /** The operations to apply to each image. */
+    private final List<ImageOperation> ops;
+    /** The directory the results are written to. */
+    private final File outputDir;
+    /** The number of threads applying operations. */
+    private final int workers;
+    /** The number of threads decoding, and the number encoding. */
+    private final int ioThreads;
+
+    /** The images read so far. */
+    private final AtomicInteger processed = new AtomicInteger();
+    /** The images that could not be read, processed or written. */
+    private final AtomicInteger failed = new AtomicInteger();
+    /** The bytes read from image files. */
+    private final AtomicLong bytesRead = new AtomicLong();
+    /** The bytes written to image files. */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * <p>
+     * An image on its way through the stages.
+     * </p>
+     */
+    private static class Job {
+
+        /** Marks the end of a queue. */
+        static final Job END = new Job(null, null);
+
+        /** The file the image came from. */
+        final File source;
+        /** The image, decoded or processed. */
+        final BufferedImage image;
+
+        Job(File source, BufferedImage image) {
+            this.source = source;
+            this.image = image;
+        }
+    }
+
+    /**
+     * <p>
+     * Create a batch processor.
+     * </p>
+     *
+     * @param ops       The operations to apply to each image.
+     * @param outputDir The directory to write the results to.
+     * @param workers   The number of threads applying operations.
+     * @param ioThreads The number of threads decoding, and the number encoding.
+     */
+    public BatchProcessor(List<ImageOperation> ops, File outputDir, int workers, int ioThreads) {
+        this.ops = ops;
+        this.outputDir = outputDir;
+        this.workers = Math.max(1, workers);
+        this.ioThreads = Math.max(1, ioThreads);
+    }
+
+    /**
+     * <p>
+     * Process every image in a list of files.
+     * </p>
+     *
+     * @param files The images to process.
+     * @throws InterruptedException If interrupted while waiting for the stages.
+     */
+    public void run(List<File> files) throws InterruptedException {
+        BlockingQueue<Job> decoded = new ArrayBlockingQueue<Job>(QUEUE_DEPTH * workers);
+        BlockingQueue<Job> applied = new ArrayBlockingQueue<Job>(QUEUE_DEPTH * workers);
+        AtomicInteger next = new AtomicInteger();
+        // The number of threads still running in the decode and apply stages. The
+        // last one of each to finish tells the next stage there is no more to come.
+        AtomicInteger decoding = new AtomicInteger(ioThreads);
+        AtomicInteger applying = new AtomicInteger(workers);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < ioThreads; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int f = next.getAndIncrement(); f < files.size(); f = next.getAndIncrement()) {
+                        Job job = decode(files.get(f));
+                        if (job != null) {
+                            put(decoded, job);
+                        }
+                    }
+                } finally {
+                    // Even if this thread dies, so the workers are not left waiting
+                    if (decoding.decrementAndGet() == 0) {
+                        for (int w = 0; w < workers; w++) {
+                            put(decoded, Job.END);
+                        }
+                    }
+                }
+            }, "andie-decode-" + i));
+        }
+        for (int i = 0; i < workers; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (Job job = take(decoded); job != Job.END; job = take(decoded)) {
+                        try {
+                            put(applied, new Job(job.source, EditableImage.applyAll(job.image, ops)));
+                        } catch (RuntimeException | Error ex) {
+                            fail(job.source, ex);
+                        }
+                    }
+                } finally {
+                    if (applying.decrementAndGet() == 0) {
+                        for (int w = 0; w < ioThreads; w++) {
+                            put(applied, Job.END);
+                        }
+                    }
+                }
+            }, "andie-apply-" + i));
+        }
+        for (int i = 0; i < ioThreads; i++) {
+            threads.add(new Thread(() -> {
+                for (Job job = take(applied); job != Job.END; job = take(applied)) {
+                    encode(job);
+                }
+            }, "andie-encode-" + i));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * <p>
+     * Read and decode an image.
+     * </p>
+     *
+     * @param file The image file.
+     * @return The decoded image, or null if it could not be read.
+     */
+    private Job decode(File file) {
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            bytesRead.addAndGet(bytes.length);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            if (image == null) {
+                throw new IOException("not a supported image");
+            }
+            return new Job(file, PixelBuffer.normalise(image));
+        } catch (IOException | RuntimeException | Error ex) {
+            fail(file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Encode a processed image and write it to the output directory.
+     * </p>
+     *
+     * @param job The processed image.
+     */
+    private void encode(Job job) {
+        String name = job.source.getName();
+        String extension = name.substring(1 + name.lastIndexOf(".")).toLowerCase();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (!ImageIO.write(job.image, extension, bytes)) {
+                throw new IOException("cannot write " + extension + " images");
+            }
+            Files.write(new File(outputDir, name).toPath(), bytes.toByteArray());
+            bytesWritten.addAndGet(bytes.size());
+            processed.incrementAndGet();
+        } catch (IOException | RuntimeException | Error ex) {
+            fail(job.source, ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Record an image that could not be processed.
+     * </p>
+     *
+     * <p>
+     * Errors are recorded as well as exceptions, so that one image too large
+     * for the heap, say, fails on its own rather than stopping its stage and
+     * leaving the others waiting for it.
+     * </p>
+     *
+     * @param file The image that could not be processed.
+     * @param ex   What went wrong.
+     */
+    private void fail(File file, Throwable ex) {
+        failed.incrementAndGet();
+        System.err.println(file + ": " + ex.getMessage());
+    }
+
+    /**
+     * @param queue The queue to add to, waiting for space if it is full.
+     * @param job   The job to add.
+     */
+    private static void put(BlockingQueue<Job> queue, Job job) {
+        try {
+            queue.put(job);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted");
+        }
+    }
+
+    /**
+     * @param queue The queue to take from, waiting if it is empty.
+     * @return The next job.
+     */
+    private static Job take(BlockingQueue<Job> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted");
+        }
+    }
+
+    /**
+     * <p>
+     * Entry point for batch processing.
+     * </p>
+     *
+     * <p>
+     * Called by {@link Andie#main(String[])} when its first argument is
+     * <code>--batch</code>.
+     * </p>
+     *
+     * @param args The operations file, input directory and output directory,
+     *             followed by any options.
+     * @return 0 if every image was processed, 1 if any failed, or 2 if the
+     *         arguments were wrong.
+     * @throws Exception If the operations file cannot be read.
+     */
+    public static int runBatch(String[] args) throws Exception {
+        List<String> positional = new ArrayList<String>();
+        int workers = Runtime.getRuntime().availableProcessors();
+        int ioThreads = 2;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--workers") && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--io-threads") && i + 1 < args.length) {
+                ioThreads = Integer.parseInt(args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() != 3) {
+            System.err.println(
+                    "usage: andie --batch OPS_FILE INPUT_DIR OUTPUT_DIR [--workers N] [--io-threads M]");
+            return 2;
+        }
+
+        List<ImageOperation> ops = OperationOptimiser.optimise(EditableImage.readOperations(positional.get(0)));
+        File inputDir = new File(positional.get(1));
+        File outputDir = new File(positional.get(2));
+        outputDir.mkdirs();
+
+        // Only the files ImageIO can read, in a fixed order
+        Set<String> suffixes = new HashSet<String>(Arrays.asList(ImageIO.getReaderFileSuffixes()));
+        List<File> files = new ArrayList<File>();
+        File[] listing = inputDir.listFiles();
+        if (listing == null) {
+            System.err.println(inputDir + ": not a directory");
+            return 2;
+        }
+        for (File file : listing) {
+            String name = file.getName();
+            if (file.isFile() && suffixes.contains(name.substring(1 + name.lastIndexOf(".")).toLowerCase())) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        // Images are already processed in parallel, so each operation gets a share
+        // of the processors rather than all of them
+        TileScheduler.setThreadCount(Runtime.getRuntime().availableProcessors() / Math.max(1, workers));
+
+        BatchProcessor batch = new BatchProcessor(ops, outputDir, workers, ioThreads);
+        long start = System.nanoTime();
+        batch.run(files);
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+
+        System.out.printf("Processed %d of %d images in %.2f s (%d failed)%n", batch.processed.get(), files.size(),
+                seconds, batch.failed.get());
+        System.out.printf("%.1f images/s, read %.1f MB/s, wrote %.1f MB/s%n", batch.processed.get() / seconds,
+                batch.bytesRead.get() / seconds / (1 << 20), batch.bytesWritten.get() / seconds / (1 << 20));
+        return batch.failed.get() == 0 && batch.processed.get() == files.size() ? 0 : 1;
+    }
+
+}
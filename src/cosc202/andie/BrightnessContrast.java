@@ -15,7 +15,10 @@ import java.awt.image.*;
  * @author Dominic Tekanene & Angus Henderson
  * @version 1.0
  */
-public class BrightnessContrast implements ImageOperation, java.io.Serializable {
+public class BrightnessContrast implements LookupOperation, java.io.Serializable {
+
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = -3529539299448414347L;
 
     private double brightnessChange;
     private double contrastChange;
@@ -39,6 +42,54 @@ public class BrightnessContrast implements ImageOperation, java.io.Serializable
         this.contrastChange = contrastChange;
     }
 
+    /**
+     * <p>
+     * Create a new BrightnessContrast operation with fractional changes.
+     * </p>
+     * 
+     * <p>
+     * Used when two operations are merged into one, which can leave changes
+     * that are not whole percentages.
+     * </p>
+     * 
+     * @param brightnessChange The new change in brightness
+     * @param contrastChange   The new change in contrast
+     */
+    BrightnessContrast(double brightnessChange, double contrastChange) {
+        this.brightnessChange = brightnessChange;
+        this.contrastChange = contrastChange;
+    }
+
+    /**
+     * <p>
+     * Merge this operation with one applied after it.
+     * </p>
+     * 
+     * <p>
+     * Leaving aside rounding and clipping, two brightness and contrast changes
+     * are the same as one, with the contrast factors multiplied together.
+     * The merged operation is only returned if its lookup table is exactly the
+     * same as applying the two in turn, so the result is unchanged.
+     * </p>
+     * 
+     * @param next The operation applied second.
+     * @return A single operation with the same effect, or null if there is none.
+     */
+    BrightnessContrast merge(BrightnessContrast next) {
+        double factor = (1 + contrastChange / 100) * (1 + next.contrastChange / 100);
+        double brightness = (1 + next.contrastChange / 100) * brightnessChange + next.brightnessChange;
+        BrightnessContrast merged = new BrightnessContrast(brightness, (factor - 1) * 100);
+        int[] first = getLookupTable();
+        int[] second = next.getLookupTable();
+        int[] table = merged.getLookupTable();
+        for (int v = 0; v < 256; v++) {
+            if (table[v] != second[first[v]]) {
+                return null;
+            }
+        }
+        return merged;
+    }
+
     /**
      * <p>
      * Apply brightness and contrast conversion to an image.
@@ -54,28 +105,27 @@ public class BrightnessContrast implements ImageOperation, java.io.Serializable
      * @return The resulting image.
      */
     public BufferedImage apply(BufferedImage input) {
-        // Iterating over every pixel in the buffered image
-        for (int y = 0; y < input.getHeight(); ++y) {
-            for (int x = 0; x < input.getWidth(); ++x) {
-
-                // extracting the ARGB values from each pixel
-                int argb = input.getRGB(x, y);
-                int a = (argb & 0xFF000000) >> 24;
-                int r = (argb & 0x00FF0000) >> 16;
-                int g = (argb & 0x0000FF00) >> 8;
-                int b = (argb & 0x000000FF);
-
-                // applying the change in brightness and contrast to the individual colours
-                r = truncate(changeBrightnessContrast(r));
-                g = truncate(changeBrightnessContrast(g));
-                b = truncate(changeBrightnessContrast(b));
+        return LookupTable.apply(input, getLookupTable());
+    }
 
-                // re-initialising and setting the new pixel value
-                argb = (a << 24) | (r << 16) | (g << 8) | b;
-                input.setRGB(x, y, argb);
-            }
+    /**
+     * <p>
+     * Get the brightness and contrast change of every channel value.
+     * </p>
+     * 
+     * <p>
+     * The formula is worked out once for each of the 256 possible values,
+     * rather than for every channel of every pixel.
+     * </p>
+     * 
+     * @return A table mapping each channel value to its changed value.
+     */
+    public int[] getLookupTable() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = truncate(changeBrightnessContrast(v));
         }
-        return input;
+        return table;
     }
 
     /**
@@ -123,4 +173,18 @@ public class BrightnessContrast implements ImageOperation, java.io.Serializable
         return (int) Math.round(output);
     }
 
+    /**
+     * @return The change in brightness, as a percentage.
+     */
+    double getBrightness() {
+        return brightnessChange;
+    }
+
+    /**
+     * @return The change in contrast, as a percentage.
+     */
+    double getContrast() {
+        return contrastChange;
+    }
+
 }
@@ -0,0 +1,646 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * <p>
+ * A store of intermediate results in the history of an {@link EditableImage}.
+ * </p>
+ *
+ * <p>
+ * Without checkpoints, undoing an operation means copying the original image
+ * and replaying every operation still on the stack.
+ * A checkpoint keeps a copy of the image as it was after a given number of
+ * operations (its depth), so the replay can start from the nearest checkpoint
+ * at or below the step wanted instead of from the original.
+ * </p>
+ *
+ * <p>
+ * Each checkpoint remembers the operations that produced it. If the history
+ * below its depth has changed since, for example because an operation was
+ * undone and a different one applied, the checkpoint no longer matches and is
+ * dropped rather than used.
+ * </p>
+ *
+ * <p>
+ * The heap taken up by checkpoints is kept under a budget, which can be set in
+ * megabytes with the {@code andie.checkpointBudget} system property.
+ * When the budget is exceeded, the least recently used checkpoints are moved
+ * down a tier at a time, on a background thread:
+ * </p>
+ * <ol>
+ * <li>Hot checkpoints are kept as plain images, ready to copy.</li>
+ * <li>Warm checkpoints are compressed in memory. Each pixel is stored as its
+ * difference from the one before, which the compressor packs down well.</li>
+ * <li>Cold checkpoints are written to a file in a temporary directory and take
+ * no heap at all. Up to {@code andie.spillBudget} megabytes are kept on disk,
+ * after which the oldest files are deleted.</li>
+ * </ol>
+ * <p>
+ * Checkpoints are brought back from any tier by {@link #restore(int)}, so
+ * callers never need to know where one is kept.
+ * Only images in a packed int format are compressed. Any others are evicted
+ * rather than moved down a tier.
+ * </p>
+ *
+ * @see EditableImage
+ * @version 1.0
+ */
+public class CheckpointStore {
+
+    /**
+     * The default heap budget, in bytes: a quarter of the maximum heap, up to
+     * 256MB, unless set by the {@code andie.checkpointBudget} property.
+     */
+    public static final long DEFAULT_BUDGET = Long.getLong("andie.checkpointBudget",
+            Math.min(256, Runtime.getRuntime().maxMemory() / 4 / (1 << 20))) << 20;
+
+    /**
+     * The default disk budget for spilled checkpoints, in bytes: 2GB unless set
+     * by the {@code andie.spillBudget} property.
+     */
+    public static final long DEFAULT_SPILL_BUDGET = Long.getLong("andie.spillBudget", 2048) << 20;
+
+    /** The number of pixels passed to the deflater at a time. */
+    private static final int COMPRESS_CHUNK = 1 << 16;
+
+    /** Compresses and spills checkpoints in the background. */
+    private static final ExecutorService TIERING = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "andie-checkpoints");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /** The checkpoints, by depth, from least to most recently used. */
+    private final LinkedHashMap<Integer, Checkpoint> checkpoints;
+
+    /** The most heap the checkpoints may take up, in bytes. */
+    private long budget;
+    /** The most disk space spilled checkpoints may take up, in bytes. */
+    private long spillBudget;
+
+    /** The heap the checkpoints take up, in bytes. */
+    private long used;
+    /** The disk space spilled checkpoints take up, in bytes. */
+    private long spilled;
+    /** The number of checkpoints written to disk. */
+    private long spillWrites;
+    /** The number of checkpoints read back from disk. */
+    private long spillReads;
+
+    /** True while a background pass to meet the budget is queued or running. */
+    private boolean tiering;
+
+    /** The directory spilled checkpoints are written to, made when first needed. */
+    private Path spillDirectory;
+
+    /**
+     * <p>
+     * A copy of the image after a number of operations.
+     * </p>
+     *
+     * <p>
+     * Exactly one of {@link #image}, {@link #compressed} and {@link #file} is set,
+     * depending on the tier the checkpoint is in.
+     * </p>
+     */
+    private static class Checkpoint {
+
+        /** The operations that were applied to the original to make the image. */
+        final ImageOperation[] history;
+        /** The width of the image. */
+        final int width;
+        /** The height of the image. */
+        final int height;
+        /** The BufferedImage type of the image. */
+        final int type;
+
+        /** The image, if the checkpoint is hot. */
+        BufferedImage image;
+        /** The compressed pixels, if the checkpoint is warm. */
+        byte[] compressed;
+        /** The file holding the compressed pixels, if the checkpoint is cold. */
+        Path file;
+        /** The length of the compressed pixels in the file. */
+        int fileLength;
+
+        Checkpoint(ImageOperation[] history, BufferedImage image) {
+            this.history = history;
+            this.image = image;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.type = image.getType();
+        }
+
+        /**
+         * @return The heap taken by the checkpoint, in bytes.
+         */
+        long heapBytes() {
+            if (image != null) {
+                return sizeOf(image);
+            }
+            return compressed != null ? compressed.length : 0;
+        }
+
+        /**
+         * @param ops The current history.
+         * @return True if the checkpoint was made from the start of that history.
+         */
+        boolean matches(List<ImageOperation> ops) {
+            if (ops.size() < history.length) {
+                return false;
+            }
+            for (int i = 0; i < history.length; i++) {
+                if (ops.get(i) != history[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * <p>
+     * Create an empty checkpoint store with the default budgets.
+     * </p>
+     */
+    public CheckpointStore() {
+        this(DEFAULT_BUDGET, DEFAULT_SPILL_BUDGET);
+    }
+
+    /**
+     * <p>
+     * Create an empty checkpoint store.
+     * </p>
+     *
+     * @param budget      The most heap the checkpoints may take up, in bytes.
+     * @param spillBudget The most disk space spilled checkpoints may take up, in
+     *                    bytes.
+     */
+    public CheckpointStore(long budget, long spillBudget) {
+        this.checkpoints = new LinkedHashMap<Integer, Checkpoint>(16, 0.75f, true);
+        this.budget = Math.max(0, budget);
+        this.spillBudget = Math.max(0, spillBudget);
+    }
+
+    /**
+     * <p>
+     * Keep a copy of the image at a point in the history.
+     * </p>
+     *
+     * <p>
+     * Any checkpoint already at the same depth is replaced. An image larger than
+     * the whole budget is not kept.
+     * </p>
+     *
+     * @param ops   The history the image was made from.
+     * @param depth The number of operations from the history applied to the
+     *              original to make the image.
+     * @param image The image. A copy is stored, so it may be changed afterwards.
+     */
+    public synchronized void put(List<ImageOperation> ops, int depth, BufferedImage image) {
+        if (depth <= 0 || depth > ops.size()) {
+            return;
+        }
+        remove(depth);
+        if (sizeOf(image) > budget) {
+            return;
+        }
+        Checkpoint checkpoint = new Checkpoint(ops.subList(0, depth).toArray(new ImageOperation[depth]),
+                EditableImage.deepCopy(image));
+        checkpoints.put(depth, checkpoint);
+        used += checkpoint.heapBytes();
+        meetBudget();
+    }
+
+    /**
+     * <p>
+     * Find the deepest usable checkpoint at or below a step in the history.
+     * </p>
+     *
+     * <p>
+     * Checkpoints found not to match the history are dropped along the way.
+     * </p>
+     *
+     * @param ops   The current history.
+     * @param depth The step wanted.
+     * @return The depth of the checkpoint, or 0 if the replay has to start from
+     *         the original image.
+     */
+    public synchronized int nearest(List<ImageOperation> ops, int depth) {
+        int best = 0;
+        for (Integer d : new ArrayList<Integer>(checkpoints.keySet())) {
+            if (d > depth || d <= best) {
+                continue;
+            }
+            // Looked at without get(), so that searching does not count as a use
+            Checkpoint checkpoint = peek(d);
+            if (checkpoint.matches(ops)) {
+                best = d;
+            } else {
+                remove(d);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * <p>
+     * Get a copy of the image stored at a depth.
+     * </p>
+     *
+     * <p>
+     * Compressed checkpoints are decompressed, and spilled ones read back from
+     * disk first. The checkpoint itself stays in the tier it was in.
+     * </p>
+     *
+     * @param depth The depth of the checkpoint, as returned by {@link #nearest}.
+     * @return A copy of the image, which the caller may change, or null if there
+     *         is no checkpoint at that depth or it could not be read back.
+     */
+    public synchronized BufferedImage restore(int depth) {
+        Checkpoint checkpoint = checkpoints.get(depth);
+        if (checkpoint == null) {
+            return null;
+        }
+        if (checkpoint.image != null) {
+            return EditableImage.deepCopy(checkpoint.image);
+        }
+        byte[] compressed = checkpoint.compressed;
+        try {
+            if (compressed == null) {
+                compressed = readSpilled(checkpoint.file, checkpoint.fileLength);
+                spillReads++;
+            }
+            return decompress(compressed, checkpoint.width, checkpoint.height, checkpoint.type);
+        } catch (IOException | DataFormatException ex) {
+            // A lost checkpoint only means a longer replay
+            remove(depth);
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Remove every checkpoint.
+     * </p>
+     */
+    public synchronized void clear() {
+        for (Integer depth : new ArrayList<Integer>(checkpoints.keySet())) {
+            remove(depth);
+        }
+    }
+
+    /**
+     * @return The number of checkpoints stored.
+     */
+    public synchronized int size() {
+        return checkpoints.size();
+    }
+
+    /**
+     * @return The heap the checkpoints take up, in bytes.
+     */
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    /**
+     * @return The disk space spilled checkpoints take up, in bytes.
+     */
+    public synchronized long getSpilledBytes() {
+        return spilled;
+    }
+
+    /**
+     * @return The number of times a checkpoint has been written to disk.
+     */
+    public synchronized long getSpillWrites() {
+        return spillWrites;
+    }
+
+    /**
+     * @return The number of times a checkpoint has been read back from disk.
+     */
+    public synchronized long getSpillReads() {
+        return spillReads;
+    }
+
+    /**
+     * @return The most heap the checkpoints may take up, in bytes.
+     */
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * <p>
+     * Change the heap budget, moving checkpoints down a tier if it has shrunk.
+     * </p>
+     *
+     * @param bytes The most heap the checkpoints may take up, in bytes.
+     */
+    public synchronized void setBudget(long bytes) {
+        budget = Math.max(0, bytes);
+        meetBudget();
+    }
+
+    /**
+     * <p>
+     * Start a background pass to bring the heap used back under budget, if it
+     * is over and a pass is not already going.
+     * </p>
+     */
+    private void meetBudget() {
+        if (used > budget && !tiering) {
+            tiering = true;
+            TIERING.execute(this::moveDown);
+        }
+    }
+
+    /**
+     * <p>
+     * Move the least recently used checkpoints down a tier until the heap used
+     * is under budget.
+     * </p>
+     *
+     * <p>
+     * Compressing and writing are done without holding the lock, so the store
+     * can still be used meanwhile. If the checkpoint is removed or replaced in
+     * the meantime, the work is thrown away.
+     * </p>
+     */
+    private void moveDown() {
+        while (true) {
+            Integer depth = null;
+            Checkpoint checkpoint = null;
+            synchronized (this) {
+                if (used <= budget) {
+                    tiering = false;
+                    return;
+                }
+                // Hot checkpoints are compressed before any warm one is spilled
+                for (Map.Entry<Integer, Checkpoint> entry : checkpoints.entrySet()) {
+                    if (entry.getValue().image != null && PixelBuffer.isPacked(entry.getValue().image)) {
+                        depth = entry.getKey();
+                        checkpoint = entry.getValue();
+                        break;
+                    }
+                }
+                if (checkpoint == null) {
+                    for (Map.Entry<Integer, Checkpoint> entry : checkpoints.entrySet()) {
+                        if (entry.getValue().heapBytes() > 0) {
+                            depth = entry.getKey();
+                            checkpoint = entry.getValue();
+                            break;
+                        }
+                    }
+                }
+                if (checkpoint == null) {
+                    tiering = false;
+                    return;
+                }
+                // Images that cannot be compressed are dropped instead
+                if (checkpoint.image != null && !PixelBuffer.isPacked(checkpoint.image)) {
+                    remove(depth);
+                    continue;
+                }
+            }
+
+            try {
+                if (checkpoint.image != null) {
+                    byte[] compressed = compress(checkpoint.image);
+                    synchronized (this) {
+                        if (peek(depth) == checkpoint) {
+                            used -= checkpoint.heapBytes();
+                            checkpoint.image = null;
+                            checkpoint.compressed = compressed;
+                            used += checkpoint.heapBytes();
+                        }
+                    }
+                } else {
+                    Path file = writeSpilled(checkpoint.compressed);
+                    synchronized (this) {
+                        if (peek(depth) == checkpoint) {
+                            used -= checkpoint.heapBytes();
+                            checkpoint.fileLength = checkpoint.compressed.length;
+                            checkpoint.compressed = null;
+                            checkpoint.file = file;
+                            spilled += checkpoint.fileLength;
+                            spillWrites++;
+                            trimSpilled();
+                        } else {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                // Nowhere to spill to, so the checkpoint is dropped
+                synchronized (this) {
+                    if (peek(depth) == checkpoint) {
+                        remove(depth);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used spilled checkpoints until the disk budget
+     * is met.
+     */
+    private void trimSpilled() {
+        for (Integer depth : new ArrayList<Integer>(checkpoints.keySet())) {
+            if (spilled <= spillBudget) {
+                return;
+            }
+            if (peek(depth).file != null) {
+                remove(depth);
+            }
+        }
+    }
+
+    /**
+     * @param depth The depth of a checkpoint.
+     * @return The checkpoint, without changing the order of use.
+     */
+    private Checkpoint peek(int depth) {
+        for (Map.Entry<Integer, Checkpoint> entry : checkpoints.entrySet()) {
+            if (entry.getKey() == depth) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param depth The depth of the checkpoint to remove, if there is one.
+     */
+    private void remove(int depth) {
+        Checkpoint old = checkpoints.remove(depth);
+        if (old == null) {
+            return;
+        }
+        used -= old.heapBytes();
+        if (old.file != null) {
+            spilled -= old.fileLength;
+            try {
+                Files.deleteIfExists(old.file);
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Compress the pixels of a packed image.
+     * </p>
+     *
+     * @param image The image, in a packed int format.
+     * @return The compressed differences between neighbouring pixels.
+     */
+    private static byte[] compress(BufferedImage image) {
+        int[] pixels = PixelBuffer.of(image).getPixels();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(pixels.length);
+        byte[] chunk = new byte[1 << 16];
+
+        // Fed to the deflater a piece at a time, as this runs when the heap is
+        // already over budget, and a whole copy of the pixels as bytes would add
+        // four bytes a pixel
+        ByteBuffer bytes = ByteBuffer.allocate(COMPRESS_CHUNK * 4);
+        int previous = 0;
+        for (int start = 0; start < pixels.length; start += COMPRESS_CHUNK) {
+            int end = Math.min(pixels.length, start + COMPRESS_CHUNK);
+            bytes.clear();
+            for (int i = start; i < end; i++) {
+                bytes.putInt(pixels[i] - previous);
+                previous = pixels[i];
+            }
+            deflater.setInput(bytes.array(), 0, bytes.position());
+            while (!deflater.needsInput()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Rebuild an image from its compressed pixels.
+     * </p>
+     *
+     * @param compressed The output of {@link #compress}.
+     * @param width      The width of the image.
+     * @param height     The height of the image.
+     * @param type       The BufferedImage type of the image.
+     * @return The image.
+     * @throws DataFormatException If the compressed pixels are corrupted.
+     */
+    private static BufferedImage decompress(byte[] compressed, int width, int height, int type)
+            throws DataFormatException {
+        BufferedImage image = new BufferedImage(width, height, type);
+        int[] pixels = PixelBuffer.of(image).getPixels();
+        byte[] bytes = new byte[pixels.length * 4];
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        int length = 0;
+        while (length < bytes.length && !inflater.finished()) {
+            int read = inflater.inflate(bytes, length, bytes.length - length);
+            if (read == 0 && inflater.needsInput()) {
+                break;
+            }
+            length += read;
+        }
+        inflater.end();
+        if (length != bytes.length) {
+            throw new DataFormatException("checkpoint is truncated");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int previous = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            previous += buffer.getInt();
+            pixels[i] = previous;
+        }
+        return image;
+    }
+
+    /**
+     * <p>
+     * Write compressed pixels to a new file in the spill directory.
+     * </p>
+     *
+     * @param compressed The compressed pixels.
+     * @return The file written.
+     * @throws IOException If the file cannot be written.
+     */
+    private Path writeSpilled(byte[] compressed) throws IOException {
+        Path file;
+        synchronized (this) {
+            if (spillDirectory == null) {
+                spillDirectory = Files.createTempDirectory("andie-checkpoints");
+                spillDirectory.toFile().deleteOnExit();
+            }
+            file = Files.createTempFile(spillDirectory, "checkpoint", ".z");
+        }
+        file.toFile().deleteOnExit();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(compressed);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * <p>
+     * Read compressed pixels back from a spilled checkpoint.
+     * </p>
+     *
+     * @param file   The file the checkpoint was spilled to.
+     * @param length The length of the compressed pixels.
+     * @return The compressed pixels.
+     * @throws IOException If the file cannot be read.
+     */
+    private static byte[] readSpilled(Path file, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("checkpoint is truncated");
+                }
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * <p>
+     * Work out how much memory the pixels of an image take up.
+     * </p>
+     *
+     * @param image The image.
+     * @return The size of the image's data buffer, in bytes.
+     */
+    static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+}
@@ -108,9 +108,7 @@ public class ColourActions {
             if (!hasImage()) {
                 return;
             }
-            target.getImage().apply(new ConvertToGrey());
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new ConvertToGrey());
         }
 
     }
@@ -191,9 +189,7 @@ public class ColourActions {
                 contrastChange = contrastModel.getValue();
             }
 
-            target.getImage().apply(new BrightnessContrast(brightnessChange, contrastChange));
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new BrightnessContrast(brightnessChange, contrastChange));
         }
     }
 
@@ -259,10 +255,7 @@ public class ColourActions {
 
             int numBands = posteriseModel.getNumber().intValue();
 
-            target.getImage().apply(new Posterisation(numBands));
-
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new Posterisation(numBands));
         }
 
     }
@@ -307,9 +300,7 @@ public class ColourActions {
             if (!hasImage()) {
                 return;
             }
-            target.getImage().apply(new ConvertToNegative());
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new ConvertToNegative());
         }
 
     }
@@ -23,6 +23,9 @@ import java.awt.image.*;
  */
 public class ConvertToGrey implements ImageOperation, java.io.Serializable {
 
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = -6551968746842527704L;
+
     /**
      * <p>
      * Create a new CovertToGrey operation.
@@ -48,23 +51,22 @@ public class ConvertToGrey implements ImageOperation, java.io.Serializable {
      * @return The resulting greyscale image.
      */
     public BufferedImage apply(BufferedImage input) {
+        PixelBuffer buffer = PixelBuffer.of(input);
+        int[] pixels = buffer.getPixels();
 
-        for (int y = 0; y < input.getHeight(); ++y) {
-            for (int x = 0; x < input.getWidth(); ++x) {
-                int argb = input.getRGB(x, y);
-                int a = (argb & 0xFF000000) >> 24;
-                int r = (argb & 0x00FF0000) >> 16;
-                int g = (argb & 0x0000FF00) >> 8;
-                int b = (argb & 0x000000FF);
+        for (int i = 0; i < pixels.length; ++i) {
+            int argb = pixels[i];
+            int a = (argb & 0xFF000000) >> 24;
+            int r = (argb & 0x00FF0000) >> 16;
+            int g = (argb & 0x0000FF00) >> 8;
+            int b = (argb & 0x000000FF);
 
-                int grey = (int) Math.round(0.3 * r + 0.6 * g + 0.1 * b);
+            int grey = (int) Math.round(0.3 * r + 0.6 * g + 0.1 * b);
 
-                argb = (a << 24) | (grey << 16) | (grey << 8) | grey;
-                input.setRGB(x, y, argb);
-            }
+            pixels[i] = (a << 24) | (grey << 16) | (grey << 8) | grey;
         }
 
-        return input;
+        return buffer.getImage();
     }
 
 }
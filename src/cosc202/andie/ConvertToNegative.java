@@ -10,7 +10,10 @@ import java.awt.image.*;
  * @author Dominic Tekanene
  * @version 1.0
  */
-public class ConvertToNegative implements ImageOperation, java.io.Serializable {
+public class ConvertToNegative implements LookupOperation, java.io.Serializable {
+
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 7853508174921152204L;
 
     /**
      * <p>
@@ -40,27 +43,22 @@ public class ConvertToNegative implements ImageOperation, java.io.Serializable {
      * @version 1.0
      */
     public BufferedImage apply(BufferedImage input) {
-        // Iterating over every pixel in the buffered image
-        for (int y = 0; y < input.getHeight(); ++y) {
-            for (int x = 0; x < input.getWidth(); ++x) {
-
-                // extracting the ARGB values from each pixel
-                int argb = input.getRGB(x, y);
-                int a = (argb & 0xFF000000) >> 24;
-                int r = (argb & 0x00FF0000) >> 16;
-                int g = (argb & 0x0000FF00) >> 8;
-                int b = (argb & 0x000000FF);
-
-                // minusing the value of the colour from 255
-                r = 255 - r;
-                g = 255 - g;
-                b = 255 - b;
+        return LookupTable.apply(input, getLookupTable());
+    }
 
-                // re-initialising and setting the new pixel value
-                argb = (a << 24) | (r << 16) | (g << 8) | b;
-                input.setRGB(x, y, argb);
-            }
+    /**
+     * <p>
+     * Get the inverting map of a colour channel.
+     * </p>
+     * 
+     * @return A table mapping each channel value v to 255 - v.
+     */
+    public int[] getLookupTable() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            // minusing the value of the colour from 255
+            table[v] = 255 - v;
         }
-        return input;
+        return table;
     }
-}
\ No newline at end of file
+}
@@ -1,25 +1,63 @@
 package cosc202.andie;
 
 import java.awt.image.*;
-import java.awt.*;
 
 /**
  * A class that preforms a convolution with a given kernel from the input image
  * to the output image
+ *
+ * The convolution is split into bands of rows and run in parallel by the
+ * {@link TileScheduler}. Pixels the kernel reaches beyond the edge of the image
+ * are found by mapping their coordinates back into the image, as set by the
+ * edge mode, so no padded copy of the image is ever made:
  * 
+ * EDGE_CLAMP repeats the nearest edge pixel (aaa|abcd|ddd),
+ * EDGE_REFLECT mirrors the image about its edge (cba|abcd|dcb), and
+ * EDGE_WRAP tiles the image, reading from the opposite edge (bcd|abcd|abc).
+ *
  * @Author Matthew Tyler 1049833
  */
-public class ConvolutionOperation {
+public class ConvolutionOperation implements TiledOperation {
+
+    // The ways of handling pixels beyond the edge of the image
+    public static final int EDGE_CLAMP = 0;
+    public static final int EDGE_REFLECT = 1;
+    public static final int EDGE_WRAP = 2;
 
     private Kernel kernel;
     private float[] kernelarray;
 
+    // The horizontal and vertical radius of the kernel
+    private int xRadius;
+    private int yRadius;
+
+    // The value added to every channel of the result
+    private float offset;
+
+    // How pixels beyond the edge of the image are found
+    private int edgeMode;
+
     /**
-     * Construct a ConvolutionOperation with a given kernel
-     * 
+     * Construct a ConvolutionOperation with a given kernel that repeats the edge
+     * pixels of the image
+     *
      * @param kernel
      */
     public ConvolutionOperation(Kernel kernel) {
+        this(kernel, EDGE_CLAMP);
+    }
+
+    /**
+     * Construct a ConvolutionOperation with a given kernel and edge mode
+     *
+     * If the sum of the kernel totals 0, the results are offset by 128 to allow
+     * for negative values. Otherwise no offset is used.
+     *
+     * @param kernel
+     * @param edgeMode EDGE_CLAMP, EDGE_REFLECT or EDGE_WRAP
+     */
+    public ConvolutionOperation(Kernel kernel, int edgeMode) {
+        this.edgeMode = edgeMode;
         // The kernel used in convolution
         this.kernel = kernel;
         // Determines the size of the kernel data
@@ -27,28 +65,8 @@ public class ConvolutionOperation {
         // Copies the kernel
         kernel.getKernelData(kernelarray);
 
-    }
-
-    /**
-     * A method that determines the best way to convolve an image based off of the
-     * supplied kernel
-     * 
-     * If the sum of the input kernel totals 1, the image is convolved using java's
-     * inbuilt convolution operation but with the edge case accounted for
-     * 
-     * If the sum of the input kernel totals 0, the image is convolved with the
-     * values offset by 128
-     * 
-     * All other values default to the first method.
-     * 
-     * This is done to ensure the fastest convolution opperation is used where
-     * possible
-     * 
-     * @param input  The image to be convolved
-     * @param output The buffered image used to store the result
-     * @return The convolved image
-     */
-    public BufferedImage filter(BufferedImage input, BufferedImage output) {
+        xRadius = (kernel.getWidth() - 1) / 2;
+        yRadius = (kernel.getHeight() - 1) / 2;
 
         // Used to track the sum of the kernel
         float sum = 0;
@@ -56,64 +74,18 @@ public class ConvolutionOperation {
         for (int i = 0; i < kernelarray.length; i++) {
             sum += kernelarray[i];
         }
-        // Rounds the total to the nearest integer
-        switch (Math.round(sum)) {
-            // If summed to 0, the image is convoled with the values offset
-            case 0:
-                output = filterResultOffset(input, output);
-                break;
-            // If summed to 1, the nonoffset method is used
-            case 1:
-                output = filterRepeatEdge(input, output);
-                break;
-            // All other values use no offset
-            default:
-                output = filterRepeatEdge(input, output);
-                break;
-        }
-
-        return output;
-    }
-
-    /**
-     * A method that applies a convolution with the edge pixels repeated
-     * 
-     * The method works by first enlarging the image and then drawing the original
-     * image back overtop
-     * 
-     * @param input  The image to be convolved
-     * @param output The buffered image used to store the result
-     * @return The convolved image
-     */
-    private BufferedImage filterRepeatEdge(BufferedImage input, BufferedImage output) {
-
-        // A new bufferedimage enlarged by the width and height of the kernel
-        BufferedImage edgeRepeated = new BufferedImage(input.getWidth() + (kernel.getWidth() - 1),
-                input.getHeight() + (kernel.getHeight() - 1), input.getType());
-        // A version of the input image scaled by the width and height of the kernel
-        Image scaledImage = input.getScaledInstance(input.getWidth() + (kernel.getWidth() - 1),
-                input.getHeight() + (kernel.getHeight() - 1),
-                Image.SCALE_DEFAULT);
-        // Uses the bufferedimage's graphics compoonent to draw the scaled image in
-        edgeRepeated.getGraphics().drawImage(scaledImage, 0, 0, null);
-        // Draws the input image over the scaled image offset by the kernel's diamaeter
-        edgeRepeated.getGraphics().drawImage(input, (kernel.getWidth() - 1) / 2, (kernel.getHeight() - 1) / 2, null);
-        // Creates a new convolutionop and applies it to the image
-        ConvolveOp op = new ConvolveOp(kernel, ConvolveOp.EDGE_NO_OP, null);
-        op.filter(edgeRepeated, output);
-
-        return output;
+        // If summed to 0, the image is convolved with the values offset
+        offset = Math.round(sum) == 0 ? 128 : 0;
     }
 
     /**
-     * A method that applies a convolution where the values are offset to allow for
-     * negative results.
-     * 
+     * A method that convolves an image with the kernel
+     *
      * @param input  The image to be convolved
      * @param output The buffered image used to store the result
      * @return The convolved image
      */
-    private BufferedImage filterResultOffset(BufferedImage input, BufferedImage output) {
+    public BufferedImage filter(BufferedImage input, BufferedImage output) {
         // Checks if the input image is null, throws an exception if so.
         if (input == null) {
             throw new NullPointerException("input image is null");
@@ -124,59 +96,92 @@ public class ConvolutionOperation {
                     "same as the output image");
         }
 
-        // Sets the height, width and size.
+        // Gets direct access to the pixels of both images
+        PixelBuffer source = PixelBuffer.of(input);
+        PixelBuffer result = PixelBuffer.of(output);
+
+        // Convolves each band of the image in parallel
+        TileScheduler.run(this, source, result);
+
+        return result.getImage();
+    }
+
+    /**
+     * The halo of a convolution is the radius of its kernel
+     *
+     * @return The larger of the horizontal and vertical kernel radius
+     */
+    @Override
+    public int getHaloRadius() {
+        return Math.max(xRadius, yRadius);
+    }
+
+    /**
+     * A method that convolves the rows from y0 to y1 of the input into the output
+     *
+     * @param input  The image to be convolved
+     * @param output The image used to store the result
+     * @param y0     The first row to convolve
+     * @param y1     The row after the last row to convolve
+     */
+    @Override
+    public void applyTile(PixelBuffer input, PixelBuffer output, int y0, int y1) {
+        int[] in = input.getPixels();
+        int[] out = output.getPixels();
+
+        // Sets the height and width
         int height = input.getHeight();
         int width = input.getWidth();
 
-        // Determines the radius by the width of the kernel
-        int radius = (kernel.getWidth() - 1) / 2;
+        // The column to read for each x position the kernel can reach, mapped back
+        // into the image beyond its edges
+        int[] columns = new int[width + 2 * xRadius];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = edgeIndex(i - xRadius, width, edgeMode);
+        }
+        // The start of each row the kernel covers, filled in for each output row
+        int[] rows = new int[2 * yRadius + 1];
+
+        // The outer two loops visit each pixel in the band
+        for (int y = y0; y < y1; ++y) {
 
-        // The outer two loops visit each pixel in the input image
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
+            // Finds the rows under the kernel. Where the kernel is not inbounds, the row
+            // is mapped back into the image.
+            for (int dy = -yRadius; dy <= yRadius; ++dy) {
+                rows[dy + yRadius] = edgeIndex(y + dy, height, edgeMode) * width;
+            }
 
-                // A float representing each channel in the image with our applied offset
-                float alpha = 128;
-                float red = 128;
-                float green = 128;
-                float blue = 128;
+            for (int x = 0; x < width; ++x) {
+
+                // A float representing each channel in the image with our applied offset,
+                // plus a half so the result is rounded rather than truncated
+                float alpha = offset + 0.5f;
+                float red = offset + 0.5f;
+                float green = offset + 0.5f;
+                float blue = offset + 0.5f;
 
                 // Used to keep track of the position in the kernel
                 int kernelindex = 0;
 
                 // The inner two loops visit each pixel in the window of the kernel
-                for (int dy = -radius; dy <= radius; ++dy) {
-                    for (int dx = -radius; dx <= radius; ++dx) {
-
-                        // Checks that the current coordinate of the kernel is in the bounds of the
-                        // input image. Where the kernel is not inbounds, it repeats the edge pixel.
-                        int ydy = Math.min(Math.max(0, y + dy), height - 1);
-                        int xdx = Math.min(Math.max(0, x + dx), width - 1);
+                for (int ky = 0; ky < rows.length; ++ky) {
+                    int row = rows[ky];
+                    for (int kx = 0; kx <= 2 * xRadius; ++kx) {
 
                         // The pixel of the input image for the operation to applied to
-                        int pixel = input.getRGB(xdx, ydy);
+                        int pixel = in[row + columns[x + kx]];
                         // The value of the kernel to be applied
                         float kernelValue = kernelarray[kernelindex];
                         kernelindex++;
-                        // Bitshifts the individual channels from the pixel int
-                        int pixelAlpha = (pixel & 0xFF000000) >> 24;
-                        int pixelRed = (pixel & 0x00FF0000) >> 16;
-                        int pixelGreen = (pixel & 0x0000FF00) >> 8;
-                        int pixelBlue = (pixel & 0x000000FF);
-                        // Applies the kernel value to the channel
-                        float a = (pixelAlpha * kernelValue);
-                        float r = (pixelRed * kernelValue);
-                        float g = (pixelGreen * kernelValue);
-                        float b = (pixelBlue * kernelValue);
-                        // Sums each channel together
-                        alpha += a;
-                        red += r;
-                        green += g;
-                        blue += b;
+                        // Applies the kernel value to each channel, and sums each channel together
+                        alpha += (pixel >>> 24) * kernelValue;
+                        red += ((pixel >> 16) & 0xFF) * kernelValue;
+                        green += ((pixel >> 8) & 0xFF) * kernelValue;
+                        blue += (pixel & 0xFF) * kernelValue;
                     }
                 }
 
-                // Truncates and casts the float back to an int
+                // Casts the float back to an int and truncates it
                 int alphaInt = truncate((int) alpha);
                 int redInt = truncate((int) red);
                 int greenInt = truncate((int) green);
@@ -185,18 +190,45 @@ public class ConvolutionOperation {
                 // Bitshifts the indidivudal channels back into a single pixel
                 int outputPixel = (alphaInt << 24) | (redInt << 16) | (greenInt << 8) | blueInt;
                 // Places the filtered pixel in the output image
-                output.setRGB(x, y, outputPixel);
+                out[y * width + x] = outputPixel;
             }
         }
-        return output;
+    }
+
+    /**
+     * A method that maps a row or column coordinate into an image
+     *
+     * Coordinates inside the image are returned as they are. Coordinates outside
+     * it are mapped according to the edge mode, however far outside they are.
+     *
+     * @param i        The coordinate, which may be outside the image
+     * @param size     The width or height of the image
+     * @param edgeMode EDGE_CLAMP, EDGE_REFLECT or EDGE_WRAP
+     * @return A coordinate in [0, size)
+     */
+    public static int edgeIndex(int i, int size, int edgeMode) {
+        if (i >= 0 && i < size) {
+            return i;
+        }
+        switch (edgeMode) {
+            case EDGE_REFLECT:
+                // The image and its mirror image repeat every 2 * size pixels
+                int period = 2 * size;
+                int m = ((i % period) + period) % period;
+                return m < size ? m : period - 1 - m;
+            case EDGE_WRAP:
+                return ((i % size) + size) % size;
+            default:
+                return i < 0 ? 0 : size - 1;
+        }
     }
 
     /**
      * A method that bounds an integer between 0 and 255
-     * 
+     *
      * Values less than 0 are returned as 0, values greater than 255 are returned as
      * 255
-     * 
+     *
      * @param input an integer to be bound
      * @return 0 if input less than 0, 255 if input greater than 255
      */
@@ -13,6 +13,9 @@ import java.awt.*;
  */
 public class CropOperation implements ImageOperation, java.io.Serializable {
 
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 2219159218246084341L;
+
     // A shape object of the users selection
     Shape selection;
     // The current scale in the userspace
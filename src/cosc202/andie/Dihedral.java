@@ -0,0 +1,205 @@
+package cosc202.andie;
+
+import java.awt.geom.AffineTransform;
+import java.util.*;
+
+/**
+ * <p>
+ * One of the eight ways of rotating and flipping an image by quarter turns.
+ * </p>
+ *
+ * <p>
+ * Every sequence of {@link RotateImage} and {@link ImageFlip} operations has
+ * the same effect as one of these eight transforms, so a run of them can be
+ * folded into a single transform and applied as at most two operations.
+ * </p>
+ *
+ * <p>
+ * A transform is kept as a 2x2 matrix acting on pixel coordinates measured
+ * from the centre of the image, with x to the right and y down. Each entry is
+ * -1, 0 or 1.
+ * </p>
+ *
+ * @see OperationOptimiser
+ * @version 1.0
+ */
+public final class Dihedral {
+
+    /** Leaves the image as it is. */
+    public static final Dihedral IDENTITY = new Dihedral(1, 0, 0, 1);
+    /** A quarter turn clockwise, as {@link RotateImage#ROTATE_90}. */
+    public static final Dihedral ROTATE_90 = new Dihedral(0, -1, 1, 0);
+    /** A half turn, as {@link RotateImage#ROTATE_180}. */
+    public static final Dihedral ROTATE_180 = new Dihedral(-1, 0, 0, -1);
+    /** A quarter turn anticlockwise, as {@link RotateImage#ROTATE_270}. */
+    public static final Dihedral ROTATE_270 = new Dihedral(0, 1, -1, 0);
+    /** A mirror left to right, as {@link ImageFlip#FLIP_HORIZONTAL}. */
+    public static final Dihedral FLIP_HORIZONTAL = new Dihedral(-1, 0, 0, 1);
+    /** A mirror top to bottom, as {@link ImageFlip#FLIP_VERTICAL}. */
+    public static final Dihedral FLIP_VERTICAL = new Dihedral(1, 0, 0, -1);
+    /** A mirror in the leading diagonal, swapping rows and columns. */
+    public static final Dihedral TRANSPOSE = new Dihedral(0, 1, 1, 0);
+    /** A mirror in the other diagonal. */
+    public static final Dihedral TRANSVERSE = new Dihedral(0, -1, -1, 0);
+
+    /** The entries of the matrix, row by row. */
+    private final int a, b, c, d;
+
+    private Dihedral(int a, int b, int c, int d) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+    }
+
+    /**
+     * <p>
+     * Get the transform an operation makes, if it is a rotation or a flip.
+     * </p>
+     *
+     * @param op An operation.
+     * @return The transform, or null if the operation is not a rotation or flip.
+     */
+    public static Dihedral of(ImageOperation op) {
+        if (op instanceof RotateImage) {
+            switch (((RotateImage) op).getRotation()) {
+                case RotateImage.ROTATE_90:
+                    return ROTATE_90;
+                case RotateImage.ROTATE_180:
+                    return ROTATE_180;
+                case RotateImage.ROTATE_270:
+                    return ROTATE_270;
+            }
+        } else if (op instanceof ImageFlip) {
+            switch (((ImageFlip) op).getDirection()) {
+                case ImageFlip.FLIP_HORIZONTAL:
+                    return FLIP_HORIZONTAL;
+                case ImageFlip.FLIP_VERTICAL:
+                    return FLIP_VERTICAL;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * <p>
+     * Combine this transform with one applied after it.
+     * </p>
+     *
+     * @param next The transform applied second.
+     * @return The transform with the same effect as this one followed by next.
+     */
+    public Dihedral then(Dihedral next) {
+        return new Dihedral(next.a * a + next.b * c, next.a * b + next.b * d, next.c * a + next.d * c,
+                next.c * b + next.d * d);
+    }
+
+    /**
+     * @return The transform that undoes this one.
+     */
+    public Dihedral inverse() {
+        // The matrix is orthogonal, so its inverse is its transpose
+        return new Dihedral(a, c, b, d);
+    }
+
+    /**
+     * @return True if this transform leaves the image as it is.
+     */
+    public boolean isIdentity() {
+        return equals(IDENTITY);
+    }
+
+    /**
+     * @return True if this transform swaps the width and height of the image.
+     */
+    public boolean swapsAxes() {
+        return a == 0;
+    }
+
+    /**
+     * @return True if the pixels of each row of the result come from right to
+     *         left, or bottom to top if the axes are swapped, in the source.
+     */
+    public boolean reversesColumns() {
+        return a + b < 0;
+    }
+
+    /**
+     * @return True if the rows of the result come from the bottom up, or the
+     *         columns from right to left if the axes are swapped, in the source.
+     */
+    public boolean reversesRows() {
+        return c + d < 0;
+    }
+
+    /**
+     * <p>
+     * Get this transform as a mapping from a source image to the result.
+     * </p>
+     *
+     * <p>
+     * Drawing an image through the mapping gives the same pixels as
+     * {@link GeometricTransform#apply}, without making a new image.
+     * </p>
+     *
+     * @param width  The width of the source image.
+     * @param height The height of the source image.
+     * @return The mapping from source coordinates to result coordinates.
+     */
+    public AffineTransform toAffineTransform(int width, int height) {
+        int resultWidth = swapsAxes() ? height : width;
+        int resultHeight = swapsAxes() ? width : height;
+        // Each entry is -1, 0 or 1, so the sums are even and the halves exact
+        return new AffineTransform(a, c, b, d, (resultWidth - a * width - b * height) / 2,
+                (resultHeight - c * width - d * height) / 2);
+    }
+
+    /**
+     * <p>
+     * Get the fewest operations that make this transform.
+     * </p>
+     *
+     * <p>
+     * Rotations and flips take one operation, the identity none, and the two
+     * diagonal mirrors a flip followed by a quarter turn.
+     * </p>
+     *
+     * @return The operations, in the order they are applied.
+     */
+    public List<ImageOperation> toOperations() {
+        List<ImageOperation> ops = new ArrayList<ImageOperation>();
+        if (equals(ROTATE_90)) {
+            ops.add(new RotateImage(RotateImage.ROTATE_90));
+        } else if (equals(ROTATE_180)) {
+            ops.add(new RotateImage(RotateImage.ROTATE_180));
+        } else if (equals(ROTATE_270)) {
+            ops.add(new RotateImage(RotateImage.ROTATE_270));
+        } else if (equals(FLIP_HORIZONTAL)) {
+            ops.add(new ImageFlip(ImageFlip.FLIP_HORIZONTAL));
+        } else if (equals(FLIP_VERTICAL)) {
+            ops.add(new ImageFlip(ImageFlip.FLIP_VERTICAL));
+        } else if (equals(TRANSPOSE)) {
+            ops.add(new ImageFlip(ImageFlip.FLIP_VERTICAL));
+            ops.add(new RotateImage(RotateImage.ROTATE_90));
+        } else if (equals(TRANSVERSE)) {
+            ops.add(new ImageFlip(ImageFlip.FLIP_HORIZONTAL));
+            ops.add(new RotateImage(RotateImage.ROTATE_90));
+        }
+        return ops;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Dihedral)) {
+            return false;
+        }
+        Dihedral t = (Dihedral) other;
+        return a == t.a && b == t.b && c == t.c && d == t.d;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((a * 3 + b) * 3 + c) * 3 + d;
+    }
+
+}
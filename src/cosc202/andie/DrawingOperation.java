@@ -2,14 +2,22 @@ package cosc202.andie;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 
 /**
  * A class used to draw shapes on an image
+ *
+ * Only the pixels under the shape change, so drawing operations are region
+ * operations and can be undone by restoring just that part of the image.
  */
-public class DrawingOperation implements ImageOperation, java.io.Serializable {
+public class DrawingOperation implements RegionOperation, java.io.Serializable {
+
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 7935097552340636097L;
 
     // Reference to the shape drawn by the draw tool
     Shape preview;
@@ -50,12 +58,7 @@ public class DrawingOperation implements ImageOperation, java.io.Serializable {
                 RenderingHints.VALUE_ANTIALIAS_ON);
 
         // Translates, scales and offsets the input image
-        g2d.translate((((input.getWidth()) / 2)),
-                (((input.getHeight()) / 2)));
-        g2d.scale((1 / scale), (1 / scale));
-        g2d.translate(((-input.getWidth()) / 2),
-                ((-input.getHeight()) / 2));
-        g2d.translate(-xOffset, -yOffset);
+        g2d.transform(getTransform(input.getWidth(), input.getHeight()));
 
         // Sets the colour to draw with
         g2d.setColor(colour);
@@ -73,4 +76,40 @@ public class DrawingOperation implements ImageOperation, java.io.Serializable {
 
     }
 
+    /**
+     * Gets the region of the image under the shape
+     *
+     * The bounds of the shape in image coordinates are grown to cover the width
+     * of the outline, which is scaled along with the shape, and the antialiased
+     * edge.
+     *
+     * @param width  The width of the image
+     * @param height The height of the image
+     * @return The rectangle of the image the shape is drawn in
+     */
+    @Override
+    public Rectangle getRegion(int width, int height) {
+        Rectangle region = getTransform(width, height).createTransformedShape(preview).getBounds();
+        int margin = (int) Math.ceil(1 / scale) + 1;
+        region.grow(margin, margin);
+        return region;
+    }
+
+    /**
+     * Gets the transform from the user space to the image
+     *
+     * @param width  The width of the image
+     * @param height The height of the image
+     * @return The transform that undoes the zoom and offsets the shape was drawn
+     *         with
+     */
+    private AffineTransform getTransform(int width, int height) {
+        AffineTransform transform = new AffineTransform();
+        transform.translate(((width) / 2), ((height) / 2));
+        transform.scale((1 / scale), (1 / scale));
+        transform.translate(((-width) / 2), ((-height) / 2));
+        transform.translate(-xOffset, -yOffset);
+        return transform;
+    }
+
 }
@@ -38,6 +38,7 @@ public class EditActions {
         actions = new ArrayList<Action>();
         actions.add(new UndoAction("Undo", "undo", "Undo", Integer.valueOf(KeyEvent.VK_Z)));
         actions.add(new RedoAction("Redo", "redo", "Redo", Integer.valueOf(KeyEvent.VK_Y)));
+        actions.add(new GoToStepAction("Go to Step", null, "Jump to a step in the history", null));
     }
 
     /**
@@ -150,4 +151,66 @@ public class EditActions {
         }
     }
 
+    /**
+     * <p>
+     * Action to jump to any step in the history of the image.
+     * </p>
+     * 
+     * @see EditableImage#goTo(int)
+     */
+    public class GoToStepAction extends ImageAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * <p>
+         * Create a new go to step action.
+         * </p>
+         * 
+         * @param name     The name of the action (ignored if null).
+         * @param iconName An icon to use to represent the action (ignored if null).
+         * @param desc     A brief description of the action (ignored if null).
+         * @param mnemonic A mnemonic key to use as a shortcut (ignored if null).
+         */
+        GoToStepAction(String name, String iconName, String desc, Integer mnemonic) {
+            super(name, iconName, desc, mnemonic);
+        }
+
+        /**
+         * <p>
+         * Callback for when the go to step action is triggered.
+         * </p>
+         * 
+         * <p>
+         * This method is called whenever the GoToStepAction is triggered.
+         * It asks the user for a step, from 0 (the original image) to the last
+         * operation applied or undone, and moves the image to it.
+         * </p>
+         * 
+         * @param e The event triggering this callback.
+         */
+        public void actionPerformed(ActionEvent e) {
+            // Returns early if no image present
+            if (!hasImage()) {
+                return;
+            }
+            EditableImage image = target.getImage();
+
+            // Pop-up dialog box to ask for the step
+            SpinnerNumberModel stepModel = new SpinnerNumberModel(image.getStep(), 0, image.getHistorySize(), 1);
+            JSpinner stepSpinner = new JSpinner(stepModel);
+            int option = JOptionPane.showOptionDialog(target.getParent(), stepSpinner, "Go to step",
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, null, null, null);
+
+            // Returns early if the user cancels the operation.
+            if (option != JOptionPane.OK_OPTION) {
+                return;
+            }
+
+            image.goTo(stepModel.getNumber().intValue());
+            target.repaint();
+            target.getParent().revalidate();
+        }
+    }
+
 }
@@ -2,6 +2,7 @@ package cosc202.andie;
 
 import java.util.*;
 import java.io.*;
+import java.awt.Rectangle;
 import java.awt.image.*;
 import javax.imageio.*;
 import javax.swing.JLabel;
@@ -45,8 +46,20 @@ class EditableImage {
     private BufferedImage original;
     /**
      * The current image, the result of applying {@link ops} to {@link original}.
+     * Only ever replaced as a whole, so it can be painted while an operation is
+     * being worked out in the background, apart from region operations and their
+     * patches, which change just their region in place.
      */
-    private BufferedImage current;
+    private volatile BufferedImage current;
+    /** Counts the changes to {@link current}, so stale results can be spotted. */
+    private volatile long version;
+    /**
+     * Rotations and flips at the top of the stack that have not been applied to
+     * the pixels of {@link current}, combined into one transform.
+     */
+    private Dihedral pending = Dihedral.IDENTITY;
+    /** The number of operations at the top of the stack in {@link pending}. */
+    private int pendingCount;
     /** The sequence of operations currently applied to the image. */
     private Stack<ImageOperation> ops;
     /** A memory of 'undone' operations to support 'redo'. */
@@ -57,11 +70,91 @@ class EditableImage {
     private String imageFilename;
     /** The file where the operation sequence is stored. */
     private String opsFilename;
+    /** The file known to hold {@link original}, or null. */
+    private SourceFile source;
+    /**
+     * True if {@link source} decodes to exactly the pixels of {@link original},
+     * which is not so once the original is saved in a lossy format.
+     */
+    private boolean sourceExact;
+
+    /** The formats ImageIO writes without changing any pixels. */
+    private static final Set<String> LOSSLESS_FORMATS = new HashSet<String>(
+            Arrays.asList("png", "bmp", "tif", "tiff"));
+
+    /**
+     * The most pixels a preview may have before it is subsampled. Set in
+     * megapixels with the {@code andie.previewMegapixels} system property.
+     */
+    private static final long PREVIEW_PIXELS = Long.getLong("andie.previewMegapixels", 2) * 1000000L;
+
+    /** True while an image is being opened in the background. */
+    private volatile boolean loading;
+    /** A quick look at the image being opened, or null. */
+    private volatile Preview preview;
+    /** Counts the images opened, so an opening overtaken by another is dropped. */
+    private int opening;
     /** A boolean representing the current save state */
     private boolean saveState;
 
     private boolean recording;
 
+    /**
+     * How long operations must have taken to replay, in nanoseconds, before the
+     * result is kept as a checkpoint. Set in milliseconds with the
+     * {@code andie.checkpointMillis} system property.
+     */
+    private static final long CHECKPOINT_COST = Long.getLong("andie.checkpointMillis", 100) * 1000000L;
+
+    /** Intermediate results, so undo does not have to replay from the original. */
+    private CheckpointStore checkpoints;
+
+    /** Records what each operation costs. */
+    private final Profiler profiler = new Profiler();
+
+    /** Records each change to the operations as it happens, or null. */
+    private OperationJournal journal;
+
+    /**
+     * Whether rotations and flips at the top of the stack are shown through the
+     * view rather than applied to the pixels. On unless the
+     * {@code andie.lazyTransforms} system property is false.
+     */
+    private boolean lazyTransforms = !"false".equals(System.getProperty("andie.lazyTransforms"));
+
+    /**
+     * How long it would take to remake {@link current} from the nearest
+     * checkpoint or the original, in nanoseconds.
+     */
+    private long replayCost;
+
+    /**
+     * <p>
+     * The pixels a region operation changed, before and after it was applied.
+     * </p>
+     */
+    private static class Patch {
+
+        /** The operations below the operation when it was applied. */
+        final ImageOperation[] below;
+        /** The region of the image before the operation. */
+        final RegionPatch before;
+        /** The region of the image after the operation. */
+        final RegionPatch after;
+
+        Patch(ImageOperation[] below, RegionPatch before, RegionPatch after) {
+            this.below = below;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    /**
+     * Patches of the region operations in the history, so they can be undone
+     * and redone without replaying the stack.
+     */
+    private Map<ImageOperation, Patch> patches = new WeakHashMap<ImageOperation, Patch>();
+
     /**
      * <p>
      * Create a new EditableImage.
@@ -77,6 +170,7 @@ class EditableImage {
         current = null;
         ops = new Stack<ImageOperation>();
         redoOps = new Stack<ImageOperation>();
+        checkpoints = new CheckpointStore();
         imageFilename = null;
         opsFilename = null;
     }
@@ -89,7 +183,7 @@ class EditableImage {
      * @return True if there is an image, false otherwise.
      */
     public boolean hasImage() {
-        return current != null;
+        return current != null && !loading;
     }
 
     /**
@@ -134,7 +228,7 @@ class EditableImage {
      * @param bi The BufferedImage to copy.
      * @return A deep copy of the input.
      */
-    private static BufferedImage deepCopy(BufferedImage bi) {
+    static BufferedImage deepCopy(BufferedImage bi) {
         ColorModel cm = bi.getColorModel();
         boolean isAlphaPremultiplied = cm.isAlphaPremultiplied();
         WritableRaster raster = bi.copyData(null);
@@ -155,49 +249,309 @@ class EditableImage {
      * read the operations from <code>some/path/to/image.png.ops</code>.
      * </p>
      * 
+     * <p>
+     * The decoded image is normalised to a packed int format so that operations
+     * can work directly on its pixel array through a {@link PixelBuffer}.
+     * </p>
+     * 
      * @param filePath The file to open the image from.
      * @throws Exception If something goes wrong.
+     * @see #openInBackground(String, java.awt.Component)
      */
-    public void open(String filePath) throws Exception {
-        // Deletes list of operations when opening an image while one is already open.
-        if (hasImage()) {
-            ops.clear();
-            redoOps.clear();
+    public synchronized void open(String filePath) throws Exception {
+        opening++;
+        loading = false;
+        preview = null;
+        install(load(filePath, null, null));
+    }
+
+    /**
+     * <p>
+     * Open an image from a file in the background.
+     * </p>
+     * 
+     * <p>
+     * Opens the image as {@link #open} does, but the file is read and the
+     * operations are replayed by an {@link OpenWorker}, so this returns at
+     * once. A {@link Preview} of the image is shown as soon as it is decoded,
+     * subsampled if the image is large, and the finished image replaces it when
+     * it is ready. Until then there is no image to edit.
+     * </p>
+     * 
+     * @param filePath The file to open the image from.
+     * @param parent   The component showing the image, repainted as it loads.
+     * @return The worker opening the image.
+     */
+    public synchronized OpenWorker openInBackground(String filePath, java.awt.Component parent) {
+        return startOpening(filePath, null, parent);
+    }
+
+    /**
+     * <p>
+     * Start an {@link OpenWorker} opening an image.
+     * </p>
+     * 
+     * @param filePath The file to open the image from.
+     * @param session  Edits to make to the saved operations, or null.
+     * @param parent   The component showing the image.
+     * @return The worker opening the image.
+     */
+    private OpenWorker startOpening(String filePath, OperationJournal.Session session, java.awt.Component parent) {
+        loading = true;
+        preview = null;
+        OpenWorker worker = new OpenWorker(this, filePath, session, ++opening, parent);
+        worker.start();
+        return worker;
+    }
+
+    /**
+     * <p>
+     * A quick look at an image that is still being opened.
+     * </p>
+     */
+    static class Preview {
+
+        /** The decoded pixels, which may be subsampled. */
+        final BufferedImage image;
+        /** The width of the full image. */
+        final int width;
+        /** The height of the full image. */
+        final int height;
 
+        Preview(BufferedImage image, int width, int height) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * @return True if the preview has every pixel of the image.
+         */
+        boolean isFull() {
+            return image.getWidth() == width && image.getHeight() == height;
+        }
+    }
+
+    /**
+     * <p>
+     * Everything read from the files of an image, ready to be shown.
+     * </p>
+     */
+    static class Loaded {
+
+        String imageFilename;
+        SourceFile source;
+        BufferedImage original;
+        Stack<ImageOperation> ops = new Stack<ImageOperation>();
+        Stack<ImageOperation> redoOps = new Stack<ImageOperation>();
+        /** The session from the journal made to the operations, or null. */
+        OperationJournal.Session session;
+        /** Why the operations file could not be read, or null if it was. */
+        String opsError;
+        /** The result of the operations, less any pending rotations and flips. */
+        BufferedImage current;
+        int pendingCount;
+        long replayCost;
+    }
+
+    /**
+     * <p>
+     * Decode a preview of an image file.
+     * </p>
+     * 
+     * <p>
+     * Images larger than {@link #PREVIEW_PIXELS} are subsampled as they are
+     * decoded, with {@link ImageReadParam#setSourceSubsampling}. Smaller images
+     * are decoded in full, and the preview is then the image itself.
+     * </p>
+     * 
+     * @param file The image file.
+     * @return The preview, or null if the file is not an image.
+     * @throws IOException If the file cannot be read.
+     */
+    static Preview decodePreview(File file) throws IOException {
+        try (javax.imageio.stream.ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int step = (int) Math.ceil(Math.sqrt((double) width * height / PREVIEW_PIXELS));
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                return new Preview(PixelBuffer.normalise(reader.read(0, param)), width, height);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Read an image and its operations, and work out the result.
+     * </p>
+     * 
+     * <p>
+     * Nothing in this EditableImage is changed, so this can run off the Swing
+     * event thread while the old image is still shown. The result is shown by
+     * {@link #install}.
+     * </p>
+     * 
+     * @param filePath The file to open the image from.
+     * @param decoded  A preview of the file already decoded in full, or null.
+     * @param session  Edits left in the journal by a crash, made to the saved
+     *                 operations before they are replayed, or null.
+     * @return What was read.
+     * @throws IOException If the image cannot be read.
+     */
+    Loaded load(String filePath, Preview decoded, OperationJournal.Session session) throws IOException {
+        Loaded loaded = new Loaded();
+        loaded.imageFilename = filePath;
+        String opsFilename = filePath + ".ops";
+        File imageFile = new File(filePath);
+        try {
+            loaded.source = SourceFile.of(imageFile);
+        } catch (IOException ex) {
+            loaded.source = null;
+        }
+        if (decoded != null && decoded.isFull()) {
+            loaded.original = decoded.image;
+        } else {
+            BufferedImage read = ImageIO.read(imageFile);
+            if (read == null) {
+                throw new IOException("Not a supported image file: " + filePath);
+            }
+            loaded.original = PixelBuffer.normalise(read);
         }
-        saveState = true;
-        imageFilename = filePath;
-        opsFilename = imageFilename + ".ops";
-        File imageFile = new File(imageFilename);
-        original = ImageIO.read(imageFile);
-        current = deepCopy(original);
 
         try {
-            FileInputStream fileIn = new FileInputStream(this.opsFilename);
-            ObjectInputStream objIn = new ObjectInputStream(fileIn);
-
-            // Silence the Java compiler warning about type casting.
-            // Understanding the cause of the warning is way beyond
-            // the scope of COSC202, but if you're interested, it has
-            // to do with "type erasure" in Java: the compiler cannot
-            // produce code that fails at this point in all cases in
-            // which there is actually a type mismatch for one of the
-            // elements within the Stack, i.e., a non-ImageOperation.
-            @SuppressWarnings("unchecked")
-            Stack<ImageOperation> opsFromFile = (Stack<ImageOperation>) objIn.readObject();
-            ops = opsFromFile;
-            redoOps.clear();
-            objIn.close();
-            fileIn.close();
+            loaded.ops = readOperations(opsFilename);
         } catch (java.io.StreamCorruptedException ex) {
-            JLabel errorLabel = new JLabel("Ops File Can't be Applied. May Be Corrupted");
+            loaded.opsError = "Ops File Can't be Applied. May Be Corrupted";
+        } catch (Exception e) {
+            // Having no operations file is normal, but one that is there is never
+            // dropped without a word, as saving would then overwrite it
+            if (new File(opsFilename).exists()) {
+                loaded.opsError = "Ops File Can't be Applied: " + e.getMessage();
+            }
+        }
+        if (session != null) {
+            loaded.session = session;
+            session.replay(loaded.ops, loaded.redoOps);
+        }
+
+        // A render saved with the same image and operations saves replaying them
+        if (RenderCache.ENABLED && loaded.source != null && session == null && !loaded.ops.isEmpty()) {
+            loaded.current = RenderCache.read(new File(filePath + ".render"),
+                    RenderCache.keyOf(loaded.source, opsFilename));
+        }
+        if (loaded.current == null) {
+            // Replayed as refresh would, leaving rotations and flips at the top to the view
+            List<ImageOperation> sequence = loaded.ops;
+            while (lazyTransforms && loaded.pendingCount < sequence.size()
+                    && Dihedral.of(sequence.get(sequence.size() - 1 - loaded.pendingCount)) != null) {
+                loaded.pendingCount++;
+            }
+            long begin = System.nanoTime();
+            List<ImageOperation> range = sequence.subList(0, sequence.size() - loaded.pendingCount);
+            List<ImageOperation> replayed = OperationOptimiser.optimise(range);
+            profiler.markMerged(range, replayed);
+            loaded.current = applyAll(deepCopy(loaded.original), replayed, profiler);
+            loaded.replayCost = System.nanoTime() - begin;
+        }
+        return loaded;
+    }
+
+    /**
+     * <p>
+     * Show an image that has been read, in place of the current one.
+     * </p>
+     * 
+     * @param loaded What was read, from {@link #load}.
+     */
+    private void install(Loaded loaded) {
+        // Replaces the operations of any image already open
+        redoOps = loaded.redoOps;
+        checkpoints.clear();
+        patches.clear();
+        // A restored session has edits that are not saved yet
+        saveState = loaded.session == null;
+        imageFilename = loaded.imageFilename;
+        opsFilename = imageFilename + ".ops";
+        source = loaded.source;
+        sourceExact = true;
+        original = loaded.original;
+        ops = loaded.ops;
+        if (loaded.opsError != null) {
+            JLabel errorLabel = new JLabel(loaded.opsError);
             JOptionPane.showMessageDialog(null, errorLabel, "Error",
                     JOptionPane.OK_OPTION, null);
+        }
+        if (journal != null) {
+            // A restored session is in the snapshot, so it is not lost if there is
+            // another crash
+            journal.start(imageFilename, ops, redoOps, loaded.session == null ? 0 : loaded.session.size());
+        }
+        pendingCount = loaded.pendingCount;
+        pending = foldPending();
+        current = loaded.current;
+        version++;
+        replayCost = loaded.replayCost;
+        checkpoint();
+    }
 
-        } catch (Exception e) {
+    /**
+     * <p>
+     * Show the preview of an image being opened in the background.
+     * </p>
+     * 
+     * @param ticket  Which opening the preview belongs to.
+     * @param preview The preview.
+     */
+    synchronized void showPreview(int ticket, Preview preview) {
+        if (ticket == opening) {
+            this.preview = preview;
+        }
+    }
 
+    /**
+     * <p>
+     * Finish opening an image in the background.
+     * </p>
+     * 
+     * @param ticket Which opening the image belongs to.
+     * @param loaded What was read, or null if the image could not be opened,
+     *               which leaves the old image as it was.
+     * @return True if the image was shown, false if another image has been
+     *         opened since.
+     */
+    synchronized boolean finishOpen(int ticket, Loaded loaded) {
+        if (ticket != opening) {
+            return false;
         }
-        this.refresh();
+        loading = false;
+        preview = null;
+        if (loaded != null) {
+            install(loaded);
+        }
+        return true;
+    }
+
+    /**
+     * @return A preview of the image being opened, or null if none is being
+     *         opened or it has not been decoded yet.
+     */
+    Preview getPreview() {
+        return preview;
     }
 
     /**
@@ -214,9 +568,22 @@ class EditableImage {
      * the current operations to <code>some/path/to/image.png.ops</code>.
      * </p>
      * 
+     * <p>
+     * The image is only encoded if there is no unchanged copy of the original
+     * file to use instead. Saving over the file the image was opened from
+     * writes just the operations, and saving to a new file of the same type
+     * copies the original file byte for byte.
+     * </p>
+     * 
+     * <p>
+     * If the {@link RenderCache} is turned on, the current image is also kept in
+     * a render file, written in the background, so opening the image again can
+     * show it without replaying the operations.
+     * </p>
+     * 
      * @throws Exception If something goes wrong.
      */
-    public void save() throws Exception {
+    public synchronized void save() throws Exception {
         // Gaurd clause to stop andie closing when saving without an image. Should come
         // back an add a dialogue warning box.
         if (!this.hasImage()) {
@@ -225,16 +592,74 @@ class EditableImage {
         if (this.opsFilename == null) {
             this.opsFilename = this.imageFilename + ".ops";
         }
-        // Write image file based on file extension
-        String extension = imageFilename.substring(1 + imageFilename.lastIndexOf(".")).toLowerCase();
-        ImageIO.write(original, extension, new File(imageFilename));
-        // Write operations file
-        FileOutputStream fileOut = new FileOutputStream(this.opsFilename);
-        ObjectOutputStream objOut = new ObjectOutputStream(fileOut);
-        objOut.writeObject(this.ops);
-        objOut.close();
-        fileOut.close();
+        writeOriginal(new File(imageFilename));
+        // Write operations file, without any steps that cancel out
+        OperationFile.write(this.opsFilename, OperationOptimiser.optimise(this.ops));
+        writeRender();
         saveState = true;
+        // Started again from the stacks in memory, as the file holds the optimised
+        // operations and none of those undone
+        if (journal != null) {
+            journal.start(imageFilename, ops, redoOps, 0);
+        }
+    }
+
+    /**
+     * <p>
+     * Write the original image to a file, unless the file already holds it.
+     * </p>
+     * 
+     * @param imageFile The file to write to.
+     * @throws IOException If the file cannot be written.
+     */
+    private void writeOriginal(File imageFile) throws IOException {
+        // Write image file based on file extension
+        String extension = extensionOf(imageFile.getName());
+        if (source != null && source.isUnchanged()) {
+            if (source.isFile(imageFile)) {
+                // Already holds the original
+                return;
+            }
+            if (extension.equals(extensionOf(source.getPath().getFileName().toString()))) {
+                source = source.copyTo(imageFile);
+                return;
+            }
+        }
+        ImageIO.write(original, extension, imageFile);
+        source = SourceFile.of(imageFile);
+        sourceExact = LOSSLESS_FORMATS.contains(extension);
+    }
+
+    /**
+     * <p>
+     * Keep the current image as the render of the saved image and operations.
+     * </p>
+     */
+    private void writeRender() {
+        if (!RenderCache.ENABLED || source == null) {
+            return;
+        }
+        File render = new File(imageFilename + ".render");
+        // With no operations the image file itself is the render. If the file
+        // only holds an approximation of the original, replaying from it when
+        // the image is opened again would not give the render, so there is none
+        if (ops.isEmpty() || !sourceExact) {
+            RenderCache.delete(render);
+            return;
+        }
+        byte[] key = RenderCache.keyOf(source, opsFilename);
+        if (key != null) {
+            materialise();
+            RenderCache.write(render, key, current);
+        }
+    }
+
+    /**
+     * @param filename A file name.
+     * @return The extension of the file name, in lower case.
+     */
+    private static String extensionOf(String filename) {
+        return filename.substring(1 + filename.lastIndexOf(".")).toLowerCase();
     }
 
     /**
@@ -266,9 +691,157 @@ class EditableImage {
      * 
      * @param op The operation to apply.
      */
-    public void apply(ImageOperation op) {
-        current = op.apply(current);
+    public synchronized void apply(ImageOperation op) {
+        applyOperation(op);
+        if (journal != null) {
+            journal.push(op);
+        }
+    }
+
+    /**
+     * <p>
+     * Apply an operation without recording it in the journal.
+     * </p>
+     * 
+     * @param op The operation to apply.
+     */
+    private void applyOperation(ImageOperation op) {
+        Dihedral transform = Dihedral.of(op);
+        if (lazyTransforms && transform != null) {
+            pending = pending.then(transform);
+            pendingCount++;
+            ops.add(op);
+            version++;
+            if (recording) {
+                macro.add(op);
+            }
+            saveState = false;
+            return;
+        }
+        // Anything else works on the pixels, so needs them the right way round
+        materialise();
+        // Taken first, as the operation may draw straight onto the current image
+        RegionPatch before = copyRegion(op);
+        long start = System.nanoTime();
+        BufferedImage result = profiler.run(op, current, null, false);
+        keepPatch(op, before, result);
+        push(op, result, System.nanoTime() - start);
+    }
+
+    /**
+     * <p>
+     * Apply an {@link ImageOperation} to this image in the background.
+     * </p>
+     * 
+     * <p>
+     * The operation is worked out by an {@link OperationWorker} on a copy of the
+     * current image, so the image can still be painted meanwhile.
+     * Progress is shown in a dialog over the parent component, from which the
+     * operation can be cancelled. When the operation finishes the result
+     * replaces the current image in one step, and the parent is repainted.
+     * </p>
+     * 
+     * <p>
+     * Rotations and flips that only change the view are applied straight away.
+     * </p>
+     * 
+     * @param op     The operation to apply.
+     * @param parent The component showing the image.
+     * @return The worker applying the operation, or null if it was applied
+     *         straight away.
+     */
+    public OperationWorker applyInBackground(ImageOperation op, java.awt.Component parent) {
+        if (lazyTransforms && Dihedral.of(op) != null) {
+            apply(op);
+            parent.repaint();
+            if (parent.getParent() != null) {
+                parent.getParent().revalidate();
+            }
+            return null;
+        }
+        OperationWorker worker = new OperationWorker(this, op, parent);
+        worker.start();
+        return worker;
+    }
+
+    /**
+     * <p>
+     * Get the version of the current image.
+     * </p>
+     * 
+     * <p>
+     * The version changes every time the current image is replaced, so it can be
+     * used to tell whether the image has changed since it was last looked at.
+     * </p>
+     * 
+     * @return The version of the current image.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * <p>
+     * Get a copy of the current image.
+     * </p>
+     * 
+     * <p>
+     * Any pending rotations and flips are applied to the pixels first.
+     * </p>
+     * 
+     * @return A copy of the current image, which the caller may change.
+     */
+    synchronized BufferedImage copyCurrent() {
+        materialise();
+        return deepCopy(current);
+    }
+
+    /**
+     * <p>
+     * Add the result of an operation worked out elsewhere.
+     * </p>
+     * 
+     * <p>
+     * The result is only accepted if the image has not changed since the
+     * operation started on it. Otherwise the caller should start again from the
+     * new current image.
+     * </p>
+     * 
+     * @param op      The operation that was applied.
+     * @param result  The result of applying it.
+     * @param version The version of the image it was applied to.
+     * @param cost    How long the operation took, in nanoseconds.
+     * @return True if the result was added, false if the image had changed.
+     */
+    synchronized boolean commit(ImageOperation op, BufferedImage result, long version, long cost) {
+        if (version != this.version) {
+            return false;
+        }
+        // The operation was applied to a copy, so the current image is still as it was
+        keepPatch(op, copyRegion(op), result);
+        push(op, result, cost);
+        if (journal != null) {
+            journal.push(op);
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Make the result of an operation the current image and record the
+     * operation.
+     * </p>
+     * 
+     * @param op     The operation that was applied.
+     * @param result The result of applying it to the current image.
+     * @param cost   How long the operation took, in nanoseconds.
+     */
+    private void push(ImageOperation op, BufferedImage result, long cost) {
+        current = result;
+        version++;
+        replayCost += cost;
         ops.add(op);
+        checkpoint();
         if (recording) {
             macro.add(op);
         }
@@ -279,13 +852,34 @@ class EditableImage {
      * <p>
      * Undo the last {@link ImageOperation} applied to the image.
      * </p>
+     * 
+     * <p>
+     * A region operation is undone by copying back the pixels it changed, if
+     * they were kept. Anything else is undone by replaying the operations below
+     * it.
+     * </p>
      */
-    public void undo() {
+    public synchronized void undo() {
         if (ops.empty()) {
             return;
         }
-        redoOps.push(ops.pop());
-        refresh();
+        ImageOperation op = ops.pop();
+        redoOps.push(op);
+        if (journal != null) {
+            journal.undo();
+        }
+        Patch patch = patches.get(op);
+        if (pendingCount > 0) {
+            // Only the view changes
+            pendingCount--;
+            pending = foldPending();
+            version++;
+        } else if (patch != null && matches(patch)) {
+            patch.before.paste(current);
+            version++;
+        } else {
+            refresh();
+        }
         saveState = false;
     }
 
@@ -293,27 +887,330 @@ class EditableImage {
      * <p>
      * Reapply the most recently {@link undo}ne {@link ImageOperation} to the image.
      * </p>
+     * 
+     * <p>
+     * A region operation is redone by copying in the pixels it produced, if they
+     * were kept and the operations below it are the same as when it was applied.
+     * </p>
      */
-    public void redo() {
+    public synchronized void redo() {
         if (redoOps.empty()) {
             return;
         }
-        apply(redoOps.pop());
+        ImageOperation op = redoOps.pop();
+        Patch patch = patches.get(op);
+        if (patch != null && patch.after != null && matches(patch)) {
+            materialise();
+            patch.after.paste(current);
+            push(op, current, 0);
+        } else {
+            applyOperation(op);
+        }
+        if (journal != null) {
+            journal.redo();
+        }
         saveState = false;
     }
 
+    /**
+     * <p>
+     * Copy the region of the current image a region operation may change.
+     * </p>
+     * 
+     * @param op The operation about to be applied.
+     * @return The pixels of the region, or null if the operation is not a region
+     *         operation or its region is empty.
+     */
+    private RegionPatch copyRegion(ImageOperation op) {
+        if (!(op instanceof RegionOperation)) {
+            return null;
+        }
+        Rectangle region = RegionPatch.regionOf((RegionOperation) op, current.getWidth(), current.getHeight());
+        return region == null ? null : new RegionPatch(current, region);
+    }
+
+    /**
+     * <p>
+     * Keep the patches of a region operation that is about to be pushed.
+     * </p>
+     * 
+     * @param op     The operation.
+     * @param before The region before the operation, from {@link #copyRegion}.
+     * @param result The result of applying the operation to the current image.
+     */
+    private void keepPatch(ImageOperation op, RegionPatch before, BufferedImage result) {
+        if (before == null) {
+            patches.remove(op);
+            return;
+        }
+        Rectangle region = before.getRegion();
+        // An operation that changed the size of the image cannot be redone with a patch
+        RegionPatch after = result.getWidth() == current.getWidth() && result.getHeight() == current.getHeight()
+                ? new RegionPatch(result, region)
+                : null;
+        patches.put(op, new Patch(ops.toArray(new ImageOperation[ops.size()]), before, after));
+    }
+
+    /**
+     * @param patch The patch of an operation being undone or redone.
+     * @return True if the operations below it are the ones it was applied on top
+     *         of, so the patch fits the current image.
+     */
+    private boolean matches(Patch patch) {
+        if (patch.below.length != ops.size()) {
+            return false;
+        }
+        for (int i = 0; i < patch.below.length; i++) {
+            if (patch.below[i] != ops.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Jump straight to a step in the history of the image.
+     * </p>
+     * 
+     * <p>
+     * Step 0 is the original image, and each step after that has one more
+     * operation applied. Steps beyond the current one are the operations that
+     * have been undone, which are redone in order.
+     * The image is remade from the nearest checkpoint at or below the step.
+     * </p>
+     * 
+     * @param step The step to go to, from 0 to {@link #getHistorySize()}.
+     */
+    public synchronized void goTo(int step) {
+        step = Math.max(0, Math.min(step, getHistorySize()));
+        if (step == ops.size()) {
+            return;
+        }
+        // One step forward can be applied directly
+        if (step == ops.size() + 1) {
+            redo();
+            return;
+        }
+        while (ops.size() > step) {
+            redoOps.push(ops.pop());
+        }
+        while (ops.size() < step) {
+            ops.push(redoOps.pop());
+        }
+        if (journal != null) {
+            journal.goTo(step);
+        }
+        refresh();
+        saveState = false;
+    }
+
+    /**
+     * @return The operations currently applied to the image, in order.
+     */
+    public synchronized List<ImageOperation> getOperations() {
+        return new ArrayList<ImageOperation>(ops);
+    }
+
+    /**
+     * @return The store of checkpoints in the history of the image.
+     */
+    public CheckpointStore getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * @return The profiler recording what each operation costs.
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * <p>
+     * Record every change to the operations in a journal from now on.
+     * </p>
+     * 
+     * <p>
+     * The journal is started again each time an image is opened or saved,
+     * from a snapshot of the operations applied and undone at that point.
+     * </p>
+     * 
+     * @param journal The journal, or null to stop recording.
+     */
+    public synchronized void setJournal(OperationJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * <p>
+     * Restore a session left in a journal by a crash.
+     * </p>
+     * 
+     * <p>
+     * The image the session started from is opened again, with the operations
+     * applied, undone and redone since made to its saved stack before it is
+     * replayed, so it is only replayed once. The restored operations then
+     * start the current journal, so they are not lost if there is another
+     * crash.
+     * </p>
+     * 
+     * @param session The session read from the journal.
+     * @throws Exception If the image cannot be opened.
+     * @see #recoverInBackground(OperationJournal.Session, java.awt.Component)
+     */
+    public synchronized void recover(OperationJournal.Session session) throws Exception {
+        opening++;
+        loading = false;
+        preview = null;
+        install(load(session.getImageFilename(), null, session));
+    }
+
+    /**
+     * <p>
+     * Restore a session left in a journal by a crash, in the background.
+     * </p>
+     * 
+     * <p>
+     * Restores the session as {@link #recover} does, through an
+     * {@link OpenWorker} as {@link #openInBackground} opens an image. The
+     * journal keeps the session until it has been restored.
+     * </p>
+     * 
+     * @param session The session read from the journal.
+     * @param parent  The component showing the image, repainted as it loads.
+     * @return The worker restoring the session.
+     */
+    public synchronized OpenWorker recoverInBackground(OperationJournal.Session session, java.awt.Component parent) {
+        return startOpening(session.getImageFilename(), session, parent);
+    }
+
+    /**
+     * @return The step of the history the image is at, which is the number of
+     *         operations applied.
+     */
+    public int getStep() {
+        return ops.size();
+    }
+
+    /**
+     * @return The number of steps in the history, including those undone.
+     */
+    public int getHistorySize() {
+        return ops.size() + redoOps.size();
+    }
+
     /**
      * <p>
      * Get the current image after the operations have been applied.
      * </p>
      * 
+     * <p>
+     * Any rotations and flips only shown through the view are applied to the
+     * pixels first.
+     * </p>
+     * 
      * @return The result of applying all of the current operations to the
      *         {@link original} image.
      */
-    public BufferedImage getCurrentImage() {
+    public synchronized BufferedImage getCurrentImage() {
+        materialise();
+        return current;
+    }
+
+    /**
+     * <p>
+     * Get the pixels of the current image, before any pending rotations and
+     * flips.
+     * </p>
+     * 
+     * <p>
+     * The image is shown by drawing these pixels through
+     * {@link #getViewTransform()}. Hold the lock on this EditableImage to get
+     * both together.
+     * </p>
+     * 
+     * @return The current pixels, without the pending transform.
+     */
+    public BufferedImage getViewImage() {
         return current;
     }
 
+    /**
+     * @return The rotations and flips at the top of the stack that have not been
+     *         applied to the pixels, as one transform.
+     */
+    public Dihedral getViewTransform() {
+        return pending;
+    }
+
+    /**
+     * @return The width of the current image as shown, after any pending
+     *         rotations and flips.
+     */
+    public synchronized int getWidth() {
+        return pending.swapsAxes() ? current.getHeight() : current.getWidth();
+    }
+
+    /**
+     * @return The height of the current image as shown, after any pending
+     *         rotations and flips.
+     */
+    public synchronized int getHeight() {
+        return pending.swapsAxes() ? current.getWidth() : current.getHeight();
+    }
+
+    /**
+     * <p>
+     * Choose whether rotations and flips at the top of the stack are shown
+     * through the view, rather than applied to the pixels straight away.
+     * </p>
+     * 
+     * <p>
+     * In either case the pixels are brought up to date before any other
+     * operation, and when the image is exported.
+     * </p>
+     * 
+     * @param lazy True to only apply rotations and flips to the pixels when
+     *             needed.
+     */
+    public synchronized void setLazyTransforms(boolean lazy) {
+        lazyTransforms = lazy;
+        if (!lazy) {
+            materialise();
+        }
+    }
+
+    /**
+     * <p>
+     * Apply any pending rotations and flips to the pixels of the current image.
+     * </p>
+     */
+    private void materialise() {
+        if (pendingCount == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        current = GeometricTransform.apply(current, pending);
+        replayCost += System.nanoTime() - start;
+        pending = Dihedral.IDENTITY;
+        pendingCount = 0;
+        version++;
+        checkpoint();
+    }
+
+    /**
+     * @return The combined transform of the top {@link pendingCount} operations
+     *         on the stack.
+     */
+    private Dihedral foldPending() {
+        Dihedral transform = Dihedral.IDENTITY;
+        for (ImageOperation op : ops.subList(ops.size() - pendingCount, ops.size())) {
+            transform = transform.then(Dihedral.of(op));
+        }
+        return transform;
+    }
+
     /**
      * <p>
      * Reapply the current list of operations to the original.
@@ -332,13 +1229,120 @@ class EditableImage {
      * <p>
      * Edited to where macros could be implemented
      * </p>
+     * 
+     * <p>
+     * The replay starts from the nearest usable checkpoint rather than the
+     * original where there is one, and steps that cancel out are skipped by the
+     * {@link OperationOptimiser}. The stack itself is left as it is, so each
+     * operation can still be undone on its own.
+     * Package-private so that it can be benchmarked.
+     * </p>
+     */
+    void refresh() {
+        // Rotations and flips at the top are left to the view
+        pendingCount = 0;
+        while (lazyTransforms && pendingCount < ops.size()
+                && Dihedral.of(ops.get(ops.size() - 1 - pendingCount)) != null) {
+            pendingCount++;
+        }
+        pending = foldPending();
+        int end = ops.size() - pendingCount;
+        int start = checkpoints.nearest(ops, end);
+        BufferedImage image = start == 0 ? deepCopy(original) : checkpoints.restore(start);
+        while (image == null) {
+            // The checkpoint could not be read back and has been dropped, so the
+            // next nearest one is tried, down to the original
+            start = checkpoints.nearest(ops, end);
+            image = start == 0 ? deepCopy(original) : checkpoints.restore(start);
+        }
+        long begin = System.nanoTime();
+        List<ImageOperation> replayed = OperationOptimiser.optimise(ops.subList(start, end));
+        profiler.markMerged(ops.subList(start, end), replayed);
+        current = applyAll(image, replayed, profiler);
+        version++;
+        replayCost = System.nanoTime() - begin;
+        checkpoint();
+    }
+
+    /**
+     * <p>
+     * Keep {@link current} as a checkpoint if it has become costly to remake.
+     * </p>
      */
-    private void refresh() {
-        current = deepCopy(original);
-        for (ImageOperation op : ops) {
-            current = op.apply(current);
+    private void checkpoint() {
+        if (replayCost >= CHECKPOINT_COST) {
+            checkpoints.put(ops, ops.size() - pendingCount, current);
+            replayCost = 0;
         }
+    }
 
+    /**
+     * <p>
+     * Apply a sequence of operations to an image.
+     * </p>
+     * 
+     * <p>
+     * Each run of consecutive {@link LookupOperation}s is combined into a single
+     * {@link LookupTable}, so a stack of colour adjustments costs one pass over
+     * the image rather than one pass each.
+     * Other operations are applied one at a time, in order.
+     * </p>
+     * 
+     * @param image The image to start from. May be changed in place.
+     * @param sequence The operations to apply.
+     * @return The result of applying every operation in turn.
+     */
+    static BufferedImage applyAll(BufferedImage image, List<ImageOperation> sequence) {
+        return applyAll(image, sequence, null);
+    }
+
+    /**
+     * <p>
+     * Apply a sequence of operations to an image, recording what each costs.
+     * </p>
+     * 
+     * @param image The image to start from. May be changed in place.
+     * @param sequence The operations to apply.
+     * @param profiler Where to record the cost of each operation, or null.
+     * @return The result of applying every operation in turn.
+     * @see #applyAll(BufferedImage, List)
+     */
+    static BufferedImage applyAll(BufferedImage image, List<ImageOperation> sequence, Profiler profiler) {
+        List<LookupOperation> run = new ArrayList<LookupOperation>();
+        for (ImageOperation op : sequence) {
+            if (op instanceof LookupOperation) {
+                run.add((LookupOperation) op);
+                continue;
+            }
+            image = applyRun(image, run, profiler);
+            image = profiler == null ? op.apply(image) : profiler.run(op, image, null, true);
+        }
+        return applyRun(image, run, profiler);
+    }
+
+    /**
+     * <p>
+     * Apply a run of lookup operations as one, and empty the run.
+     * </p>
+     * 
+     * @param image The image to apply the run to.
+     * @param run The lookup operations collected so far.
+     * @param profiler Where to record the cost of the run, or null.
+     * @return The resulting image.
+     */
+    private static BufferedImage applyRun(BufferedImage image, List<LookupOperation> run, Profiler profiler) {
+        if (run.isEmpty()) {
+            return image;
+        }
+        BufferedImage result;
+        if (run.size() == 1) {
+            // A single operation is applied as it is, to skip composing its table
+            result = profiler == null ? run.get(0).apply(image) : profiler.run(run.get(0), image, null, true);
+        } else {
+            result = profiler == null ? LookupTable.compose(run).apply(image) : profiler.runFused(run, image);
+        }
+        run.clear();
+        return result;
     }
 
     /**
@@ -356,7 +1360,7 @@ class EditableImage {
      * 
      * @return True if saved in current state, otherwise false
      */
-    public boolean getSaveState() {
+    public synchronized boolean getSaveState() {
         return saveState;
     }
 
@@ -383,30 +1387,39 @@ class EditableImage {
         return this.recording;
     }
 
-    public void openMacro(String macroFilePath) throws Exception {
+    /**
+     * <p>
+     * Read a sequence of operations from an <code>.ops</code> or
+     * <code>.macro</code> file.
+     * </p>
+     * 
+     * <p>
+     * Both the binary format of {@link OperationFile} and older files saved
+     * with Java serialization are read.
+     * </p>
+     * 
+     * @param path The file to read.
+     * @return The operations in the file, in the order they are applied.
+     * @throws IOException            If the file cannot be read or is corrupted.
+     * @throws ClassNotFoundException If the file holds an unknown operation.
+     */
+    static Stack<ImageOperation> readOperations(String path) throws IOException, ClassNotFoundException {
+        return OperationFile.read(path);
+    }
+
+    public synchronized void openMacro(String macroFilePath) throws Exception {
         // Deletes list of operations when opening an image while one is already open.
         saveState = true;
 
         try {
-            FileInputStream fileIn = new FileInputStream(macroFilePath);
-            ObjectInputStream objIn = new ObjectInputStream(fileIn);
-
-            // Silence the Java compiler warning about type casting.
-            // Understanding the cause of the warning is way beyond
-            // the scope of COSC202, but if you're interested, it has
-            // to do with "type erasure" in Java: the compiler cannot
-            // produce code that fails at this point in all cases in
-            // which there is actually a type mismatch for one of the
-            // elements within the Stack, i.e., a non-ImageOperation.
-            @SuppressWarnings("unchecked")
-            Stack<ImageOperation> macroFromFile = (Stack<ImageOperation>) objIn.readObject();
-            macro = macroFromFile;
-
-            objIn.close();
-            fileIn.close();
-
-            for (ImageOperation op : macro) {
+            macro = readOperations(macroFilePath);
+
+            // Steps of the macro that cancel out are not added at all
+            for (ImageOperation op : OperationOptimiser.optimise(macro)) {
                 ops.add(op);
+                if (journal != null) {
+                    journal.push(op);
+                }
             }
 
         } catch (Exception ex) {
@@ -428,11 +1441,7 @@ class EditableImage {
 
         // Write image file based on file extension
         // Write operations file
-        FileOutputStream fileOut = new FileOutputStream(macroFilePath + ".macro");
-        ObjectOutputStream objOut = new ObjectOutputStream(fileOut);
-        objOut.writeObject(this.macro);
-        objOut.close();
-        fileOut.close();
+        OperationFile.write(macroFilePath + ".macro", OperationOptimiser.optimise(this.macro));
         macro = null;
         saveState = true;
     }
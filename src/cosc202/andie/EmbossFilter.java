@@ -12,11 +12,20 @@ import java.awt.image.*;
  */
 public class EmbossFilter implements ImageOperation, java.io.Serializable {
 
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = -1013399190872818558L;
+
     /**
      * The direction of the emboss filter.
      */
     private int direction;
 
+    /**
+     * How pixels beyond the edge of the image are found, one of the
+     * ConvolutionOperation edge modes.
+     */
+    private int edgeMode;
+
     public static final int NORTHWEST = 0;
     public static final int NORTH = 1;
     public static final int NORTHEAST = 2;
@@ -51,7 +60,21 @@ public class EmbossFilter implements ImageOperation, java.io.Serializable {
      * @param direction The direction of the newly constructed EmbossFilter
      */
     EmbossFilter(int direction) {
+        this(direction, ConvolutionOperation.EDGE_CLAMP);
+    }
+
+    /**
+     * <p>
+     * Construct an Emboss filter with the given direction and edge mode.
+     * </p>
+     * 
+     * @param direction The direction of the newly constructed EmbossFilter
+     * @param edgeMode  How pixels beyond the edge of the image are found
+     * @see ConvolutionOperation#edgeIndex(int, int, int)
+     */
+    EmbossFilter(int direction, int edgeMode) {
         this.direction = direction;
+        this.edgeMode = edgeMode;
     }
 
     /**
@@ -114,12 +137,28 @@ public class EmbossFilter implements ImageOperation, java.io.Serializable {
         }
         // applying the kernel with the convolution operation
         Kernel kernel = new Kernel(3, 3, array);
-        ConvolutionOperation convOp = new ConvolutionOperation(kernel);
+        ConvolutionOperation convOp = new ConvolutionOperation(kernel, edgeMode);
         BufferedImage output = new BufferedImage(input.getColorModel(), input.copyData(null),
                 input.isAlphaPremultiplied(), null);
-        convOp.filter(input, output);
+        output = convOp.filter(input, output);
 
         return output;
     }
 
+    /**
+     * @return The direction of the emboss, one of {@link #NORTHWEST} to
+     *         {@link #WEST}.
+     */
+    int getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return How pixels beyond the edge of the image are read, one of the
+     *         {@link ConvolutionOperation} edge modes.
+     */
+    int getEdgeMode() {
+        return edgeMode;
+    }
+
 }
@@ -136,7 +136,7 @@ public class FileActions {
             if (result == JFileChooser.APPROVE_OPTION) {
                 try {
                     String imageFilepath = fileChooser.getSelectedFile().getCanonicalPath();
-                    target.getImage().open(imageFilepath);
+                    target.getImage().openInBackground(imageFilepath, target);
                 } catch (Exception ex) {
                     JLabel errorLabel = new JLabel(ex.toString());
                     JOptionPane.showMessageDialog(target.getParent(), errorLabel, "Error",
@@ -426,10 +426,11 @@ public class FileActions {
          * </p>
          * 
          * @param e The event triggering this callback.
+         * @see Andie#exit()
          */
         public void actionPerformed(ActionEvent e) {
 
-            System.exit(0);
+            Andie.exit();
         }
 
     }
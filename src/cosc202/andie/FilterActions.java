@@ -3,6 +3,7 @@ package cosc202.andie;
 import java.awt.Container;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.GridLayout;
 import java.awt.Image;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
@@ -14,12 +15,14 @@ import javax.imageio.ImageIO;
 import javax.swing.Action;
 import javax.swing.Icon;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
 
@@ -36,6 +39,11 @@ import javax.swing.SpinnerNumberModel;
  * </p>
  * 
  * <p>
+ * The filters that ask for a radius also ask how pixels beyond the edges of
+ * the image are found, as one of the {@link ConvolutionOperation} edge modes.
+ * </p>
+ * 
+ * <p>
  * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA
  * 4.0</a>
  * </p>
@@ -49,6 +57,9 @@ public class FilterActions {
     protected ArrayList<Action> actions;
     protected ArrayList<Action> sobelActions;
 
+    /** The names of the edge modes, in the order of their values. */
+    private static final String[] EDGE_MODES = { "Repeat edge pixels", "Mirror at edges", "Wrap around" };
+
     /**
      * <p>
      * Create a set of Filter menu actions.
@@ -104,6 +115,24 @@ public class FilterActions {
         return fileMenu;
     }
 
+    /**
+     * <p>
+     * Lay out the fields of a dialog asking for a filter radius and edge mode.
+     * </p>
+     * 
+     * @param radiusSpinner The field for the radius.
+     * @param edgeBox       The field for the edge mode.
+     * @return A panel holding the labelled fields.
+     */
+    private static JPanel radiusPanel(JSpinner radiusSpinner, JComboBox<String> edgeBox) {
+        JPanel panel = new JPanel(new GridLayout(2, 2, 8, 4));
+        panel.add(new JLabel("Radius"));
+        panel.add(radiusSpinner);
+        panel.add(new JLabel("Edges"));
+        panel.add(edgeBox);
+        return panel;
+    }
+
     /**
      * <p>
      * Action to blur an image with a mean filter.
@@ -134,8 +163,8 @@ public class FilterActions {
          * 
          * <p>
          * This method is called whenever the MeanFilterAction is triggered.
-         * It prompts the user for a filter radius, then applys an appropriately sized
-         * {@link MeanFilter}.
+         * It prompts the user for a filter radius and edge mode, then applys an
+         * appropriately sized {@link MeanFilter}.
          * </p>
          * 
          * @param e The event triggering this callback.
@@ -150,7 +179,9 @@ public class FilterActions {
             // Pop-up dialog box to ask for the radius value.
             SpinnerNumberModel radiusModel = new SpinnerNumberModel(1, 1, 10, 1);
             JSpinner radiusSpinner = new JSpinner(radiusModel);
-            int option = JOptionPane.showOptionDialog(target.getParent(), radiusSpinner, "Enter filter radius",
+            JComboBox<String> edgeBox = new JComboBox<String>(EDGE_MODES);
+            int option = JOptionPane.showOptionDialog(target.getParent(), radiusPanel(radiusSpinner, edgeBox),
+                    "Enter filter radius",
                     JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, (Icon) getValue(Action.LARGE_ICON_KEY),
                     null, null);
 
@@ -161,11 +192,8 @@ public class FilterActions {
             radius = radiusModel.getNumber().intValue();
 
             // Create and apply the filter
-            target.getImage().apply(new MeanFilter(radius));
+            applyInBackground(new MeanFilter(radius, edgeBox.getSelectedIndex()));
             // target.getImage().apply(new SharpenFilter(radius));
-
-            target.repaint();
-            target.getParent().revalidate();
         }
 
     }
@@ -201,10 +229,7 @@ public class FilterActions {
                 return;
             }
             // Create and apply the filter
-            target.getImage().apply(new SharpenFilter());
-
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new SharpenFilter());
         }
     }
 
@@ -232,8 +257,8 @@ public class FilterActions {
          * 
          * 
          * This method is called whenever the MedianFilterAction is triggered.
-         * It prompts the user for a filter radius, then applys an appropriately sized
-         * {@link MedianFilter}.
+         * It prompts the user for a filter radius and edge mode, then applys an
+         * appropriately sized {@link MedianFilter}.
          * 
          * 
          * @param e The event triggering this callback.
@@ -250,7 +275,9 @@ public class FilterActions {
             // Pop-up dialog box to ask for the radius value.
             SpinnerNumberModel radiusModel = new SpinnerNumberModel(1, 1, 10, 1);
             JSpinner radiusSpinner = new JSpinner(radiusModel);
-            int option = JOptionPane.showOptionDialog(target.getParent(), radiusSpinner, "Enter filter radius",
+            JComboBox<String> edgeBox = new JComboBox<String>(EDGE_MODES);
+            int option = JOptionPane.showOptionDialog(target.getParent(), radiusPanel(radiusSpinner, edgeBox),
+                    "Enter filter radius",
                     JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, (Icon) getValue(Action.LARGE_ICON_KEY),
                     null, null);
 
@@ -262,9 +289,7 @@ public class FilterActions {
             radius = radiusModel.getNumber().intValue();
 
             // Create and apply the filter
-            target.getImage().apply(new MedianFilter(radius));
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new MedianFilter(radius, edgeBox.getSelectedIndex()));
 
         }
 
@@ -293,8 +318,8 @@ public class FilterActions {
          * 
          * <p>
          * This method is called whenever the MeanFilterAction is triggered.
-         * It prompts the user for a filter radius, then applys an appropriately sized
-         * {@link MeanFilter}.
+         * It prompts the user for a filter radius and edge mode, then applys an
+         * appropriately sized {@link MeanFilter}.
          * </p>
          * 
          * @param e The event triggering this callback.
@@ -306,10 +331,13 @@ public class FilterActions {
             // Determine the radius - ask the user.
             int radius = 1;
 
-            // Pop-up dialog box to ask for the radius value.
-            SpinnerNumberModel radiusModel = new SpinnerNumberModel(1, 1, 10, 1);
+            // Pop-up dialog box to ask for the radius value. Large radii use the recursive
+            // Gaussian, which costs the same whatever the radius, so they are allowed here.
+            SpinnerNumberModel radiusModel = new SpinnerNumberModel(1, 1, 500, 1);
             JSpinner radiusSpinner = new JSpinner(radiusModel);
-            int option = JOptionPane.showOptionDialog(target.getParent(), radiusSpinner, "Enter filter radius",
+            JComboBox<String> edgeBox = new JComboBox<String>(EDGE_MODES);
+            int option = JOptionPane.showOptionDialog(target.getParent(), radiusPanel(radiusSpinner, edgeBox),
+                    "Enter filter radius",
                     JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, (Icon) getValue(Action.LARGE_ICON_KEY),
                     null, null);
 
@@ -320,10 +348,7 @@ public class FilterActions {
             radius = radiusModel.getNumber().intValue();
 
             // Create and apply the filter
-            target.getImage().apply(new GaussianFilter(radius));
-
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new GaussianFilter(radius, edgeBox.getSelectedIndex()));
         }
 
     }
@@ -374,9 +399,7 @@ public class FilterActions {
                 return;
             }
             // Create and apply the filter
-            target.getImage().apply(new SobelFilter(direction));
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new SobelFilter(direction));
         }
     }
 
@@ -471,8 +494,7 @@ public class FilterActions {
                 if (buttons[i] == e.getSource() && !executedButton) {
                     // Setting the direction of the emboss filter.
                     direction = i;
-                    target.getImage().apply(new EmbossFilter(direction));
-                    target.repaint();
+                    applyInBackground(new EmbossFilter(direction));
                     executedButton = true;
                     frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
                     return;
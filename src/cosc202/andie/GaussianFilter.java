@@ -1,30 +1,90 @@
 package cosc202.andie;
 
 import java.awt.image.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * <p>
+ * ImageOperation to apply a Gaussian blur filter.
+ * </p>
+ *
+ * <p>
+ * A Gaussian blur is separable: blurring every row and then every column with a
+ * 1 dimensional Gaussian gives the same result as convolving with the full 2
+ * dimensional kernel, at a cost of O(radius) rather than O(radius^2) per pixel.
+ * Small radii are blurred this way.
+ * </p>
+ *
+ * <p>
+ * Large radii use the recursive Gaussian of Young and van Vliet ("Recursive
+ * implementation of the Gaussian filter", 1995), which blurs each row and column
+ * with a short forward and backward filter. Its cost per pixel does not depend
+ * on the radius at all.
+ * </p>
+ *
+ * <p>
+ * Both ways find the pixels beyond the edges of the image by the edge mode.
+ * The recursive filter reads the radius past each edge before starting from
+ * the repeated outermost value, which is as far as the convolution reaches.
+ * </p>
+ */
 public class GaussianFilter implements ImageOperation, java.io.Serializable {
 
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 4167002954462052217L;
+
+    /**
+     * The largest radius blurred by direct convolution. Larger radii use the
+     * recursive filter, which is cheaper from here on and accurate once the
+     * standard deviation is over about 2.
+     */
+    public static final int MAX_SEPARABLE_RADIUS = 8;
+
+    /** 1 dimensional kernels already made, by radius. */
+    private static final Map<Integer, float[]> KERNELS = new ConcurrentHashMap<Integer, float[]>();
+
     /**
      * The size of filter to apply. A radius of 1 is a 3x3 filter, a radius of 2 a
      * 5x5 filter, and so forth.
      */
     private int radius;
 
+    /**
+     * How pixels beyond the edge of the image are found, one of the
+     * ConvolutionOperation edge modes.
+     */
+    private int edgeMode;
+
     /**
      * <p>
      * Construct a Gaussian filter with the given size.
      * </p>
-     * 
+     *
      * <p>
      * The size of the filter is the 'radius' of the convolution kernel used.
      * A size of 1 is a 3x3 filter, 2 is 5x5, and so on.
      * Larger filters give a stronger blurring effect.
      * </p>
-     * 
+     *
      * @param radius The radius of the newly constructed GaussianFilter
      */
     GaussianFilter(int radius) {
+        this(radius, ConvolutionOperation.EDGE_CLAMP);
+    }
+
+    /**
+     * <p>
+     * Construct a Gaussian filter with the given size and edge mode.
+     * </p>
+     *
+     * @param radius   The radius of the newly constructed GaussianFilter
+     * @param edgeMode How pixels beyond the edge of the image are found
+     * @see ConvolutionOperation#edgeIndex(int, int, int)
+     */
+    GaussianFilter(int radius, int edgeMode) {
         this.radius = radius;
+        this.edgeMode = edgeMode;
     }
 
     /**
@@ -35,7 +95,7 @@ public class GaussianFilter implements ImageOperation, java.io.Serializable {
      * <p>
      * By default, a Gaussian filter has radius 1.
      * </p>
-     * 
+     *
      * @see GaussianFilter(int)
      */
     GaussianFilter() {
@@ -44,92 +104,275 @@ public class GaussianFilter implements ImageOperation, java.io.Serializable {
 
     /**
      * <p>
-     * Apply a Mean filter to an image.
+     * Apply a Gaussian filter to an image.
      * </p>
-     * 
+     *
      * <p>
-     * As with many filters, the Mean filter is implemented via convolution.
-     * The size of the convolution kernel is specified by the {@link radius}.
+     * The standard deviation of the blur is 1/3rd of the {@link radius}.
      * Larger radii lead to stronger blurring.
+     * Radii up to {@link MAX_SEPARABLE_RADIUS} are blurred with a separable
+     * convolution, and larger ones with the recursive filter.
      * </p>
-     * 
-     * @param input The image to apply the Mean filter to.
-     * @return The resulting (blurred)) image.
+     *
+     * @param input The image to apply the Gaussian filter to.
+     * @return The resulting (blurred) image.
      */
     public BufferedImage apply(BufferedImage input) {
+        PixelBuffer source = PixelBuffer.of(input);
+
+        // A radius of 0 leaves the image as it is
+        if (radius < 1) {
+            return source.copy().getImage();
+        }
+        if (radius > MAX_SEPARABLE_RADIUS) {
+            return applyRecursive(source).getImage();
+        }
+        return applySeparable(source).getImage();
+    }
+
+    /**
+     * <p>
+     * Blur an image with a horizontal and then a vertical 1 dimensional kernel.
+     * </p>
+     *
+     * @param source The image to blur.
+     * @return The blurred image.
+     */
+    private PixelBuffer applySeparable(PixelBuffer source) {
+        float[] weights = getKernel(radius);
+        int diameter = weights.length;
 
-        // Sets the size of the kernel
-        int size = (2 * radius + 1) * (2 * radius + 1);
-        // Creates a new array for the kernel
-        float[] array = new float[size];
-        // Adds the values from the guassian equation to the kernel array
-        kernelWeights(array);
-        // Normalises the values in the kernel array
-        normaliseArray(array);
-        // Creates a kernel object from the kernel array
-        Kernel kernel = new Kernel(2 * radius + 1, 2 * radius + 1, array);
-        // Creates a new convolution operation with the kernel
-        ConvolutionOperation convOp = new ConvolutionOperation(kernel);
-        // Creates a copy of the input image to apply the filter to
-        BufferedImage output = new BufferedImage(input.getColorModel(), input.copyData(null),
-                input.isAlphaPremultiplied(), null);
-        // Applies the filter
-        convOp.filter(input, output);
+        // Blurs the rows into a temporary image, then the columns of that into the
+        // output
+        PixelBuffer rowsBlurred = source.createCompatible(source.getWidth(), source.getHeight());
+        PixelBuffer output = source.createCompatible(source.getWidth(), source.getHeight());
+        new ConvolutionOperation(new Kernel(diameter, 1, weights), edgeMode).filter(source.getImage(),
+                rowsBlurred.getImage());
+        new ConvolutionOperation(new Kernel(1, diameter, weights), edgeMode).filter(rowsBlurred.getImage(),
+                output.getImage());
 
         return output;
     }
 
     /**
-     * A method that takes an array of floats and returns a non-normalised 1
-     * diomensional gaussian array
-     * 
-     * The size of the array should be (2*raidus + 1)^2
-     * 
-     * @param array an array of floats
-     * @return A non-normalised 1 dimensional guassian array
+     * <p>
+     * Blur an image with the recursive Gaussian filter.
+     * </p>
+     *
+     * <p>
+     * Rows are filtered in parallel bands, then columns in parallel strips. A
+     * strip is narrow enough that the part of the image it covers stays in the
+     * cache while each of its columns is filtered in turn.
+     * </p>
+     *
+     * @param source The image to blur.
+     * @return The blurred image.
      */
-    protected float[] kernelWeights(float[] array) {
+    private PixelBuffer applyRecursive(PixelBuffer source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        float[] coefficients = recursiveCoefficients(radius / 3.0);
+        // Repeating the edge pixel is what the filter starts from anyway, so only
+        // the other modes need the pixels past the edge read in
+        int pad = edgeMode == ConvolutionOperation.EDGE_CLAMP ? 0 : radius;
 
-        // The diameter of the array
-        int diameter = (2 * radius + 1);
+        PixelBuffer rowsBlurred = source.createCompatible(width, height);
+        PixelBuffer output = source.createCompatible(width, height);
+        int[] in = source.getPixels();
+        int[] middle = rowsBlurred.getPixels();
+        int[] out = output.getPixels();
+
+        TileScheduler.parallelFor(0, height, TileScheduler.getTileHeight(), new TileScheduler.RangeTask() {
+            public void run(int y0, int y1) {
+                float[][] lines = new float[4][width + 2 * pad];
+                for (int y = y0; y < y1; y++) {
+                    filterLine(in, middle, y * width, 1, width, pad, edgeMode, lines, coefficients);
+                }
+            }
+        });
+        TileScheduler.parallelFor(0, width, 16, new TileScheduler.RangeTask() {
+            public void run(int x0, int x1) {
+                float[][] lines = new float[4][height + 2 * pad];
+                for (int x = x0; x < x1; x++) {
+                    filterLine(middle, out, x, width, height, pad, edgeMode, lines, coefficients);
+                }
+            }
+        });
+
+        return output;
+    }
+
+    /**
+     * <p>
+     * Apply the recursive filter to one row or column of an image.
+     * </p>
+     *
+     * <p>
+     * Each channel is run through a causal filter from start to end, and then an
+     * anti-causal one from end to start. The line is first extended by pad
+     * pixels at each end, found as set by the edge mode, and both passes start
+     * from the value at the end of the extended line, as if it were repeated
+     * beyond it.
+     * </p>
+     *
+     * @param in           The pixels to read from.
+     * @param out          The pixels to write to.
+     * @param start        The index of the first pixel of the line.
+     * @param stride       The distance between pixels of the line.
+     * @param length       The number of pixels in the line.
+     * @param pad          The number of pixels to read past each end of the line.
+     * @param edgeMode     How pixels past the ends of the line are found.
+     * @param lines        Space for the working values of each channel, at least
+     *                     length + 2 * pad long.
+     * @param coefficients The B, b1, b2 and b3 filter coefficients.
+     */
+    private static void filterLine(int[] in, int[] out, int start, int stride, int length, int pad, int edgeMode,
+            float[][] lines, float[] coefficients) {
+        float b = coefficients[0];
+        float b1 = coefficients[1];
+        float b2 = coefficients[2];
+        float b3 = coefficients[3];
+        int padded = length + 2 * pad;
 
-        // Loops over every element in the array as if it were a 2d array
-        for (int i = 0; i < diameter; i++) {
-            for (int j = 0; j < diameter; j++) {
+        for (int c = 0; c < 4; c++) {
+            float[] line = lines[c];
+            int shift = 24 - 8 * c;
 
-                // Fills the array with the coresponding values from the 2D Gaussian Function.
-                // Negative values represent left and positive right of
-                // the middle of the array
-                array[i * diameter + j] = guassianFunction(i - diameter / 2, j - diameter / 2);
+            // Forward pass
+            float first = (in[start + ConvolutionOperation.edgeIndex(-pad, length, edgeMode) * stride] >>> shift)
+                    & 0xFF;
+            float w1 = first;
+            float w2 = first;
+            float w3 = first;
+            for (int i = 0; i < padded; i++) {
+                int index = start + ConvolutionOperation.edgeIndex(i - pad, length, edgeMode) * stride;
+                float w = b * ((in[index] >>> shift) & 0xFF) + b1 * w1 + b2 * w2 + b3 * w3;
+                line[i] = w;
+                w3 = w2;
+                w2 = w1;
+                w1 = w;
+            }
 
+            // Backward pass
+            float last = line[padded - 1];
+            w1 = last;
+            w2 = last;
+            w3 = last;
+            for (int i = padded - 1; i >= 0; i--) {
+                float w = b * line[i] + b1 * w1 + b2 * w2 + b3 * w3;
+                line[i] = w;
+                w3 = w2;
+                w2 = w1;
+                w1 = w;
             }
+        }
+
+        for (int i = pad, index = start; i < pad + length; i++, index += stride) {
+            out[index] = (channel(lines[0][i]) << 24) | (channel(lines[1][i]) << 16) | (channel(lines[2][i]) << 8)
+                    | channel(lines[3][i]);
+        }
+    }
+
+    /**
+     * Round a filtered value and bound it between 0 and 255
+     *
+     * @param value The filtered channel value
+     * @return The nearest integer in [0, 255]
+     */
+    private static int channel(float value) {
+        int rounded = (int) (value + 0.5f);
+        return rounded < 0 ? 0 : (rounded > 255 ? 255 : rounded);
+    }
+
+    /**
+     * <p>
+     * Work out the coefficients of the recursive filter for a standard deviation.
+     * </p>
+     *
+     * <p>
+     * Uses equations 11b and 8c of Young and van Vliet. The feedback
+     * coefficients are returned already divided by b0, and B is chosen so that
+     * the filter has a gain of 1.
+     * </p>
+     *
+     * @param sigma The standard deviation of the blur.
+     * @return The B, b1, b2 and b3 filter coefficients.
+     */
+    private static float[] recursiveCoefficients(double sigma) {
+        double q;
+        if (sigma >= 2.5) {
+            q = 0.98711 * sigma - 0.96330;
+        } else {
+            q = 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+        }
+        double q2 = q * q;
+        double q3 = q2 * q;
+        double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+        double b1 = (2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0;
+        double b2 = -(1.4281 * q2 + 1.26661 * q3) / b0;
+        double b3 = (0.422205 * q3) / b0;
+        double b = 1 - (b1 + b2 + b3);
+        return new float[] { (float) b, (float) b1, (float) b2, (float) b3 };
+    }
+
+    /**
+     * <p>
+     * Get the normalised 1 dimensional Gaussian kernel for a radius.
+     * </p>
+     *
+     * <p>
+     * Kernels are made the first time they are needed and kept for reuse, so
+     * repeatedly blurring with the same radius does not recompute them.
+     * </p>
+     *
+     * @param radius The radius of the kernel
+     * @return An array of 2 * radius + 1 weights summing to 1
+     */
+    protected static float[] getKernel(int radius) {
+        return KERNELS.computeIfAbsent(radius, r -> normaliseArray(kernelWeights(new float[2 * r + 1], r)));
+    }
 
+    /**
+     * A method that takes an array of floats and returns a non-normalised 1
+     * diomensional gaussian array
+     *
+     * The size of the array should be 2*raidus + 1
+     *
+     * @param array  an array of floats
+     * @param radius the radius of the kernel
+     * @return A non-normalised 1 dimensional guassian array
+     */
+    protected static float[] kernelWeights(float[] array, int radius) {
+
+        // Fills the array with the coresponding values from the Gaussian Function.
+        // Negative values represent left and positive right of the middle of the
+        // array
+        for (int i = 0; i < array.length; i++) {
+            array[i] = guassianFunction(i - radius, radius);
         }
 
         return array;
     }
 
     /**
-     * A method that returns the result of a 2D Gaussian function
-     * 
-     * The values for x & Y are the distance from the centre of the kernel. So at
-     * the centre of the kernel x = 0 & y = 0
-     * 
-     * The variance is set to 1/3rd of the size of the radius
-     * 
-     * @param x The x coordianate of the kernel array, starting from the
-     *          centre.
-     * @param y The y coordinate of the kernel array, starting from the
-     *          centre
-     * @return The result of a 2D Guassian function
+     * A method that returns the result of a 1D Gaussian function
+     *
+     * The value for x is the distance from the centre of the kernel. So at the
+     * centre of the kernel x = 0. The 2D Gaussian is the product of this function
+     * in x and in y.
+     *
+     * The standard deviation is set to 1/3rd of the size of the radius
+     *
+     * @param x      The coordinate of the kernel array, starting from the centre.
+     * @param radius The radius of the kernel
+     * @return The result of a 1D Guassian function
      */
-    protected float guassianFunction(int x, int y) {
+    protected static float guassianFunction(int x, int radius) {
 
-        // The varriance, taken as 1/3rd the radius
-        double variance = (radius / 3.0);
-        // A very java representation of a 2D Gaussian Equation
-        double output = (1 / (2 * Math.PI * Math.pow(variance, 2))
-                * Math.exp(-(Math.pow(x, 2) + Math.pow(y, 2)) / (2 * Math.pow(variance, 2))));
+        // The standard deviation, taken as 1/3rd the radius
+        double sigma = (radius / 3.0);
+        // The constant factor is left out, as the kernel is normalised afterwards
+        double output = Math.exp(-(x * x) / (2 * sigma * sigma));
 
         // Casts the result to a float
         return (float) (output);
@@ -137,12 +380,12 @@ public class GaussianFilter implements ImageOperation, java.io.Serializable {
 
     /**
      * A method that normalises the values in an array of floats
-     * 
-     * 
+     *
+     *
      * @param array ann array of floats
      * @return a normalised array of floats
      */
-    protected float[] normaliseArray(float[] array) {
+    protected static float[] normaliseArray(float[] array) {
 
         // Used to track the total sum of the array
         float sum = 0;
@@ -163,4 +406,19 @@ public class GaussianFilter implements ImageOperation, java.io.Serializable {
         return array;
     }
 
+    /**
+     * @return The radius of the blur.
+     */
+    int getRadius() {
+        return radius;
+    }
+
+    /**
+     * @return How pixels beyond the edge of the image are read, one of the
+     *         {@link ConvolutionOperation} edge modes.
+     */
+    int getEdgeMode() {
+        return edgeMode;
+    }
+
 }
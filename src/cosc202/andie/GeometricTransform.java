@@ -0,0 +1,295 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+
+/**
+ * <p>
+ * Rotates and flips images by moving whole pixels between arrays.
+ * </p>
+ *
+ * <p>
+ * The result has the same type and colour model as the source. Images whose
+ * pixels are packed into ints, or stored as a run of bytes each, are worked on
+ * directly through the arrays behind their rasters:
+ * </p>
+ * <ul>
+ * <li>Transforms that keep rows as rows copy each row with
+ * {@link System#arraycopy}, or reverse it, into its new place.</li>
+ * <li>Transforms that turn rows into columns use a blocked transpose. The
+ * image is handled in small square tiles, so that the rows being read and the
+ * columns being written both stay in cache while a tile is copied.</li>
+ * </ul>
+ * <p>
+ * Either way the rows are split across threads by the {@link TileScheduler}.
+ * Images stored any other way fall back to copying one pixel at a time through
+ * their rasters.
+ * </p>
+ *
+ * @see Dihedral
+ * @version 1.0
+ */
+public class GeometricTransform {
+
+    /** The width and height of the tiles of a transpose, in pixels. */
+    private static final int BLOCK = 32;
+
+    /** The number of pixels in each piece of work handed to a thread. */
+    private static final int GRAIN = 1 << 16;
+
+    /**
+     * The layout of the pixels in a raster's array, for the layouts that can be
+     * worked on directly.
+     */
+    private static class Layout {
+
+        /** The array behind the raster. */
+        final Object data;
+        /** The index of the first element of the top left pixel. */
+        final int offset;
+        /** The number of elements from one row to the next. */
+        final int scanline;
+        /** The number of elements in each pixel. */
+        final int pixel;
+
+        Layout(Object data, int offset, int scanline, int pixel) {
+            this.data = data;
+            this.offset = offset;
+            this.scanline = scanline;
+            this.pixel = pixel;
+        }
+    }
+
+    private GeometricTransform() {
+    }
+
+    /**
+     * <p>
+     * Rotate or flip an image.
+     * </p>
+     *
+     * @param input     The image to transform. It is not changed.
+     * @param transform The rotation or flip to make.
+     * @return A new image of the same type holding the result.
+     */
+    public static BufferedImage apply(BufferedImage input, Dihedral transform) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        WritableRaster source = input.getRaster();
+        WritableRaster target = transform.swapsAxes() ? source.createCompatibleWritableRaster(height, width)
+                : source.createCompatibleWritableRaster(width, height);
+        ColorModel cm = input.getColorModel();
+        BufferedImage output = new BufferedImage(cm, target, cm.isAlphaPremultiplied(), null);
+
+        Layout from = layoutOf(source);
+        Layout to = layoutOf(target);
+        if (from == null || to == null || from.pixel != to.pixel) {
+            copyPixels(source, target, transform);
+        } else if (from.data instanceof int[]) {
+            if (transform.swapsAxes()) {
+                transpose((int[]) from.data, from, (int[]) to.data, to, width, height, transform);
+            } else {
+                copyRows((int[]) from.data, from, (int[]) to.data, to, width, height, transform);
+            }
+        } else {
+            if (transform.swapsAxes()) {
+                transpose((byte[]) from.data, from, (byte[]) to.data, to, width, height, transform);
+            } else {
+                copyRows((byte[]) from.data, from, (byte[]) to.data, to, width, height, transform);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * <p>
+     * Work out how a raster's pixels are laid out, if it can be worked on
+     * directly.
+     * </p>
+     *
+     * <p>
+     * That is either one int per pixel, as in {@code TYPE_INT_ARGB}, or a run
+     * of bytes per pixel, as in {@code TYPE_3BYTE_BGR} or
+     * {@code TYPE_BYTE_GRAY}, in a single array.
+     * </p>
+     *
+     * @param raster The raster.
+     * @return The layout, or null if the pixels are stored another way.
+     */
+    private static Layout layoutOf(WritableRaster raster) {
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel sampleModel = raster.getSampleModel();
+        if (buffer.getNumBanks() != 1) {
+            return null;
+        }
+        int x = raster.getMinX() - raster.getSampleModelTranslateX();
+        int y = raster.getMinY() - raster.getSampleModelTranslateY();
+        if (buffer instanceof DataBufferInt && sampleModel instanceof SinglePixelPackedSampleModel) {
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+            return new Layout(((DataBufferInt) buffer).getData(), buffer.getOffset() + packed.getOffset(x, y),
+                    packed.getScanlineStride(), 1);
+        }
+        if (buffer instanceof DataBufferByte && sampleModel instanceof ComponentSampleModel) {
+            ComponentSampleModel component = (ComponentSampleModel) sampleModel;
+            // Each pixel must be a run of bytes of its own, holding every band
+            for (int band : component.getBandOffsets()) {
+                if (band < 0 || band >= component.getPixelStride()) {
+                    return null;
+                }
+            }
+            if (component.getPixelStride() != component.getNumBands()) {
+                return null;
+            }
+            // The offset given is that of the first band, which need not come first
+            return new Layout(((DataBufferByte) buffer).getData(),
+                    buffer.getOffset() + component.getOffset(x, y) - component.getBandOffsets()[0],
+                    component.getScanlineStride(), component.getPixelStride());
+        }
+        return null;
+    }
+
+    /**
+     * <p>
+     * Move rows into place for a transform that keeps rows as rows.
+     * </p>
+     */
+    private static void copyRows(int[] in, Layout from, int[] out, Layout to, int width, int height,
+            Dihedral transform) {
+        boolean reverse = transform.reversesColumns();
+        boolean upsideDown = transform.reversesRows();
+        TileScheduler.parallelFor(0, height, Math.max(1, GRAIN / width), new TileScheduler.RangeTask() {
+            public void run(int start, int end) {
+                for (int y = start; y < end; y++) {
+                    int src = from.offset + y * from.scanline;
+                    int dst = to.offset + (upsideDown ? height - 1 - y : y) * to.scanline;
+                    if (!reverse) {
+                        System.arraycopy(in, src, out, dst, width);
+                        continue;
+                    }
+                    for (int x = 0, last = dst + width - 1; x < width; x++) {
+                        out[last - x] = in[src + x];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Move rows into place for a transform that keeps rows as rows, with
+     * several bytes to each pixel.
+     * </p>
+     */
+    private static void copyRows(byte[] in, Layout from, byte[] out, Layout to, int width, int height,
+            Dihedral transform) {
+        boolean reverse = transform.reversesColumns();
+        boolean upsideDown = transform.reversesRows();
+        int pixel = from.pixel;
+        TileScheduler.parallelFor(0, height, Math.max(1, GRAIN / width), new TileScheduler.RangeTask() {
+            public void run(int start, int end) {
+                for (int y = start; y < end; y++) {
+                    int src = from.offset + y * from.scanline;
+                    int dst = to.offset + (upsideDown ? height - 1 - y : y) * to.scanline;
+                    if (!reverse) {
+                        System.arraycopy(in, src, out, dst, width * pixel);
+                        continue;
+                    }
+                    for (int x = 0, last = dst + (width - 1) * pixel; x < width; x++) {
+                        for (int k = 0; k < pixel; k++) {
+                            out[last - x * pixel + k] = in[src + x * pixel + k];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Move pixels into place for a transform that turns rows into columns, a
+     * tile at a time.
+     * </p>
+     */
+    private static void transpose(int[] in, Layout from, int[] out, Layout to, int width, int height,
+            Dihedral transform) {
+        boolean reverse = transform.reversesColumns();
+        boolean upsideDown = transform.reversesRows();
+        TileScheduler.parallelFor(0, height, BLOCK * Math.max(1, GRAIN / (BLOCK * width)),
+                new TileScheduler.RangeTask() {
+                    public void run(int start, int end) {
+                        for (int x0 = 0; x0 < width; x0 += BLOCK) {
+                            int x1 = Math.min(width, x0 + BLOCK);
+                            for (int y0 = start; y0 < end; y0 += BLOCK) {
+                                int y1 = Math.min(end, y0 + BLOCK);
+                                for (int y = y0; y < y1; y++) {
+                                    // Source row y becomes a column of the result
+                                    int src = from.offset + y * from.scanline;
+                                    int column = to.offset + (reverse ? height - 1 - y : y);
+                                    for (int x = x0; x < x1; x++) {
+                                        out[column + (upsideDown ? width - 1 - x : x) * to.scanline] = in[src + x];
+                                    }
+                                }
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * <p>
+     * Move pixels into place for a transform that turns rows into columns, a
+     * tile at a time, with several bytes to each pixel.
+     * </p>
+     */
+    private static void transpose(byte[] in, Layout from, byte[] out, Layout to, int width, int height,
+            Dihedral transform) {
+        boolean reverse = transform.reversesColumns();
+        boolean upsideDown = transform.reversesRows();
+        int pixel = from.pixel;
+        TileScheduler.parallelFor(0, height, BLOCK * Math.max(1, GRAIN / (BLOCK * width)),
+                new TileScheduler.RangeTask() {
+                    public void run(int start, int end) {
+                        for (int x0 = 0; x0 < width; x0 += BLOCK) {
+                            int x1 = Math.min(width, x0 + BLOCK);
+                            for (int y0 = start; y0 < end; y0 += BLOCK) {
+                                int y1 = Math.min(end, y0 + BLOCK);
+                                for (int y = y0; y < y1; y++) {
+                                    int src = from.offset + y * from.scanline;
+                                    int column = to.offset + (reverse ? height - 1 - y : y) * pixel;
+                                    for (int x = x0; x < x1; x++) {
+                                        int dst = column + (upsideDown ? width - 1 - x : x) * to.scanline;
+                                        for (int k = 0; k < pixel; k++) {
+                                            out[dst + k] = in[src + x * pixel + k];
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * <p>
+     * Move pixels into place one at a time through the rasters, for images
+     * stored in any other way.
+     * </p>
+     */
+    private static void copyPixels(Raster source, WritableRaster target, Dihedral transform) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        boolean swap = transform.swapsAxes();
+        boolean reverse = transform.reversesColumns();
+        boolean upsideDown = transform.reversesRows();
+        Object pixel = null;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixel = source.getDataElements(source.getMinX() + x, source.getMinY() + y, pixel);
+                int u = swap ? y : x;
+                int v = swap ? x : y;
+                target.setDataElements(reverse ? target.getWidth() - 1 - u : u,
+                        upsideDown ? target.getHeight() - 1 - v : v, pixel);
+            }
+        }
+    }
+
+}
@@ -104,6 +104,22 @@ public abstract class ImageAction extends AbstractAction {
         return target;
     }
 
+    /**
+     * <p>
+     * Apply an operation to the target image without blocking the interface.
+     * </p>
+     * 
+     * <p>
+     * The target is repainted once the operation has finished.
+     * </p>
+     * 
+     * @param op The operation to apply.
+     * @see EditableImage#applyInBackground(ImageOperation, java.awt.Component)
+     */
+    public static void applyInBackground(ImageOperation op) {
+        target.getImage().applyInBackground(op, target);
+    }
+
     /**
      * A method that checks the current action has an image to be applied to
      * 
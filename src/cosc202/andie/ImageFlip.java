@@ -14,6 +14,9 @@ import java.awt.image.*;
 
 public class ImageFlip implements ImageOperation, java.io.Serializable {
 
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 6835634554763534552L;
+
     public static final int FLIP_VERTICAL = 1;// Two different variables for horizontal, vertical
     public static final int FLIP_HORIZONTAL = -1;
     private int direction;
@@ -46,32 +49,28 @@ public class ImageFlip implements ImageOperation, java.io.Serializable {
      * The image can be flipped either vertically or horizontally. This is set by
      * the direction field and is done with the constructor.
      * 
-     * Parts have been adapted from code by Zoran Davidović
-     * www.youtube.com/watch?v=HJXl2hmapdo
+     * Rows are copied whole into their new place, or reversed, by
+     * {@link GeometricTransform}, and the result keeps the type of the input.
      * 
      * @param input The image to be flipped
      * @return The flipped image
      */
     public BufferedImage apply(BufferedImage input) {
-
-        int width = input.getWidth(); // width variable measures the image with using a accessor function
-        int height = input.getHeight(); // height var measures the width of the image using a getHeight accessor
-                                        // function
-        BufferedImage flipped = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-
-        for (int y = 0; y < height; y++) { // nested for loop with goes through all pixels of the image and switches
-            for (int x = 0; x < width; x++) {
-                switch (direction) {
-                    case FLIP_HORIZONTAL: // given the case horizonal then flip horizontally
-                        flipped.setRGB((width - 1) - x, y, input.getRGB(x, y));
-                        break;
-                    case FLIP_VERTICAL:// given the case of a vertical then flip vertically
-                        flipped.setRGB(x, (height - 1) - y, input.getRGB(x, y));
-                        break;
-                }
-            }
+        Dihedral transform = Dihedral.of(this);
+        if (transform == null) {
+            // Not one of the two directions, so there is nothing to do
+            return input;
         }
-        return flipped; // return the fliped Buffered image
+        return GeometricTransform.apply(input, transform);
+    }
+
+    /**
+     * A getter method for the direction of the flip
+     * 
+     * @return Either ImageFlip.FLIP_VERTICAL or ImageFlip.FLIP_HORIZONTAL
+     */
+    int getDirection() {
+        return direction;
     }
 
 }
@@ -1,18 +1,22 @@
 package cosc202.andie;
 
-import java.awt.Color;
+import java.awt.AlphaComposite;
 import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
+import java.awt.Transparency;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 
 import javax.swing.AbstractAction;
@@ -20,6 +24,7 @@ import javax.swing.Action;
 import javax.swing.JComponent;
 import javax.swing.JPanel;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 import javax.swing.event.MouseInputListener;
 
 /**
@@ -50,8 +55,37 @@ public class ImagePanel extends JPanel implements MouseInputListener, MouseWheel
 
     // The used to preview shapes on the image
     private Shape preview;
-    // A buffer the shape of the current image
-    private BufferedImage buffer;
+
+    /**
+     * The most pixels the zoomed image may have to be cached. By default the
+     * cache may take up to a sixteenth of the largest heap the JVM will use, at
+     * 4 bytes a pixel: 67 megapixels for a 4 GB heap, or 8 for a 512 MB one.
+     * Set in megapixels with the {@code andie.renderCacheMegapixels} system
+     * property.
+     */
+    private static final long MAX_CACHE_PIXELS = Long.getLong("andie.renderCacheMegapixels",
+            Runtime.getRuntime().maxMemory() / (16 * 4) / 1000000L) * 1000000L;
+
+    // The image drawn at the current zoom, ready to copy to the screen
+    private BufferedImage cache;
+    // The version of the image and the zoom the cache was drawn at
+    private long cacheVersion = -1;
+    private double cacheScale;
+    // The level of the pyramid the cache was drawn from
+    private int cacheLevel;
+
+    // Halved copies of the pixels, for drawing them zoomed out
+    private MipPyramid pyramid;
+    // The pixels the pyramid was made from, and their version
+    private BufferedImage pyramidBase;
+    private long pyramidVersion = -1;
+
+    /**
+     * The smallest and largest zoom, as percentages. The defaults are set with
+     * the {@code andie.minZoom} and {@code andie.maxZoom} system properties.
+     */
+    private double minZoom = Double.parseDouble(System.getProperty("andie.minZoom", "5"));
+    private double maxZoom = Double.parseDouble(System.getProperty("andie.maxZoom", "1600"));
 
     // The tool used to define the shape and how its applied
     private DrawTool tool;
@@ -212,23 +246,60 @@ public class ImagePanel extends JPanel implements MouseInputListener, MouseWheel
      * <p>
      * The percentage zoom is used for the external interface, where 100% is the
      * original size, 50% is half-size, etc.
-     * The zoom level is restricted to the range [50, 200].
+     * The zoom level is restricted to the range set by
+     * {@link #setZoomLimits}, which is [5, 1600] unless set otherwise.
      * </p>
      * 
      * @param zoomPercent The new zoom level as a percentage.
      */
     public void setZoom(double zoomPercent) {
 
-        if (zoomPercent < 50) {
-            zoomPercent = 50;
+        if (zoomPercent < minZoom) {
+            zoomPercent = minZoom;
         }
-        if (zoomPercent > 200) {
-            zoomPercent = 200;
+        if (zoomPercent > maxZoom) {
+            zoomPercent = maxZoom;
         }
         scale = zoomPercent / 100;
 
     }
 
+    /**
+     * <p>
+     * Set the smallest and largest zoom levels as percentages.
+     * </p>
+     * 
+     * <p>
+     * The current zoom is brought inside the new range if it is outside it.
+     * </p>
+     * 
+     * @param min The smallest zoom level, above 0.
+     * @param max The largest zoom level, at least min.
+     * @throws IllegalArgumentException if the range is empty or not above 0.
+     */
+    public void setZoomLimits(double min, double max) {
+        if (!(min > 0) || !(max >= min)) {
+            throw new IllegalArgumentException("Zoom limits must satisfy 0 < min <= max");
+        }
+        minZoom = min;
+        maxZoom = max;
+        setZoom(getZoom());
+    }
+
+    /**
+     * @return The smallest zoom level as a percentage.
+     */
+    public double getMinZoom() {
+        return minZoom;
+    }
+
+    /**
+     * @return The largest zoom level as a percentage.
+     */
+    public double getMaxZoom() {
+        return maxZoom;
+    }
+
     /**
      * <p>
      * Gets the preferred size of this component for UI layout.
@@ -243,9 +314,12 @@ public class ImagePanel extends JPanel implements MouseInputListener, MouseWheel
      */
     @Override
     public Dimension getPreferredSize() {
+        EditableImage.Preview loading = image.getPreview();
         if (image.hasImage()) {
-            return new Dimension((int) Math.round(image.getCurrentImage().getWidth() * scale),
-                    (int) Math.round(image.getCurrentImage().getHeight() * scale));
+            return new Dimension((int) Math.round(image.getWidth() * scale),
+                    (int) Math.round(image.getHeight() * scale));
+        } else if (loading != null) {
+            return new Dimension((int) Math.round(loading.width * scale), (int) Math.round(loading.height * scale));
         } else {
             return new Dimension(450, 450);
         }
@@ -256,6 +330,30 @@ public class ImagePanel extends JPanel implements MouseInputListener, MouseWheel
      * (Re)draw the component in the GUI.
      * </p>
      * 
+     * <p>
+     * Rotations and flips that have not yet been applied to the pixels of the
+     * image are made by the transform the pixels are drawn through.
+     * </p>
+     * 
+     * <p>
+     * The image is drawn once at the current zoom into a cached image suited to
+     * the screen, and only the part of the cache inside the clip is copied to
+     * the screen on each repaint. Panning and drawing previews then only copy
+     * pixels. The cache is rebuilt when the image or the zoom changes.
+     * </p>
+     * 
+     * <p>
+     * Zoomed out, the image is drawn from the level of a {@link MipPyramid}
+     * nearest the zoom. Levels are made in the background, so the nearest
+     * larger level is drawn until the right one is ready, and the cache is
+     * drawn again when it is.
+     * </p>
+     * 
+     * <p>
+     * While an image is being opened in the background, its preview is drawn
+     * in its place.
+     * </p>
+     * 
      * @param g The Graphics component to draw the image on.
      */
     @Override
@@ -264,44 +362,61 @@ public class ImagePanel extends JPanel implements MouseInputListener, MouseWheel
         if (image.hasImage()) {
             Graphics2D g2 = (Graphics2D) g.create();
 
-            // Translates the graphics context by the x,y Offset
-            g2.translate(xOffset, yOffset);
-
-            // Translates the image by half the width and height
-            g2.translate((((image.getCurrentImage().getWidth()) / 2)),
-                    (((image.getCurrentImage().getHeight()) / 2)));
-            // Applies the scale
-            g2.scale(scale, scale);
-            // Translates it back by the width and height. This is done to keep the zoom
-            // centered in the middle of the image
-            g2.translate(((-image.getCurrentImage().getWidth()) / 2),
-                    ((-image.getCurrentImage().getHeight()) / 2));
-            // Draws the image onto the image panel with the current transforms applied
-            g2.drawImage(image.getCurrentImage(), null, 0, 0);
+            // The pixels and the transform still to be made to them, taken together
+            BufferedImage pixels;
+            Dihedral view;
+            long version;
+            synchronized (image) {
+                pixels = image.getViewImage();
+                view = image.getViewTransform();
+                version = image.getVersion();
+            }
+            int imageWidth = view.swapsAxes() ? pixels.getHeight() : pixels.getWidth();
+            int imageHeight = view.swapsAxes() ? pixels.getWidth() : pixels.getHeight();
+
+            // Where the zoomed image sits on the panel. The zoom is centred in the
+            // middle of the image
+            double left = xOffset + (imageWidth / 2) - scale * (imageWidth / 2);
+            double top = yOffset + (imageHeight / 2) - scale * (imageHeight / 2);
+
+            int level = levelOf(pixels, version);
+            if (cacheVersion != version || cacheScale != scale || cacheLevel != level) {
+                updateCache(pixels, view, version, level);
+            }
+
+            if (cache != null) {
+                // Copies just the visible part of the cache
+                int x = (int) Math.round(left);
+                int y = (int) Math.round(top);
+                Rectangle clip = g2.getClipBounds();
+                Rectangle visible = new Rectangle(x, y, cache.getWidth(), cache.getHeight());
+                if (clip != null) {
+                    visible = visible.intersection(clip);
+                }
+                if (!visible.isEmpty()) {
+                    g2.drawImage(cache, visible.x, visible.y, visible.x + visible.width,
+                            visible.y + visible.height, visible.x - x, visible.y - y, visible.x - x + visible.width,
+                            visible.y - y + visible.height, null);
+                }
+            } else {
+                // Too large to cache, so drawn through the zoom directly
+                Graphics2D g2i = (Graphics2D) g2.create();
+                g2i.translate(left, top);
+                drawLevel(g2i, pixels, view, level);
+                g2i.dispose();
+            }
 
             // If the preview isn't null
             if (preview != null) {
 
-                // Creates a graphics2d object from the image buffer
-                Graphics2D g2d = buffer.createGraphics();
+                // The preview is already in panel coordinates, so is drawn straight
+                // onto the panel, cut off at the edges of the image
+                Graphics2D g2d = (Graphics2D) g2.create();
+                g2d.clip(new Rectangle2D.Double(left, top, imageWidth * scale, imageHeight * scale));
 
                 // Sets antialiasing on to smooth out rendered shapes
                 g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                         RenderingHints.VALUE_ANTIALIAS_ON);
-                // Sets the background colour to completely opaque
-                g2d.setBackground(new Color(0, 0, 0, 0));
-                // Clears the buffer with an empty rectangle
-                g2d.clearRect(0, 0, buffer.getWidth(), buffer.getHeight());
-
-                // Translates the image and scales the buffer to the same relative size as the
-                // current image
-                g2d.translate((((image.getCurrentImage().getWidth()) / 2)),
-                        (((image.getCurrentImage().getHeight()) / 2)));
-                g2d.scale((1 / scale), (1 / scale));
-                g2d.translate(((-image.getCurrentImage().getWidth()) / 2),
-                        ((-image.getCurrentImage().getHeight()) / 2));
-                // Offsets in the inverse
-                g2d.translate(-xOffset, -yOffset);
 
                 // Sets the colour to draw with
                 g2d.setColor(tool.getColour());
@@ -311,9 +426,7 @@ public class ImagePanel extends JPanel implements MouseInputListener, MouseWheel
                 } else {
                     g2d.draw(preview);
                 }
-                // Draws the buffer to the screen.
-                g2.drawImage(buffer, null, 0, 0);
-                // disposes of the buffers graphics context
+                // disposes of the previews graphics context
                 g2d.dispose();
 
             }
@@ -321,7 +434,124 @@ public class ImagePanel extends JPanel implements MouseInputListener, MouseWheel
             // Disposes of the current images graphics
             g2.dispose();
 
+        } else if (image.getPreview() != null) {
+            // An image still being opened is drawn from its preview, stretched to
+            // where the finished image will be
+            EditableImage.Preview loading = image.getPreview();
+            Graphics2D g2 = (Graphics2D) g.create();
+            double left = xOffset + (loading.width / 2) - scale * (loading.width / 2);
+            double top = yOffset + (loading.height / 2) - scale * (loading.height / 2);
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(loading.image, (int) Math.round(left), (int) Math.round(top),
+                    (int) Math.round(loading.width * scale), (int) Math.round(loading.height * scale), null);
+            g2.dispose();
+        }
+    }
+
+    /**
+     * <p>
+     * Draw the image at the current zoom into the cache.
+     * </p>
+     * 
+     * <p>
+     * The cache is made with the panel's {@link GraphicsConfiguration}, so
+     * copying it to the screen needs no conversion. If the zoomed image would
+     * be larger than {@link #MAX_CACHE_PIXELS}, there is no cache and the image
+     * is drawn directly.
+     * </p>
+     * 
+     * @param pixels  The pixels of the image.
+     * @param view    The rotations and flips still to be made to the pixels.
+     * @param version The version of the image the pixels belong to.
+     * @param level   The level of the pyramid to draw from.
+     */
+    private void updateCache(BufferedImage pixels, Dihedral view, long version, int level) {
+        cacheVersion = version;
+        cacheScale = scale;
+        cacheLevel = level;
+        int imageWidth = view.swapsAxes() ? pixels.getHeight() : pixels.getWidth();
+        int imageHeight = view.swapsAxes() ? pixels.getWidth() : pixels.getHeight();
+        int width = Math.max(1, (int) Math.round(imageWidth * scale));
+        int height = Math.max(1, (int) Math.round(imageHeight * scale));
+        if ((long) width * height > MAX_CACHE_PIXELS) {
+            cache = null;
+            return;
+        }
+
+        int transparency = pixels.getColorModel().hasAlpha() ? Transparency.TRANSLUCENT : Transparency.OPAQUE;
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        // Reuses the old cache if it is the same size and kind
+        if (cache == null || cache.getWidth() != width || cache.getHeight() != height
+                || cache.getTransparency() != transparency) {
+            cache = config != null ? config.createCompatibleImage(width, height, transparency)
+                    : new BufferedImage(width, height,
+                            transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB
+                                    : BufferedImage.TYPE_INT_ARGB);
+        }
+
+        Graphics2D g2c = cache.createGraphics();
+        // Replaces whatever was in the cache, including its transparency
+        g2c.setComposite(AlphaComposite.Src);
+        drawLevel(g2c, pixels, view, level);
+        g2c.dispose();
+    }
+
+    /**
+     * <p>
+     * Get the level of the pyramid to draw the pixels from at the current zoom.
+     * </p>
+     * 
+     * <p>
+     * The pyramid is started again when the pixels or the version of the image
+     * change. Some operations, such as drawing, and undoing them change the
+     * pixels in place, so the same pixels are not enough to know the pyramid is
+     * still right.
+     * </p>
+     * 
+     * @param pixels  The pixels of the image.
+     * @param version The version of the image the pixels are from.
+     * @return The nearest level to the zoom that is ready, where 0 is the
+     *         pixels themselves.
+     */
+    private int levelOf(BufferedImage pixels, long version) {
+        if (pyramidBase != pixels || pyramidVersion != version) {
+            if (pyramid != null) {
+                pyramid.discard();
+            }
+            pyramidBase = pixels;
+            pyramidVersion = version;
+            // Draws again when a level is ready, unless the pixels have moved on
+            pyramid = new MipPyramid(pixels, () -> SwingUtilities.invokeLater(() -> {
+                if (pyramidBase == pixels && pyramidVersion == version) {
+                    repaint();
+                }
+            }));
+        }
+        return pyramid.getLevel(pyramid.levelFor(scale));
+    }
+
+    /**
+     * <p>
+     * Draw the pixels at the current zoom from a level of the pyramid.
+     * </p>
+     * 
+     * @param g2     Where to draw, with the top left of the image at the origin.
+     * @param pixels The pixels of the image.
+     * @param view   The rotations and flips still to be made to the pixels.
+     * @param level  The level of the pyramid to draw from.
+     */
+    private void drawLevel(Graphics2D g2, BufferedImage pixels, Dihedral view, int level) {
+        BufferedImage source = pyramid.getImage(level);
+        g2.scale(scale, scale);
+        g2.transform(view.toAffineTransform(pixels.getWidth(), pixels.getHeight()));
+        if (level > 0) {
+            // The level is only roughly half as large per step, so is stretched
+            // back over the full size pixels
+            g2.scale(pixels.getWidth() / (double) source.getWidth(),
+                    pixels.getHeight() / (double) source.getHeight());
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
         }
+        g2.drawImage(source, 0, 0, null);
     }
 
     /**
@@ -383,10 +613,6 @@ public class ImagePanel extends JPanel implements MouseInputListener, MouseWheel
 
         // Passes the start point to the tool.
         tool.setStart(this.startPoint);
-        // Creates a new buffer. Not entirely needed every time the mouse is pressed,
-        // but an easy way to deal with new images being opened
-        buffer = new BufferedImage(image.getCurrentImage().getWidth(), image.getCurrentImage().getHeight(),
-                BufferedImage.TYPE_INT_ARGB);
 
     }
 
@@ -505,11 +731,12 @@ public class ImagePanel extends JPanel implements MouseInputListener, MouseWheel
 
         // Adjusts the zoom based off of the wheel
         if (tool == null || ctrl) {
-            if (getZoom() == 200 || getZoom() == 50) {
-                this.setZoom(this.getZoom() - (w.getWheelRotation() * 5));
+            double step = Math.max(1, getZoom() / 20);
+            if (getZoom() == maxZoom || getZoom() == minZoom) {
+                this.setZoom(this.getZoom() - (w.getWheelRotation() * step));
                 return;
             }
-            this.setZoom(this.getZoom() - (w.getWheelRotation() * 5));
+            this.setZoom(this.getZoom() - (w.getWheelRotation() * step));
             this.repaint();
         }
     }
@@ -0,0 +1,225 @@
+package cosc202.andie;
+
+/**
+ * <p>
+ * A summed-area table of one channel of an image.
+ * </p>
+ *
+ * <p>
+ * Each entry of the table holds the sum of every channel value above and to
+ * the left of it, so the sum over any rectangle can be read from its four
+ * corners in constant time, whatever the size of the rectangle.
+ * This makes box filters, local means and local variances (from a table of
+ * squared values) cost the same at any radius.
+ * </p>
+ *
+ * <p>
+ * A table can cover the whole image or just a band of rows, so that tiled
+ * operations only build the part they need.
+ * It can also cover an area reaching past the edges of the image, with the
+ * pixels there found by one of the {@link ConvolutionOperation} edge modes, so
+ * that windows near the edges are filled the same way as a convolution's.
+ * Rectangles reaching past the edges of the covered area are clamped to it.
+ * </p>
+ *
+ * <p>
+ * The sums are kept in ints and allowed to overflow. Because a rectangle sum is
+ * a difference of table entries, it is still exact as long as the sum itself
+ * fits in an int: up to about 8 million pixels for plain values, or about
+ * 33,000 pixels (a radius of 90) for squared values.
+ * </p>
+ *
+ * @see MeanFilter
+ * @version 1.0
+ */
+public class IntegralImage {
+
+    /** The table of sums, with an extra row and column of zeros at the start. */
+    private final int[] sums;
+    /** The first column of the image covered by the table. */
+    private final int firstColumn;
+    /** The number of columns covered by the table. */
+    private final int width;
+    /** The first row of the image covered by the table. */
+    private final int firstRow;
+    /** The number of rows covered by the table. */
+    private final int rows;
+
+    /**
+     * <p>
+     * Build a summed-area table of one channel over a whole image.
+     * </p>
+     *
+     * @param source The image to sum.
+     * @param shift  The position of the channel in an aRGB pixel: 24 for alpha,
+     *               16 for red, 8 for green or 0 for blue.
+     */
+    public IntegralImage(PixelBuffer source, int shift) {
+        this(source, shift, false, 0, source.getHeight());
+    }
+
+    /**
+     * <p>
+     * Build a summed-area table of one channel over a band of rows.
+     * </p>
+     *
+     * @param source  The image to sum.
+     * @param shift   The position of the channel in an aRGB pixel: 24 for alpha,
+     *                16 for red, 8 for green or 0 for blue.
+     * @param squared True to sum the squares of the channel values, for working
+     *                out local variances.
+     * @param y0      The first row to cover (inclusive). Clamped to the image.
+     * @param y1      The last row to cover (exclusive). Clamped to the image.
+     */
+    public IntegralImage(PixelBuffer source, int shift, boolean squared, int y0, int y1) {
+        this(source, shift, squared, ConvolutionOperation.EDGE_CLAMP, 0, Math.max(0, y0), source.getWidth(),
+                Math.min(source.getHeight(), y1));
+    }
+
+    /**
+     * <p>
+     * Build a summed-area table of one channel over any rectangle.
+     * </p>
+     *
+     * <p>
+     * The rectangle may reach past the edges of the image, in which case the
+     * pixels there are found as set by the edge mode.
+     * </p>
+     *
+     * @param source   The image to sum.
+     * @param shift    The position of the channel in an aRGB pixel: 24 for
+     *                 alpha, 16 for red, 8 for green or 0 for blue.
+     * @param squared  True to sum the squares of the channel values, for working
+     *                 out local variances.
+     * @param edgeMode How pixels beyond the edge of the image are found, one of
+     *                 the {@link ConvolutionOperation} edge modes.
+     * @param x0       The first column to cover (inclusive).
+     * @param y0       The first row to cover (inclusive).
+     * @param x1       The last column to cover (exclusive).
+     * @param y1       The last row to cover (exclusive).
+     */
+    public IntegralImage(PixelBuffer source, int shift, boolean squared, int edgeMode, int x0, int y0, int x1,
+            int y1) {
+        int[] pixels = source.getPixels();
+        int imageWidth = source.getWidth();
+        int imageHeight = source.getHeight();
+        firstColumn = x0;
+        width = Math.max(0, x1 - x0);
+        firstRow = y0;
+        rows = Math.max(0, y1 - y0);
+
+        // The column of the image read for each column of the table
+        int[] columns = new int[width];
+        for (int x = 0; x < width; x++) {
+            columns[x] = ConvolutionOperation.edgeIndex(firstColumn + x, imageWidth, edgeMode);
+        }
+
+        int stride = width + 1;
+        sums = new int[stride * (rows + 1)];
+        for (int y = 0; y < rows; y++) {
+            int in = ConvolutionOperation.edgeIndex(firstRow + y, imageHeight, edgeMode) * imageWidth;
+            int above = y * stride;
+            int here = above + stride;
+            // The running sum along this row, added to the table entry above
+            int rowSum = 0;
+            for (int x = 0; x < width; x++) {
+                int value = (pixels[in + columns[x]] >>> shift) & 0xFF;
+                rowSum += squared ? value * value : value;
+                sums[here + x + 1] = sums[above + x + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Get the sum over a rectangle.
+     * </p>
+     *
+     * <p>
+     * The rectangle is clamped to the area covered by the table, so only the
+     * pixels that are inside it are summed.
+     * </p>
+     *
+     * @param x0 The left edge of the rectangle (inclusive).
+     * @param y0 The top edge of the rectangle (inclusive).
+     * @param x1 The right edge of the rectangle (exclusive).
+     * @param y1 The bottom edge of the rectangle (exclusive).
+     * @return The sum of the channel values in the rectangle.
+     */
+    public int sum(int x0, int y0, int x1, int y1) {
+        x0 = clampColumn(x0);
+        x1 = clampColumn(x1);
+        y0 = clampRow(y0);
+        y1 = clampRow(y1);
+        if (x1 <= x0 || y1 <= y0) {
+            return 0;
+        }
+        int stride = width + 1;
+        return sums[y1 * stride + x1] - sums[y0 * stride + x1] - sums[y1 * stride + x0] + sums[y0 * stride + x0];
+    }
+
+    /**
+     * <p>
+     * Get the number of pixels of a rectangle that are covered by the table.
+     * </p>
+     *
+     * @param x0 The left edge of the rectangle (inclusive).
+     * @param y0 The top edge of the rectangle (inclusive).
+     * @param x1 The right edge of the rectangle (exclusive).
+     * @param y1 The bottom edge of the rectangle (exclusive).
+     * @return The number of pixels {@link #sum} adds up for the rectangle.
+     */
+    public int area(int x0, int y0, int x1, int y1) {
+        int w = clampColumn(x1) - clampColumn(x0);
+        int h = clampRow(y1) - clampRow(y0);
+        return (w <= 0 || h <= 0) ? 0 : w * h;
+    }
+
+    /**
+     * <p>
+     * Get the mean over the square window of a given radius around a pixel.
+     * </p>
+     *
+     * <p>
+     * Only the part of the window covered by the table is averaged. A table
+     * reaching the radius past the edges of the image averages the whole
+     * window, with the pixels beyond the edges found as set by its edge mode.
+     * </p>
+     *
+     * @param x      The column of the centre of the window.
+     * @param y      The row of the centre of the window.
+     * @param radius The radius of the window.
+     * @return The mean channel value in the window, rounded to the nearest
+     *         integer.
+     */
+    public int mean(int x, int y, int radius) {
+        int x0 = x - radius;
+        int y0 = y - radius;
+        int x1 = x + radius + 1;
+        int y1 = y + radius + 1;
+        int area = area(x0, y0, x1, y1);
+        if (area == 0) {
+            return 0;
+        }
+        return (sum(x0, y0, x1, y1) + area / 2) / area;
+    }
+
+    /**
+     * @param x A column of the image.
+     * @return The column of the table for x, clamped to the covered columns.
+     */
+    private int clampColumn(int x) {
+        x -= firstColumn;
+        return x < 0 ? 0 : (x > width ? width : x);
+    }
+
+    /**
+     * @param y A row of the image.
+     * @return The row of the table for y, clamped to the covered rows.
+     */
+    private int clampRow(int y) {
+        y -= firstRow;
+        return y < 0 ? 0 : (y > rows ? rows : y);
+    }
+
+}
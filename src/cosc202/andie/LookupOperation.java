@@ -0,0 +1,39 @@
+package cosc202.andie;
+
+/**
+ * <p>
+ * Interface for operations that map each colour channel value independently.
+ * </p>
+ *
+ * <p>
+ * Operations such as inverting, changing brightness and contrast, or
+ * posterising change every red, green and blue value by the same mapping from
+ * [0, 255] to [0, 255], whatever the rest of the pixel holds.
+ * Such an operation can be described completely by a 256 entry lookup table,
+ * and a run of them can be combined into a single table and applied to the
+ * image in one pass.
+ * </p>
+ *
+ * <p>
+ * The alpha channel is not changed by a LookupOperation.
+ * </p>
+ *
+ * @see LookupTable
+ * @version 1.0
+ */
+public interface LookupOperation extends ImageOperation {
+
+    /**
+     * <p>
+     * Get the mapping applied to each colour channel.
+     * </p>
+     *
+     * <p>
+     * The returned array may be shared, and must not be changed.
+     * </p>
+     *
+     * @return An array of 256 values in [0, 255], where entry v is the new value
+     *         of a channel whose value was v.
+     */
+    public int[] getLookupTable();
+}
@@ -0,0 +1,116 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.util.List;
+
+/**
+ * <p>
+ * ImageOperation to apply a lookup table to the colour channels of an image.
+ * </p>
+ *
+ * <p>
+ * A LookupTable is usually the combination of a run of
+ * {@link LookupOperation}s, made with {@link #compose}, so that the whole run
+ * costs a single pass over the image.
+ * The pass is split across threads by the {@link TileScheduler}.
+ * </p>
+ *
+ * @version 1.0
+ */
+public class LookupTable implements LookupOperation, java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of pixels in each piece of work handed to a thread. */
+    private static final int GRAIN = 1 << 16;
+
+    /** The mapping applied to each colour channel. */
+    private int[] table;
+
+    /**
+     * <p>
+     * Create a new LookupTable operation.
+     * </p>
+     *
+     * @param table The 256 entry mapping to apply to each colour channel.
+     */
+    public LookupTable(int[] table) {
+        if (table.length != 256) {
+            throw new IllegalArgumentException("lookup table must have 256 entries");
+        }
+        this.table = table;
+    }
+
+    /**
+     * <p>
+     * Combine a run of lookup operations into one.
+     * </p>
+     *
+     * @param ops The operations to combine, in the order they would be applied.
+     * @return A single LookupTable with the same effect as applying every
+     *         operation in turn.
+     */
+    public static LookupTable compose(List<? extends LookupOperation> ops) {
+        int[] combined = new int[256];
+        for (int v = 0; v < 256; v++) {
+            combined[v] = v;
+        }
+        for (LookupOperation op : ops) {
+            int[] next = op.getLookupTable();
+            for (int v = 0; v < 256; v++) {
+                combined[v] = next[combined[v]];
+            }
+        }
+        return new LookupTable(combined);
+    }
+
+    /**
+     * @return The mapping applied to each colour channel.
+     */
+    public int[] getLookupTable() {
+        return table;
+    }
+
+    /**
+     * <p>
+     * Apply the lookup table to an image.
+     * </p>
+     *
+     * @param input The image to change.
+     * @return The resulting image.
+     */
+    public BufferedImage apply(BufferedImage input) {
+        return apply(input, table);
+    }
+
+    /**
+     * <p>
+     * Apply a lookup table to the colour channels of an image.
+     * </p>
+     *
+     * <p>
+     * The image is changed in place if it is already in a packed format.
+     * </p>
+     *
+     * @param input The image to change.
+     * @param table The 256 entry mapping to apply to each colour channel.
+     * @return The resulting image.
+     */
+    public static BufferedImage apply(BufferedImage input, int[] table) {
+        PixelBuffer buffer = PixelBuffer.of(input);
+        int[] pixels = buffer.getPixels();
+
+        TileScheduler.parallelFor(0, pixels.length, GRAIN, new TileScheduler.RangeTask() {
+            public void run(int start, int end) {
+                for (int i = start; i < end; ++i) {
+                    int argb = pixels[i];
+                    pixels[i] = (argb & 0xFF000000) | (table[(argb >> 16) & 0xFF] << 16)
+                            | (table[(argb >> 8) & 0xFF] << 8) | table[argb & 0xFF];
+                }
+            }
+        });
+
+        return buffer.getImage();
+    }
+
+}
@@ -1,7 +1,6 @@
 package cosc202.andie;
 
 import java.awt.image.*;
-import java.util.*;
 
 /**
  * <p>
@@ -10,8 +9,8 @@ import java.util.*;
  * 
  * <p>
  * A Mean filter blurs an image by replacing each pixel by the average of the
- * pixels in a surrounding neighbourhood, and can be implemented by a
- * convoloution.
+ * pixels in a surrounding neighbourhood. It could be implemented by a
+ * convoloution, but summed-area tables make it much cheaper for large radii.
  * </p>
  * 
  * <p>
@@ -19,11 +18,14 @@ import java.util.*;
  * 4.0</a>
  * </p>
  * 
- * @see java.awt.image.ConvolveOp
+ * @see IntegralImage
  * @author Steven Mills
  * @version 1.0
  */
-public class MeanFilter implements ImageOperation, java.io.Serializable {
+public class MeanFilter implements ImageOperation, TiledOperation, java.io.Serializable {
+
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 5589744882475085057L;
 
     /**
      * The size of filter to apply. A radius of 1 is a 3x3 filter, a radius of 2 a
@@ -31,6 +33,9 @@ public class MeanFilter implements ImageOperation, java.io.Serializable {
      */
     private int radius;
 
+    /** How pixels beyond the edge of the image are found. */
+    private int edgeMode;
+
     /**
      * <p>
      * Construct a Mean filter with the given size.
@@ -45,7 +50,20 @@ public class MeanFilter implements ImageOperation, java.io.Serializable {
      * @param radius The radius of the newly constructed MeanFilter
      */
     MeanFilter(int radius) {
+        this(radius, ConvolutionOperation.EDGE_CLAMP);
+    }
+
+    /**
+     * <p>
+     * Construct a Mean filter with the given size and edge mode.
+     * </p>
+     * 
+     * @param radius   The radius of the newly constructed MeanFilter
+     * @param edgeMode How pixels beyond the edge of the image are found
+     */
+    MeanFilter(int radius, int edgeMode) {
         this.radius = radius;
+        this.edgeMode = edgeMode;
     }
 
     /**
@@ -69,26 +87,86 @@ public class MeanFilter implements ImageOperation, java.io.Serializable {
      * </p>
      * 
      * <p>
-     * As with many filters, the Mean filter is implemented via convolution.
-     * The size of the convolution kernel is specified by the {@link radius}.
+     * The mean of each window is read from an {@link IntegralImage} of each
+     * channel, so the cost per pixel is the same whatever the {@link radius}.
      * Larger radii lead to stronger blurring.
+     * Pixels the window reaches beyond the edges of the image are found as set
+     * by the edge mode, as for the other filters, so every window is averaged
+     * over its full size.
      * </p>
      * 
      * @param input The image to apply the Mean filter to.
      * @return The resulting (blurred)) image.
      */
     public BufferedImage apply(BufferedImage input) {
-        int size = (2 * radius + 1) * (2 * radius + 1);
-        float[] array = new float[size];
-        Arrays.fill(array, 1.0f / size);
+        PixelBuffer source = PixelBuffer.of(input);
+        PixelBuffer output = source.createCompatible(source.getWidth(), source.getHeight());
+
+        // Filters each band of the image in parallel
+        TileScheduler.run(this, source, output);
+
+        return output.getImage();
+    }
+
+    /**
+     * The halo of a mean filter is its radius
+     * 
+     * @return The radius of the filter
+     */
+    @Override
+    public int getHaloRadius() {
+        return radius;
+    }
 
-        Kernel kernel = new Kernel(2 * radius + 1, 2 * radius + 1, array);
-        ConvolutionOperation convOp = new ConvolutionOperation(kernel);
-        BufferedImage output = new BufferedImage(input.getColorModel(), input.copyData(null),
-                input.isAlphaPremultiplied(), null);
-        convOp.filter(input, output);
+    /**
+     * <p>
+     * Apply a Mean filter to the rows from y0 to y1 of an image.
+     * </p>
+     * 
+     * <p>
+     * Summed-area tables are built for just the rows of the band and its halo,
+     * reaching the radius past the left and right edges of the image.
+     * </p>
+     * 
+     * @param input  The image to apply the Mean filter to.
+     * @param output The image to store the result in.
+     * @param y0     The first row to filter.
+     * @param y1     The row after the last row to filter.
+     */
+    @Override
+    public void applyTile(PixelBuffer input, PixelBuffer output, int y0, int y1) {
+        int[] out = output.getPixels();
+        int width = input.getWidth();
+
+        IntegralImage alpha = new IntegralImage(input, 24, false, edgeMode, -radius, y0 - radius, width + radius,
+                y1 + radius);
+        IntegralImage red = new IntegralImage(input, 16, false, edgeMode, -radius, y0 - radius, width + radius,
+                y1 + radius);
+        IntegralImage green = new IntegralImage(input, 8, false, edgeMode, -radius, y0 - radius, width + radius,
+                y1 + radius);
+        IntegralImage blue = new IntegralImage(input, 0, false, edgeMode, -radius, y0 - radius, width + radius,
+                y1 + radius);
 
-        return output;
+        for (int y = y0; y < y1; ++y) {
+            for (int x = 0; x < width; ++x) {
+                out[y * width + x] = (alpha.mean(x, y, radius) << 24) | (red.mean(x, y, radius) << 16)
+                        | (green.mean(x, y, radius) << 8) | blue.mean(x, y, radius);
+            }
+        }
+    }
+
+    /**
+     * @return The radius of the filter.
+     */
+    int getRadius() {
+        return radius;
+    }
+
+    /**
+     * @return How pixels beyond the edge of the image are found.
+     */
+    int getEdgeMode() {
+        return edgeMode;
     }
 
 }
@@ -1,14 +1,32 @@
 package cosc202.andie;
 
 import java.awt.image.BufferedImage;
+import java.lang.ref.*;
 import java.util.Arrays;
 
 /**
  * ImageOperation to apply a Median (Another blur) filter.
  * 
+ * The median is found with sliding histograms, in the style of Perreault and
+ * Hebert's "Median Filtering in Constant Time". Each column of the image keeps
+ * a histogram of the pixels in the window above and below it, and the histogram
+ * of the whole window is kept up to date by adding the column entering it and
+ * subtracting the column leaving it. The work per pixel does not depend on the
+ * radius.
  * 
+ * Histograms are split into 16 coarse bins of 16 fine bins each. The coarse
+ * bins are updated at every pixel, but the fine bins of a coarse bin are only
+ * brought up to date when the median falls inside it.
+ * 
+ * The histograms are kept by each thread between bands, so they are not
+ * allocated again for every band, and a thread that goes on to the band just
+ * below its last one slides its column histograms on rather than building them
+ * again.
  */
-public class MedianFilter implements ImageOperation, java.io.Serializable {
+public class MedianFilter implements ImageOperation, TiledOperation, java.io.Serializable {
+
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 8572293816647932802L;
 
     /**
      * The size of filter to apply. A radius of 1 is a 3x3 filter, a radius of 2 a
@@ -16,6 +34,55 @@ public class MedianFilter implements ImageOperation, java.io.Serializable {
      */
     private int radius;
 
+    /**
+     * How pixels beyond the edge of the image are found, one of the
+     * ConvolutionOperation edge modes.
+     */
+    private int edgeMode;
+
+    /** The number of channels in an aRGB pixel */
+    private static final int CHANNELS = 4;
+    /** The position of the alpha, red, green and blue channels in an aRGB pixel */
+    private static final int[] SHIFTS = { 24, 16, 8, 0 };
+
+    /**
+     * The histograms of each thread. Softly held, as they are several megabytes
+     * for a wide image.
+     */
+    private static final ThreadLocal<SoftReference<Workspace>> WORKSPACE = new ThreadLocal<SoftReference<Workspace>>();
+
+    /**
+     * The histograms one thread filters its bands with.
+     */
+    private static class Workspace {
+
+        /** The fine and coarse histograms of each column, one array per channel. */
+        short[][] columnFine = new short[CHANNELS][0];
+        short[][] columnCoarse = new short[CHANNELS][0];
+        /** The histogram of the whole window for each channel. */
+        final int[][] kernelFine = new int[CHANNELS][256];
+        final int[][] kernelCoarse = new int[CHANNELS][16];
+        /** The x position at which each fine bin of the window was last up to date. */
+        final int[][] lastUpdated = new int[CHANNELS][16];
+
+        /** The output of the run the column histograms belong to, if any. */
+        Reference<int[]> output = new WeakReference<int[]>(null);
+        /** The row of that run the column histograms are up to date for. */
+        int row;
+
+        /**
+         * @param width The width of the image.
+         * @return This, with column histograms for at least that many columns.
+         */
+        Workspace ensureWidth(int width) {
+            if (columnFine[0].length < width * 256) {
+                columnFine = new short[CHANNELS][width * 256];
+                columnCoarse = new short[CHANNELS][width * 16];
+            }
+            return this;
+        }
+    }
+
     /**
      * <p>
      * Construct a Median filter with the given size.
@@ -30,7 +97,21 @@ public class MedianFilter implements ImageOperation, java.io.Serializable {
      * @param radius The radius of the newly constructed MedianFilter
      */
     MedianFilter(int radius) {
+        this(radius, ConvolutionOperation.EDGE_CLAMP);
+    }
+
+    /**
+     * <p>
+     * Construct a Median filter with the given size and edge mode.
+     * </p>
+     * 
+     * @param radius   The radius of the newly constructed MedianFilter
+     * @param edgeMode How pixels beyond the edge of the image are found
+     * @see ConvolutionOperation#edgeIndex(int, int, int)
+     */
+    MedianFilter(int radius, int edgeMode) {
         this.radius = radius;
+        this.edgeMode = edgeMode;
     }
 
     /**
@@ -59,120 +140,224 @@ public class MedianFilter implements ImageOperation, java.io.Serializable {
      */
     public BufferedImage apply(BufferedImage input) {
 
-        // Initialises a copy of the input BufferedImage to apply changes to
-        BufferedImage output = new BufferedImage(input.getColorModel(), input.copyData(null),
-                input.isAlphaPremultiplied(), null);
+        // Gets direct access to the input pixels and a blank output to write to
+        PixelBuffer source = PixelBuffer.of(input);
+        PixelBuffer output = source.createCompatible(source.getWidth(), source.getHeight());
+
+        // Filters each band of the image in parallel
+        TileScheduler.run(this, source, output);
+
+        return output.getImage();
+    }
+
+    /**
+     * The halo of a median filter is its radius
+     * 
+     * @return The radius of the filter
+     */
+    @Override
+    public int getHaloRadius() {
+        return radius;
+    }
+
+    /**
+     * Apply a median blur to the rows from y0 to y1 of an image
+     * 
+     * Each of the alpha, red, green and blue channels is filtered separately.
+     * The histograms are reused from the thread's last band, so nothing is
+     * allocated per pixel, and normally nothing per band either.
+     * 
+     * @param input  The image to be blurred
+     * @param output The image to store the result in
+     * @param y0     The first row to blur
+     * @param y1     The row after the last row to blur
+     */
+    @Override
+    public void applyTile(PixelBuffer input, PixelBuffer output, int y0, int y1) {
+        int[] in = input.getPixels();
+        int[] out = output.getPixels();
 
         // Sets the height, width and size.
         int height = input.getHeight();
         int width = input.getWidth();
+        int diameter = 2 * radius + 1;
 
-        // The total number of elements visible in a window of a given radius
-        int windowSize = (2 * radius + 1) * (2 * radius + 1);
+        // The number of pixels in the window that must be below the median. The
+        // window always holds an odd number of pixels, so this is the middle one.
+        int rank = (diameter * diameter) / 2;
 
-        // The outer two loops visit each pixel in the input image
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
+        // The column to read for each x from -radius - 1 to width + radius - 1,
+        // mapped back into the image beyond its edges
+        int[] columns = new int[width + diameter];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = ConvolutionOperation.edgeIndex(i - radius - 1, width, edgeMode);
+        }
 
-                // Intiialises an array to store each value in the window visible at x,y
-                int[] window = new int[windowSize];
-                // Used to track the current position in the window array
-                int position = 0;
+        // A histogram for each column and channel of the window rows above and below
+        // the current row. A column never holds more than diameter pixels, so short
+        // counts are enough and halve the memory used.
+        Workspace workspace = workspace(width);
+        short[][] columnFine = workspace.columnFine;
+        short[][] columnCoarse = workspace.columnCoarse;
+        int[][] kernelFine = workspace.kernelFine;
+        int[][] kernelCoarse = workspace.kernelCoarse;
+        int[][] lastUpdated = workspace.lastUpdated;
 
-                // The inner two loops visit each pixel in a window of a given radius
-                for (int dy = -radius; dy <= radius; ++dy) {
-                    for (int dx = -radius; dx <= radius; ++dx) {
+        // Carries on from the band above if this thread has just filtered it
+        boolean continued = workspace.output.get() == out && workspace.row == y0 - 1;
+        // Marked as belonging to no run until the band is done, in case it fails
+        workspace.output = new WeakReference<int[]>(null);
 
-                        // Checks that the current coordinate of the window is in the bounds of the
-                        // input image. Where the window is not inbounds, it repeats the edge pixel.
-                        int ydy = Math.min(Math.max(0, y + dy), height - 1);
-                        int xdx = Math.min(Math.max(0, x + dx), width - 1);
+        if (!continued) {
+            // Fills the column histograms for the first row of the band. Where the
+            // window is not inbounds, the row is mapped back into the image.
+            for (int c = 0; c < CHANNELS; ++c) {
+                Arrays.fill(columnFine[c], 0, width * 256, (short) 0);
+                Arrays.fill(columnCoarse[c], 0, width * 16, (short) 0);
+            }
+            for (int dy = -radius; dy <= radius; ++dy) {
+                int row = ConvolutionOperation.edgeIndex(y0 + dy, height, edgeMode) * width;
+                for (int x = 0; x < width; ++x) {
+                    addToColumn(columnFine, columnCoarse, x, in[row + x], 1);
+                }
+            }
+        }
 
-                        // Adds all of the values of the current window to the window array to be sorted
-                        window[position] = input.getRGB(xdx, ydy);
-                        position++;
+        for (int y = y0; y < y1; ++y) {
 
+            // Moves the column histograms down a row by removing the row leaving the
+            // window and adding the row entering it
+            if (y > y0 || continued) {
+                int leaving = ConvolutionOperation.edgeIndex(y - radius - 1, height, edgeMode) * width;
+                int entering = ConvolutionOperation.edgeIndex(y + radius, height, edgeMode) * width;
+                for (int x = 0; x < width; ++x) {
+                    addToColumn(columnFine, columnCoarse, x, in[leaving + x], -1);
+                    addToColumn(columnFine, columnCoarse, x, in[entering + x], 1);
+                }
+            }
+
+            // Builds the coarse window histogram for the first pixel of the row. The fine
+            // bins are marked as out of date and are filled in when first needed.
+            for (int c = 0; c < CHANNELS; ++c) {
+                Arrays.fill(kernelCoarse[c], 0);
+                Arrays.fill(lastUpdated[c], Integer.MIN_VALUE / 2);
+                for (int dx = -radius; dx <= radius; ++dx) {
+                    int column = columns[dx + radius + 1] * 16;
+                    for (int bin = 0; bin < 16; ++bin) {
+                        kernelCoarse[c][bin] += columnCoarse[c][column + bin];
                     }
                 }
+            }
+
+            for (int x = 0; x < width; ++x) {
+                int pixel = 0;
+                for (int c = 0; c < CHANNELS; ++c) {
+                    short[] fine = columnFine[c];
+                    short[] coarse = columnCoarse[c];
+                    int[] windowFine = kernelFine[c];
+                    int[] windowCoarse = kernelCoarse[c];
+                    int[] updated = lastUpdated[c];
+
+                    // Slides the coarse window histogram along to this pixel
+                    if (x > 0) {
+                        int leaving = columns[x] * 16;
+                        int entering = columns[x + diameter] * 16;
+                        for (int bin = 0; bin < 16; ++bin) {
+                            windowCoarse[bin] += coarse[entering + bin] - coarse[leaving + bin];
+                        }
+                    }
+
+                    // Finds the coarse bin holding the median
+                    int below = 0;
+                    int bin = 0;
+                    while (below + windowCoarse[bin] <= rank) {
+                        below += windowCoarse[bin];
+                        bin++;
+                    }
 
-                // Intitalises the medianPixel of the window
-                int medianPixel = getMedianPixel(window);
-                // Sets the value of the output image at x,y to that of the median pixel of the
-                // window
-                output.setRGB(x, y, medianPixel);
+                    // Brings the fine bins inside it up to date. If they were last used long
+                    // ago it is quicker to rebuild them than to slide them along.
+                    int first = bin * 16;
+                    if (x - updated[bin] > radius) {
+                        for (int i = 0; i < 16; ++i) {
+                            windowFine[first + i] = 0;
+                        }
+                        for (int dx = 0; dx < diameter; ++dx) {
+                            int column = columns[x + dx + 1] * 256 + first;
+                            for (int i = 0; i < 16; ++i) {
+                                windowFine[first + i] += fine[column + i];
+                            }
+                        }
+                    } else {
+                        for (int j = updated[bin] + 1; j <= x; ++j) {
+                            int leaving = columns[j] * 256 + first;
+                            int entering = columns[j + diameter] * 256 + first;
+                            for (int i = 0; i < 16; ++i) {
+                                windowFine[first + i] += fine[entering + i] - fine[leaving + i];
+                            }
+                        }
+                    }
+                    updated[bin] = x;
 
+                    // Finds the median within the coarse bin
+                    int value = first;
+                    while (below + windowFine[value] <= rank) {
+                        below += windowFine[value];
+                        value++;
+                    }
+                    pixel |= value << SHIFTS[c];
+                }
+                out[y * width + x] = pixel;
             }
         }
-
-        return output;
+        workspace.output = new WeakReference<int[]>(out);
+        workspace.row = y1 - 1;
     }
 
     /**
-     * Gets the median aRGB pixel value of a given array of aRGB pixels
-     * 
-     * This method works by finding the median value for each colour channel and
-     * returning them as a single aRGB int
-     * 
-     * @param rgbArray
-     * @return median aRGB int value
+     * @param width The width of the image.
+     * @return The histograms of this thread, big enough for the image.
      */
-    private int getMedianPixel(int[] rgbArray) {
-
-        // Sets the size equal to that of the input array
-        int size = rgbArray.length;
-        // Creates an array for each colour channel
-        int[] alpha = new int[size];
-        int[] red = new int[size];
-        int[] green = new int[size];
-        int[] blue = new int[size];
-
-        // Loops over every number in the input array
-        for (int i = 0; i < size; i++) {
-
-            int pixel = rgbArray[i];
-            // Splits each arRGB int into their a,r,g,b values and adds them to their
-            // respective channel's array
-            alpha[i] = (pixel & 0xFF000000) >> 24;
-            red[i] = (pixel & 0x00FF0000) >> 16;
-            green[i] = (pixel & 0x0000FF00) >> 8;
-            blue[i] = (pixel & 0x000000FF);
-
+    private static Workspace workspace(int width) {
+        SoftReference<Workspace> held = WORKSPACE.get();
+        Workspace workspace = held == null ? null : held.get();
+        if (workspace == null) {
+            workspace = new Workspace();
+            WORKSPACE.set(new SoftReference<Workspace>(workspace));
         }
-        // Takes the median value for each of the colour channels
-        int a = medianOfArray(alpha);
-        int r = medianOfArray(red);
-        int g = medianOfArray(green);
-        int b = medianOfArray(blue);
-        // Combines those values back into a single aRGB pixel value
-        int medianPixel = (a << 24) | (r << 16) | (g << 8) | b;
-
-        return medianPixel;
+        return workspace.ensureWidth(width);
     }
 
     /**
-     * Find the Median of an int array
-     * 
-     * This method returns the median (middle) value of a given int array
-     * If the array is odd, it returns the mean (average) value of the middle two
-     * values.
+     * Adds a pixel to, or removes it from, the histograms of a column
      * 
-     * @param array
-     * @return The median value of array
+     * @param fine   The fine histograms of every column, one array per channel
+     * @param coarse The coarse histograms of every column, one array per channel
+     * @param x      The column to change
+     * @param pixel  The aRGB pixel to add or remove
+     * @param count  1 to add the pixel, -1 to remove it
      */
-    private int medianOfArray(int[] array) {
-
-        // First sorts the array
-        Arrays.sort(array);
-
-        // Checks if the array is odd
-        if (array.length % 2 != 0) {
-            // Returns the middle value
-            return array[(array.length / 2 + 1)];
+    private static void addToColumn(short[][] fine, short[][] coarse, int x, int pixel, int count) {
+        for (int c = 0; c < CHANNELS; ++c) {
+            int value = (pixel >>> SHIFTS[c]) & 0xFF;
+            fine[c][x * 256 + value] += count;
+            coarse[c][x * 16 + (value >> 4)] += count;
         }
+    }
 
-        // Else returns the mean of the middle two values
-        return (array[(array.length / 2 + 1)] + array[(array.length / 2 - 1)] / 2);
+    /**
+     * @return The radius of the filter.
+     */
+    int getRadius() {
+        return radius;
+    }
 
+    /**
+     * @return How pixels beyond the edge of the image are read, one of the
+     *         {@link ConvolutionOperation} edge modes.
+     */
+    int getEdgeMode() {
+        return edgeMode;
     }
 
 }
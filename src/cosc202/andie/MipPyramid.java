@@ -0,0 +1,150 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ * Successively halved copies of an image, for drawing it zoomed out.
+ * </p>
+ *
+ * <p>
+ * Level 0 is the image itself, and each level after that is half the size of
+ * the one before. Drawing from the level nearest the zoom means shrinking by
+ * at most a half, which is both quicker and smoother than shrinking the full
+ * image a long way.
+ * </p>
+ *
+ * <p>
+ * Levels are only made when first asked for, and are made in the background
+ * one after another on a single shared thread. Until a level is ready the
+ * nearest larger one is handed out instead, and the listener is told each time
+ * a new level is ready.
+ * </p>
+ *
+ * @see ImagePanel
+ * @version 1.0
+ */
+public class MipPyramid {
+
+    /** Makes the levels of every pyramid, one at a time. */
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "andie-mipmaps");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /** The levels made so far, starting with the image itself. */
+    private final List<BufferedImage> levels = new CopyOnWriteArrayList<BufferedImage>();
+    /** The number of levels, down to one pixel across and down. */
+    private final int levelCount;
+    /** Told each time a level is ready, on the builder thread. */
+    private final Runnable listener;
+    /** The deepest level asked for so far. */
+    private int wanted;
+    /** True while levels are being made. */
+    private boolean building;
+    /** Set when the pyramid is no longer needed, to stop making levels. */
+    private volatile boolean discarded;
+
+    /**
+     * <p>
+     * Create a pyramid over an image.
+     * </p>
+     *
+     * @param image    The full size image.
+     * @param listener Told each time a new level is ready, or null.
+     */
+    public MipPyramid(BufferedImage image, Runnable listener) {
+        levels.add(image);
+        this.listener = listener;
+        int count = 1;
+        for (int size = Math.max(image.getWidth(), image.getHeight()); size > 1; size = (size + 1) / 2) {
+            count++;
+        }
+        this.levelCount = count;
+    }
+
+    /**
+     * <p>
+     * Choose the level to draw from at a zoom.
+     * </p>
+     *
+     * @param scale The zoom, where 1 is full size.
+     * @return The smallest level at least as large as the image at that zoom.
+     */
+    public int levelFor(double scale) {
+        int level = 0;
+        while (level + 1 < levelCount && scale <= Math.pow(0.5, level + 1)) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * <p>
+     * Get a level, or the nearest larger one if it is not ready yet.
+     * </p>
+     *
+     * <p>
+     * Asking for a level that is not ready starts it being made.
+     * </p>
+     *
+     * @param level The level wanted, where 0 is full size.
+     * @return The index of the level returned by {@link #getImage}.
+     */
+    public synchronized int getLevel(int level) {
+        level = Math.max(0, Math.min(level, levelCount - 1));
+        if (level >= levels.size() && level > wanted) {
+            wanted = level;
+            if (!building) {
+                building = true;
+                BUILDER.execute(this::build);
+            }
+        }
+        return Math.min(level, levels.size() - 1);
+    }
+
+    /**
+     * @param level A level that is ready, as returned by {@link #getLevel}.
+     * @return The image at that level.
+     */
+    public BufferedImage getImage(int level) {
+        return levels.get(level);
+    }
+
+    /**
+     * <p>
+     * Stop making levels, as the image has changed.
+     * </p>
+     */
+    public void discard() {
+        discarded = true;
+    }
+
+    /**
+     * <p>
+     * Make levels until the deepest one asked for is ready, on the builder
+     * thread.
+     * </p>
+     */
+    private void build() {
+        while (!discarded) {
+            synchronized (this) {
+                if (levels.size() > wanted) {
+                    building = false;
+                    return;
+                }
+            }
+            levels.add(Resampler.halve(levels.get(levels.size() - 1)));
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package cosc202.andie;
+
+import java.awt.Component;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.*;
+import javax.swing.*;
+
+/**
+ * <p>
+ * Opens an image into an {@link EditableImage} off the Swing event thread.
+ * </p>
+ *
+ * <p>
+ * Opening an image with a long list of operations used to leave the window
+ * frozen until every operation had been replayed. The worker first decodes a
+ * {@link EditableImage.Preview} of the image, subsampled if it is large, and
+ * shows it straight away. It then reads the whole image and its operations,
+ * replays them, and swaps the result in when it is done.
+ * </p>
+ *
+ * <p>
+ * The same worker restores a session left in the {@link OperationJournal} by a
+ * crash, making its edits to the saved operations before they are replayed.
+ * </p>
+ *
+ * <p>
+ * If another image is opened before this one is finished, this one is dropped
+ * when it finishes rather than replacing the newer image.
+ * </p>
+ *
+ * @see EditableImage#openInBackground(String, Component)
+ * @version 1.0
+ */
+public class OpenWorker extends SwingWorker<EditableImage.Loaded, EditableImage.Preview> {
+
+    /** Opens the images one after another. */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "andie-open");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** The image to open into. */
+    private final EditableImage image;
+    /** The file to open. */
+    private final String filePath;
+    /** Edits left in the journal by a crash, to restore, or null. */
+    private final OperationJournal.Session session;
+    /** Which opening of the image this is. */
+    private final int ticket;
+    /** The component showing the image, repainted as it loads. */
+    private final Component parent;
+
+    /**
+     * <p>
+     * Create a worker to open an image.
+     * </p>
+     *
+     * <p>
+     * The image does not start opening until {@link #start()} is called.
+     * </p>
+     *
+     * @param image    The image to open into.
+     * @param filePath The file to open.
+     * @param session  Edits left in the journal by a crash, to restore, or null.
+     * @param ticket   Which opening of the image this is.
+     * @param parent   The component showing the image.
+     */
+    OpenWorker(EditableImage image, String filePath, OperationJournal.Session session, int ticket,
+            Component parent) {
+        this.image = image;
+        this.filePath = filePath;
+        this.session = session;
+        this.ticket = ticket;
+        this.parent = parent;
+    }
+
+    /**
+     * <p>
+     * Queue the image to open after any already started.
+     * </p>
+     */
+    public void start() {
+        EXECUTOR.execute(this);
+    }
+
+    /**
+     * <p>
+     * Decode a preview, then read and replay the image, on the worker thread.
+     * </p>
+     *
+     * @return The image read.
+     * @throws Exception If the image cannot be read.
+     */
+    @Override
+    protected EditableImage.Loaded doInBackground() throws Exception {
+        EditableImage.Preview preview = null;
+        try {
+            preview = EditableImage.decodePreview(new File(filePath));
+        } catch (Exception ex) {
+            // Reading the whole image will report the problem
+        }
+        if (preview != null) {
+            publish(preview);
+        }
+        return image.load(filePath, preview, session);
+    }
+
+    /**
+     * <p>
+     * Show the preview, on the Swing event thread.
+     * </p>
+     *
+     * @param previews The previews published, of which there is only one.
+     */
+    @Override
+    protected void process(List<EditableImage.Preview> previews) {
+        image.showPreview(ticket, previews.get(previews.size() - 1));
+        parent.repaint();
+        if (parent.getParent() != null) {
+            parent.getParent().revalidate();
+        }
+    }
+
+    /**
+     * <p>
+     * Show the image, on the Swing event thread.
+     * </p>
+     */
+    @Override
+    protected void done() {
+        try {
+            image.finishOpen(ticket, get());
+        } catch (ExecutionException ex) {
+            if (image.finishOpen(ticket, null)) {
+                JOptionPane.showMessageDialog(parent.getParent(), new JLabel(ex.getCause().toString()), "Error",
+                        JOptionPane.OK_OPTION, null);
+            }
+        } catch (InterruptedException | CancellationException ex) {
+            image.finishOpen(ticket, null);
+        }
+        parent.repaint();
+        if (parent.getParent() != null) {
+            parent.getParent().revalidate();
+        }
+    }
+
+}
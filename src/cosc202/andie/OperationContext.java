@@ -0,0 +1,174 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.util.concurrent.CancellationException;
+
+/**
+ * <p>
+ * Progress reporting and cancellation for an operation being applied.
+ * </p>
+ *
+ * <p>
+ * While {@link #apply} runs an operation, the context is attached to the
+ * calling thread. Any work the operation hands to the {@link TileScheduler} is
+ * counted as it is done and reported to the context's {@link ProgressListener},
+ * and the scheduler checks before each band or chunk whether the context has
+ * been cancelled. Cancelling is cooperative: the operation stops at the next
+ * check by throwing a {@link CancellationException}, rather than being
+ * interrupted.
+ * </p>
+ *
+ * <p>
+ * Operations that do not use the scheduler still run, but report no progress
+ * until they finish and cannot be stopped part way.
+ * </p>
+ *
+ * @see OperationWorker
+ * @version 1.0
+ */
+public class OperationContext {
+
+    /** The context of the operation running on each thread, if any. */
+    private static final ThreadLocal<OperationContext> CURRENT = new ThreadLocal<OperationContext>();
+
+    /**
+     * <p>
+     * Something to tell about the progress of an operation.
+     * </p>
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called, from whichever thread did the work, as the operation progresses.
+         *
+         * @param fraction How much of the operation is done, from 0 to 1.
+         */
+        public void progress(double fraction);
+    }
+
+    /** Where progress is reported to, or null. */
+    private final ProgressListener listener;
+
+    /** True once the operation has been asked to stop. */
+    private volatile boolean cancelled;
+
+    /** The units of work handed to the scheduler so far. */
+    private long total;
+    /** The units of work finished so far. */
+    private long done;
+    /** The largest fraction reported so far, so progress never goes backwards. */
+    private double reported;
+
+    /**
+     * <p>
+     * Create a new context.
+     * </p>
+     *
+     * @param listener Where to report progress to, or null to not report it.
+     */
+    public OperationContext(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The context of the operation running on this thread, or null if
+     *         there is none.
+     */
+    public static OperationContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * <p>
+     * Apply an operation to an image within this context.
+     * </p>
+     *
+     * @param op    The operation to apply.
+     * @param input The image to apply it to.
+     * @return The resulting image.
+     * @throws CancellationException If the context was cancelled before the
+     *                               operation finished.
+     */
+    public BufferedImage apply(ImageOperation op, BufferedImage input) {
+        checkCancelled();
+        OperationContext outer = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            BufferedImage result = op.apply(input);
+            checkCancelled();
+            return result;
+        } finally {
+            CURRENT.set(outer);
+        }
+    }
+
+    /**
+     * <p>
+     * Ask the operation to stop.
+     * </p>
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return True if the operation has been asked to stop.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * <p>
+     * Stop the operation if it has been cancelled.
+     * </p>
+     *
+     * @throws CancellationException If the context has been cancelled.
+     */
+    public void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("operation cancelled");
+        }
+    }
+
+    /**
+     * <p>
+     * Wrap a piece of scheduled work so that it is counted and can be cancelled.
+     * </p>
+     *
+     * @param task  The work to do over each chunk.
+     * @param units The number of indices the work will cover in total.
+     * @return A task that checks for cancellation before each chunk and
+     *         reports progress after it.
+     */
+    TileScheduler.RangeTask track(TileScheduler.RangeTask task, int units) {
+        synchronized (this) {
+            total += units;
+        }
+        return new TileScheduler.RangeTask() {
+            public void run(int start, int end) {
+                checkCancelled();
+                task.run(start, end);
+                worked(end - start);
+            }
+        };
+    }
+
+    /**
+     * @param units The number of units of work just finished.
+     */
+    private void worked(int units) {
+        double fraction;
+        synchronized (this) {
+            done += units;
+            // Kept short of 1 until the operation returns, as it may yet hand
+            // more work to the scheduler
+            fraction = Math.max(reported, Math.min(0.99, (double) done / total));
+            reported = fraction;
+        }
+        if (listener != null) {
+            listener.progress(fraction);
+        }
+    }
+
+}
@@ -0,0 +1,541 @@
+package cosc202.andie;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Reads and writes sequences of operations in <code>.ops</code> and
+ * <code>.macro</code> files.
+ * </p>
+ *
+ * <p>
+ * Files are written in a compact binary format that does not depend on how the
+ * operation classes are laid out, so adding a field to an operation does not
+ * break files that are already saved. A file is:
+ * </p>
+ * <ul>
+ * <li>A header of the {@link #MAGIC} number, the format {@link #VERSION}, two
+ * bytes kept for flags, and the number of operations.</li>
+ * <li>One record for each operation, in the order they are applied. A record
+ * is a one byte tag saying which operation it is, the length of the rest of
+ * the record, and then the operation's settings.</li>
+ * <li>A CRC32 checksum of everything before it.</li>
+ * </ul>
+ *
+ * <p>
+ * Shapes are stored as the segments of their outline. Rectangles, ellipses
+ * and lines, which is what the drawing tools make, are stored by their corners
+ * or ends instead, which is smaller and gives back the same kind of shape, so
+ * it is drawn in exactly the same way.
+ * </p>
+ *
+ * <p>
+ * Every value is big-endian. An operation this class has no record for is
+ * stored with Java serialization inside a record of its own, so any sequence
+ * can still be saved. Files saved with Java serialization before this format
+ * existed are still read. So that they are, each operation class declares
+ * the serialVersionUID that serialver gave it in the first release, as adding
+ * a field or method would otherwise change the computed value and make the
+ * saved operations unreadable.
+ * </p>
+ *
+ * <p>
+ * A file is written to a temporary file beside it and then moved over it, so
+ * a crash or a full disk part way through leaves the old file as it was.
+ * A file is read straight into a buffer in the heap, and nothing is left open
+ * or mapped once it has been read, so it can be saved over at once.
+ * </p>
+ *
+ * @see EditableImage
+ * @version 1.0
+ */
+public class OperationFile {
+
+    /** The first four bytes of every file, "ANOP". */
+    public static final int MAGIC = 0x414E4F50;
+    /** The version of the format written. Newer versions are not read. */
+    public static final int VERSION = 1;
+
+    /** The first two bytes of a file written with Java serialization. */
+    private static final int SERIALIZED_MAGIC = 0xACED;
+
+    /** The bytes before the first record. */
+    private static final int HEADER_LENGTH = 12;
+
+    // The tag of each kind of record
+    private static final int TAG_SERIALIZED = 0;
+    private static final int TAG_BRIGHTNESS_CONTRAST = 1;
+    private static final int TAG_NEGATIVE = 2;
+    private static final int TAG_POSTERISATION = 3;
+    private static final int TAG_LOOKUP_TABLE = 4;
+    private static final int TAG_GREY = 5;
+    private static final int TAG_ROTATE = 6;
+    private static final int TAG_FLIP = 7;
+    private static final int TAG_RESIZE = 8;
+    private static final int TAG_CROP = 9;
+    private static final int TAG_DRAWING = 10;
+    private static final int TAG_MEAN = 11;
+    private static final int TAG_MEDIAN = 12;
+    private static final int TAG_GAUSSIAN = 13;
+    private static final int TAG_SHARPEN = 14;
+    private static final int TAG_EMBOSS = 15;
+    private static final int TAG_SOBEL = 16;
+
+    // The kind of each shape, before the shape itself
+    private static final int SHAPE_NONE = 0;
+    private static final int SHAPE_RECTANGLE = 1;
+    private static final int SHAPE_RECTANGLE_2D = 2;
+    private static final int SHAPE_ELLIPSE = 3;
+    private static final int SHAPE_LINE = 4;
+    private static final int SHAPE_PATH = 5;
+
+    /** Marks the end of the segments of a path. */
+    private static final int END_OF_PATH = -1;
+
+    private OperationFile() {
+    }
+
+    /**
+     * <p>
+     * Write a sequence of operations to a file.
+     * </p>
+     *
+     * @param path The file to write.
+     * @param ops  The operations, in the order they are applied.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(String path, List<ImageOperation> ops) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(0);
+        out.writeInt(ops.size());
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(record);
+        for (ImageOperation op : ops) {
+            record.reset();
+            int tag = encode(op, recordOut);
+            recordOut.flush();
+            out.writeByte(tag);
+            out.writeInt(record.size());
+            record.writeTo(out);
+        }
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        // Written beside the file so that it can be moved over it in one step
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * <p>
+     * Read a sequence of operations from a file.
+     * </p>
+     *
+     * @param path The file to read.
+     * @return The operations in the file, in the order they are applied.
+     * @throws StreamCorruptedException If the file is not an operations file or
+     *                                  is corrupted.
+     * @throws IOException              If the file cannot be read.
+     * @throws ClassNotFoundException   If the file holds an unknown operation.
+     */
+    public static Stack<ImageOperation> read(String path) throws IOException, ClassNotFoundException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Operations file is too large: " + path);
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Operations file ended early: " + path);
+                }
+            }
+            buffer.flip();
+        }
+
+        if (buffer.remaining() >= 2 && (buffer.getShort(0) & 0xFFFF) == SERIALIZED_MAGIC) {
+            return readSerialized(path);
+        }
+        try {
+            return decode(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            StreamCorruptedException corrupted = new StreamCorruptedException("Corrupted operations file: " + path);
+            corrupted.initCause(ex);
+            throw corrupted;
+        }
+    }
+
+    /**
+     * <p>
+     * Read a sequence of operations from a file saved with Java serialization.
+     * </p>
+     */
+    private static Stack<ImageOperation> readSerialized(String path) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(path))) {
+            // Silence the Java compiler warning about type casting.
+            // Understanding the cause of the warning is way beyond
+            // the scope of COSC202, but if you're interested, it has
+            // to do with "type erasure" in Java: the compiler cannot
+            // produce code that fails at this point in all cases in
+            // which there is actually a type mismatch for one of the
+            // elements within the Stack, i.e., a non-ImageOperation.
+            @SuppressWarnings("unchecked")
+            Stack<ImageOperation> opsFromFile = (Stack<ImageOperation>) objIn.readObject();
+            return opsFromFile;
+        }
+    }
+
+    /**
+     * <p>
+     * Check the header and checksum of a file and read its records.
+     * </p>
+     */
+    private static Stack<ImageOperation> decode(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        int length = buffer.remaining();
+        if (length < HEADER_LENGTH + 4 || buffer.getInt(0) != MAGIC) {
+            throw new StreamCorruptedException("Not an operations file");
+        }
+        int version = buffer.getShort(4) & 0xFFFF;
+        if (version > VERSION) {
+            throw new IOException("Operations file is from a newer version (" + version + ")");
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer checked = buffer.duplicate();
+        checked.limit(length - 4);
+        crc.update(checked);
+        if ((int) crc.getValue() != buffer.getInt(length - 4)) {
+            throw new StreamCorruptedException("Operations file is corrupted: checksum does not match");
+        }
+
+        buffer.position(8);
+        int count = buffer.getInt();
+        buffer.limit(length - 4);
+        Stack<ImageOperation> ops = new Stack<ImageOperation>();
+        for (int i = 0; i < count; i++) {
+            int tag = buffer.get() & 0xFF;
+            int size = buffer.getInt();
+            if (size < 0 || size > buffer.remaining()) {
+                throw new StreamCorruptedException("Operations file is corrupted: record " + i + " is cut short");
+            }
+            ByteBuffer record = buffer.slice();
+            record.limit(size);
+            ops.add(decode(tag, record));
+            buffer.position(buffer.position() + size);
+        }
+        return ops;
+    }
+
+    /**
+     * <p>
+     * Write the settings of an operation.
+     * </p>
+     *
+     * <p>
+     * Also used for the records of the {@link OperationJournal}.
+     * </p>
+     *
+     * @param op  The operation.
+     * @param out Where to write the settings.
+     * @return The tag of the record written.
+     */
+    static int encode(ImageOperation op, DataOutputStream out) throws IOException {
+        if (op instanceof BrightnessContrast) {
+            BrightnessContrast bc = (BrightnessContrast) op;
+            out.writeDouble(bc.getBrightness());
+            out.writeDouble(bc.getContrast());
+            return TAG_BRIGHTNESS_CONTRAST;
+        } else if (op instanceof ConvertToNegative) {
+            return TAG_NEGATIVE;
+        } else if (op instanceof Posterisation) {
+            out.writeInt(((Posterisation) op).getNumBands());
+            return TAG_POSTERISATION;
+        } else if (op instanceof LookupTable) {
+            for (int value : ((LookupTable) op).getLookupTable()) {
+                out.writeByte(value);
+            }
+            return TAG_LOOKUP_TABLE;
+        } else if (op instanceof ConvertToGrey) {
+            return TAG_GREY;
+        } else if (op instanceof RotateImage) {
+            out.writeByte(((RotateImage) op).getRotation());
+            return TAG_ROTATE;
+        } else if (op instanceof ImageFlip) {
+            out.writeByte(((ImageFlip) op).getDirection());
+            return TAG_FLIP;
+        } else if (op instanceof ResizeImage) {
+            ResizeImage resize = (ResizeImage) op;
+            out.writeInt(resize.resizedHeight);
+            out.writeInt(resize.resizedWidth);
+            out.writeDouble(resize.resizedScale);
+            out.writeByte(resize.filter);
+            return TAG_RESIZE;
+        } else if (op instanceof CropOperation) {
+            CropOperation crop = (CropOperation) op;
+            writeShape(crop.selection, out);
+            out.writeDouble(crop.scale);
+            out.writeInt(crop.xOffset);
+            out.writeInt(crop.yOffset);
+            return TAG_CROP;
+        } else if (op instanceof DrawingOperation) {
+            DrawingOperation drawing = (DrawingOperation) op;
+            writeShape(drawing.preview, out);
+            out.writeDouble(drawing.scale);
+            out.writeInt(drawing.xOffset);
+            out.writeInt(drawing.yOffset);
+            out.writeInt(drawing.colour.getRGB());
+            out.writeBoolean(drawing.fill);
+            return TAG_DRAWING;
+        } else if (op instanceof MeanFilter) {
+            MeanFilter mean = (MeanFilter) op;
+            out.writeInt(mean.getRadius());
+            out.writeByte(mean.getEdgeMode());
+            return TAG_MEAN;
+        } else if (op instanceof MedianFilter) {
+            MedianFilter median = (MedianFilter) op;
+            out.writeInt(median.getRadius());
+            out.writeByte(median.getEdgeMode());
+            return TAG_MEDIAN;
+        } else if (op instanceof GaussianFilter) {
+            GaussianFilter gaussian = (GaussianFilter) op;
+            out.writeInt(gaussian.getRadius());
+            out.writeByte(gaussian.getEdgeMode());
+            return TAG_GAUSSIAN;
+        } else if (op instanceof SharpenFilter) {
+            out.writeByte(((SharpenFilter) op).getEdgeMode());
+            return TAG_SHARPEN;
+        } else if (op instanceof EmbossFilter) {
+            EmbossFilter emboss = (EmbossFilter) op;
+            out.writeByte(emboss.getDirection());
+            out.writeByte(emboss.getEdgeMode());
+            return TAG_EMBOSS;
+        } else if (op instanceof SobelFilter) {
+            SobelFilter sobel = (SobelFilter) op;
+            out.writeBoolean(sobel.getDirection());
+            out.writeByte(sobel.getEdgeMode());
+            return TAG_SOBEL;
+        }
+
+        // Anything else is kept whole with Java serialization
+        ObjectOutputStream objOut = new ObjectOutputStream(out);
+        objOut.writeObject(op);
+        objOut.flush();
+        return TAG_SERIALIZED;
+    }
+
+    /**
+     * <p>
+     * Make an operation from its record.
+     * </p>
+     *
+     * @param tag The tag of the record.
+     * @param in  The settings of the operation.
+     * @return The operation.
+     * @throws StreamCorruptedException If the tag is unknown.
+     */
+    static ImageOperation decode(int tag, ByteBuffer in) throws IOException, ClassNotFoundException {
+        switch (tag) {
+            case TAG_BRIGHTNESS_CONTRAST:
+                return new BrightnessContrast(in.getDouble(), in.getDouble());
+            case TAG_NEGATIVE:
+                return new ConvertToNegative();
+            case TAG_POSTERISATION:
+                return new Posterisation(in.getInt());
+            case TAG_LOOKUP_TABLE: {
+                int[] table = new int[256];
+                for (int v = 0; v < table.length; v++) {
+                    table[v] = in.get() & 0xFF;
+                }
+                return new LookupTable(table);
+            }
+            case TAG_GREY:
+                return new ConvertToGrey();
+            case TAG_ROTATE:
+                return new RotateImage(in.get());
+            case TAG_FLIP:
+                return new ImageFlip(in.get());
+            case TAG_RESIZE:
+                return new ResizeImage(in.getInt(), in.getInt(), in.getDouble(), in.get());
+            case TAG_CROP:
+                return new CropOperation(readShape(in), in.getDouble(), in.getInt(), in.getInt());
+            case TAG_DRAWING:
+                return new DrawingOperation(readShape(in), in.getDouble(), in.getInt(), in.getInt(),
+                        new Color(in.getInt(), true), in.get() != 0);
+            case TAG_MEAN:
+                // Mean filters saved before they had an edge mode clamped their edges
+                return new MeanFilter(in.getInt(), in.hasRemaining() ? in.get() : ConvolutionOperation.EDGE_CLAMP);
+            case TAG_MEDIAN:
+                return new MedianFilter(in.getInt(), in.get());
+            case TAG_GAUSSIAN:
+                return new GaussianFilter(in.getInt(), in.get());
+            case TAG_SHARPEN:
+                return new SharpenFilter(in.get());
+            case TAG_EMBOSS:
+                return new EmbossFilter(in.get(), in.get());
+            case TAG_SOBEL:
+                return new SobelFilter(in.get() != 0, in.get());
+            case TAG_SERIALIZED: {
+                byte[] bytes = new byte[in.remaining()];
+                in.get(bytes);
+                try (ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (ImageOperation) objIn.readObject();
+                }
+            }
+            default:
+                throw new StreamCorruptedException("Unknown operation in operations file (tag " + tag + ")");
+        }
+    }
+
+    /**
+     * <p>
+     * Write a shape as its kind followed by its corners, ends or outline.
+     * </p>
+     */
+    private static void writeShape(Shape shape, DataOutputStream out) throws IOException {
+        if (shape == null) {
+            out.writeByte(SHAPE_NONE);
+        } else if (shape instanceof Rectangle) {
+            Rectangle rect = (Rectangle) shape;
+            out.writeByte(SHAPE_RECTANGLE);
+            out.writeInt(rect.x);
+            out.writeInt(rect.y);
+            out.writeInt(rect.width);
+            out.writeInt(rect.height);
+        } else if (shape instanceof RectangularShape
+                && (shape instanceof Rectangle2D || shape instanceof Ellipse2D)) {
+            RectangularShape frame = (RectangularShape) shape;
+            out.writeByte(shape instanceof Ellipse2D ? SHAPE_ELLIPSE : SHAPE_RECTANGLE_2D);
+            out.writeDouble(frame.getX());
+            out.writeDouble(frame.getY());
+            out.writeDouble(frame.getWidth());
+            out.writeDouble(frame.getHeight());
+        } else if (shape instanceof Line2D) {
+            Line2D line = (Line2D) shape;
+            out.writeByte(SHAPE_LINE);
+            out.writeDouble(line.getX1());
+            out.writeDouble(line.getY1());
+            out.writeDouble(line.getX2());
+            out.writeDouble(line.getY2());
+        } else {
+            double[] coords = new double[6];
+            PathIterator it = shape.getPathIterator(null);
+            out.writeByte(SHAPE_PATH);
+            out.writeByte(it.getWindingRule());
+            for (; !it.isDone(); it.next()) {
+                int type = it.currentSegment(coords);
+                out.writeByte(type);
+                for (int i = 0; i < pointsIn(type) * 2; i++) {
+                    out.writeDouble(coords[i]);
+                }
+            }
+            out.writeByte(END_OF_PATH);
+        }
+    }
+
+    /**
+     * <p>
+     * Read a shape written by {@link #writeShape}.
+     * </p>
+     */
+    private static Shape readShape(ByteBuffer in) throws IOException {
+        int kind = in.get();
+        switch (kind) {
+            case SHAPE_NONE:
+                return null;
+            case SHAPE_RECTANGLE:
+                return new Rectangle(in.getInt(), in.getInt(), in.getInt(), in.getInt());
+            case SHAPE_RECTANGLE_2D:
+                return new Rectangle2D.Double(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+            case SHAPE_ELLIPSE:
+                return new Ellipse2D.Double(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+            case SHAPE_LINE:
+                return new Line2D.Double(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+            case SHAPE_PATH:
+                break;
+            default:
+                throw new StreamCorruptedException("Unknown shape in operations file (" + kind + ")");
+        }
+
+        Path2D.Double path = new Path2D.Double(in.get());
+        double[] c = new double[6];
+        for (int type = in.get(); type != END_OF_PATH; type = in.get()) {
+            for (int i = 0; i < pointsIn(type) * 2; i++) {
+                c[i] = in.getDouble();
+            }
+            switch (type) {
+                case PathIterator.SEG_MOVETO:
+                    path.moveTo(c[0], c[1]);
+                    break;
+                case PathIterator.SEG_LINETO:
+                    path.lineTo(c[0], c[1]);
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    path.quadTo(c[0], c[1], c[2], c[3]);
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    path.curveTo(c[0], c[1], c[2], c[3], c[4], c[5]);
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    path.closePath();
+                    break;
+                default:
+                    throw new StreamCorruptedException("Unknown shape segment in operations file (" + type + ")");
+            }
+        }
+        return path;
+    }
+
+    /**
+     * @param type The type of a path segment.
+     * @return The number of points the segment has.
+     */
+    private static int pointsIn(int type) {
+        switch (type) {
+            case PathIterator.SEG_MOVETO:
+            case PathIterator.SEG_LINETO:
+                return 1;
+            case PathIterator.SEG_QUADTO:
+                return 2;
+            case PathIterator.SEG_CUBICTO:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+}
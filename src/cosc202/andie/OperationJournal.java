@@ -0,0 +1,542 @@
+package cosc202.andie;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A file that every change to the operations of an {@link EditableImage} is
+ * added to as it happens, so the session can be restored after a crash.
+ * </p>
+ *
+ * <p>
+ * The journal starts when an image is opened or saved, with a header naming
+ * the image file and a snapshot of the operations applied and undone as they
+ * are held in memory. The saved <code>.ops</code> file is not used, as it
+ * holds the operations after the {@link OperationOptimiser} has merged them
+ * and none of those undone. After that each operation applied, each undo and
+ * redo, and each jump through the history is added as one record of its own.
+ * A record is a fixed ten byte header of its kind, the tag of its operation,
+ * the length of the rest of the record and a CRC32 of it, followed by the
+ * operation's settings as {@link OperationFile} stores them.
+ * Adding a record costs the same however long the history is.
+ * </p>
+ *
+ * <p>
+ * Records are written straight to the file, but only forced onto the disk
+ * every {@link #SYNC_MILLIS} milliseconds by a background thread, so editing
+ * never waits on the disk. A crash can lose at most the last few records. A
+ * record cut short by a crash fails its checksum, and it and anything after it
+ * are ignored.
+ * </p>
+ *
+ * <p>
+ * The journal is deleted when the user quits, so a journal with records in
+ * it at startup was left by a crash, or by the program being killed. Only one running program uses
+ * a journal file at once.
+ * </p>
+ *
+ * @see EditableImage#setJournal(OperationJournal)
+ * @version 1.0
+ */
+public class OperationJournal {
+
+    /** The first four bytes of a journal, "ANJL". */
+    private static final int MAGIC = 0x414E4A4C;
+    /** The version of the format written. */
+    private static final int VERSION = 1;
+
+    /**
+     * How often the journal is forced onto the disk, in milliseconds. Set with
+     * the {@code andie.journalSyncMillis} system property.
+     */
+    public static final long SYNC_MILLIS = Long.getLong("andie.journalSyncMillis", 500);
+
+    /** The bytes in the header of each record. */
+    private static final int RECORD_HEADER = 10;
+
+    // The kinds of record
+    private static final int PUSH = 1;
+    private static final int UNDO = 2;
+    private static final int REDO = 3;
+    private static final int GO_TO = 4;
+    private static final int SNAPSHOT = 5;
+
+    /**
+     * <p>
+     * The changes recorded in a journal left by a crash.
+     * </p>
+     */
+    public static class Session {
+
+        /** The image the journal started from. */
+        private final String imageFilename;
+        /** The kind of each record, in order. */
+        private final List<Integer> kinds = new ArrayList<Integer>();
+        /** The operation, step or snapshot of each record, or null. */
+        private final List<Object> values = new ArrayList<Object>();
+        /** The number of unsaved changes. */
+        private int changes;
+
+        Session(String imageFilename) {
+            this.imageFilename = imageFilename;
+        }
+
+        /**
+         * @return The image file the session started from.
+         */
+        public String getImageFilename() {
+            return imageFilename;
+        }
+
+        /**
+         * @return The number of unsaved changes recorded, including those
+         *         restored from an earlier crash.
+         */
+        public int size() {
+            return changes;
+        }
+
+        /**
+         * <p>
+         * Make the recorded changes to the operations of an image.
+         * </p>
+         *
+         * <p>
+         * The operations are replaced by those of the snapshot the journal
+         * starts with. A journal written before there were snapshots starts
+         * from the operations passed in, which are then those of the saved
+         * <code>.ops</code> file.
+         * </p>
+         *
+         * @param ops     The operations applied, changed in place.
+         * @param redoOps The operations undone, changed in place.
+         */
+        @SuppressWarnings("unchecked")
+        void replay(Stack<ImageOperation> ops, Stack<ImageOperation> redoOps) {
+            for (int i = 0; i < kinds.size(); i++) {
+                switch (kinds.get(i)) {
+                    case SNAPSHOT:
+                        List<ImageOperation>[] snapshot = (List<ImageOperation>[]) values.get(i);
+                        ops.clear();
+                        ops.addAll(snapshot[0]);
+                        redoOps.clear();
+                        redoOps.addAll(snapshot[1]);
+                        break;
+                    case PUSH:
+                        ops.push((ImageOperation) values.get(i));
+                        break;
+                    case UNDO:
+                        if (!ops.empty()) {
+                            redoOps.push(ops.pop());
+                        }
+                        break;
+                    case REDO:
+                        if (!redoOps.empty()) {
+                            ops.push(redoOps.pop());
+                        }
+                        break;
+                    case GO_TO:
+                        int step = (Integer) values.get(i);
+                        while (ops.size() > step) {
+                            redoOps.push(ops.pop());
+                        }
+                        while (ops.size() < step && !redoOps.empty()) {
+                            ops.push(redoOps.pop());
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    /** The journal file. */
+    private final Path path;
+    /** The open journal file. */
+    private final FileChannel channel;
+    /** Keeps other running programs from using the same journal. */
+    private final FileLock lock;
+    /** Forces the journal onto the disk now and then. */
+    private final ScheduledExecutorService syncer;
+
+    /** Set when records have been written since the journal was last forced. */
+    private volatile boolean dirty;
+    /** Set when the journal cannot be written, after which it is left alone. */
+    private volatile boolean failed;
+    /** True once the journal has a header, so records may be added. */
+    private boolean started;
+
+    // Reused to encode each record
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    private final ByteArrayOutputStream opBytes = new ByteArrayOutputStream();
+    private final DataOutputStream opOut = new DataOutputStream(opBytes);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * <p>
+     * Open a journal file, creating it if needed.
+     * </p>
+     *
+     * <p>
+     * Anything already in the file is kept until {@link #start} or
+     * {@link #clear} is called, so it can first be read with {@link #recover}.
+     * </p>
+     *
+     * @param file The journal file.
+     * @throws IOException If the file cannot be opened, or another running
+     *                     program is using it.
+     */
+    public OperationJournal(File file) throws IOException {
+        this.path = file.toPath();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileLock held;
+        try {
+            held = channel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            held = null;
+        }
+        if (held == null) {
+            channel.close();
+            throw new IOException("Journal is in use by another program: " + file);
+        }
+        this.lock = held;
+
+        syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "andie-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        syncer.scheduleWithFixedDelay(this::sync, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>
+     * Get the journal file used unless another is chosen.
+     * </p>
+     *
+     * @return The file named by the {@code andie.journal} system property, or
+     *         <code>.andie/session.journal</code> in the user's home directory.
+     */
+    public static File defaultFile() {
+        String file = System.getProperty("andie.journal");
+        if (file != null) {
+            return new File(file);
+        }
+        return new File(new File(System.getProperty("user.home"), ".andie"), "session.journal");
+    }
+
+    /**
+     * <p>
+     * Read the changes left in the journal by a crash.
+     * </p>
+     *
+     * @return The changes, or null if the journal has no changes in it.
+     */
+    public synchronized Session recover() {
+        try {
+            long size = channel.size();
+            if (size < 8 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC || (buffer.getShort() & 0xFFFF) > VERSION) {
+                return null;
+            }
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            Session session = new Session(new String(name, StandardCharsets.UTF_8));
+
+            // Reads records until the end, or one that was cut short
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int kind = buffer.get();
+                int tag = buffer.get() & 0xFF;
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer record = buffer.slice();
+                record.limit(length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                buffer.position(buffer.position() + length);
+                session.kinds.add(kind);
+                if (kind == SNAPSHOT) {
+                    session.changes += record.getInt();
+                    List<ImageOperation> ops = readOperations(record, record.getInt());
+                    List<ImageOperation> redoOps = readOperations(record, record.getInt());
+                    session.values.add(new List<?>[] { ops, redoOps });
+                    continue;
+                }
+                session.changes++;
+                if (kind == PUSH) {
+                    session.values.add(OperationFile.decode(tag, record));
+                } else if (kind == GO_TO) {
+                    session.values.add(record.getInt());
+                } else {
+                    session.values.add(null);
+                }
+            }
+            return session.size() > 0 ? session : null;
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            // A journal that cannot be read has nothing to recover
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Read the operations of a snapshot record.
+     * </p>
+     */
+    private static List<ImageOperation> readOperations(ByteBuffer record, int count)
+            throws IOException, ClassNotFoundException {
+        List<ImageOperation> ops = new ArrayList<ImageOperation>();
+        for (int i = 0; i < count; i++) {
+            int tag = record.get() & 0xFF;
+            int length = record.getInt();
+            ByteBuffer settings = record.slice();
+            settings.limit(length);
+            ops.add(OperationFile.decode(tag, settings));
+            record.position(record.position() + length);
+        }
+        return ops;
+    }
+
+    /**
+     * <p>
+     * Empty the journal and start it again from an image and its operations.
+     * </p>
+     *
+     * <p>
+     * The snapshot is a single record, so a crash while writing it leaves a
+     * journal with nothing to restore rather than one with only some of the
+     * operations.
+     * </p>
+     *
+     * @param imageFilename The image file holding the original image.
+     * @param ops           The operations applied, as held in memory.
+     * @param redoOps       The operations undone, from the bottom of the stack.
+     * @param unsaved       The number of changes already in the operations that
+     *                      are not saved, as when a session has just been
+     *                      restored.
+     */
+    public synchronized void start(String imageFilename, List<ImageOperation> ops, List<ImageOperation> redoOps,
+            int unsaved) {
+        byte[] name = imageFilename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(8 + name.length);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) name.length);
+        header.put(name);
+        header.flip();
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            writeFully(header);
+            payload.reset();
+            payloadOut.writeInt(unsaved);
+            writeOperations(ops);
+            writeOperations(redoOps);
+            payloadOut.flush();
+            append(SNAPSHOT, 0);
+            started = true;
+        } catch (IOException ex) {
+            failed = true;
+        }
+    }
+
+    /**
+     * <p>
+     * Add a count of operations and each operation to the payload.
+     * </p>
+     */
+    private void writeOperations(List<ImageOperation> ops) throws IOException {
+        payloadOut.writeInt(ops.size());
+        for (ImageOperation op : ops) {
+            opBytes.reset();
+            int tag = OperationFile.encode(op, opOut);
+            opOut.flush();
+            payloadOut.writeByte(tag);
+            payloadOut.writeInt(opBytes.size());
+            opBytes.writeTo(payloadOut);
+        }
+    }
+
+    /**
+     * <p>
+     * Empty the journal, when there is no image.
+     * </p>
+     */
+    public synchronized void clear() {
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            started = false;
+            dirty = true;
+        } catch (IOException ex) {
+            failed = true;
+        }
+    }
+
+    /**
+     * <p>
+     * Record that an operation was applied.
+     * </p>
+     *
+     * @param op The operation.
+     */
+    public synchronized void push(ImageOperation op) {
+        if (!started || failed) {
+            return;
+        }
+        try {
+            payload.reset();
+            int tag = OperationFile.encode(op, payloadOut);
+            payloadOut.flush();
+            append(PUSH, tag);
+        } catch (IOException ex) {
+            failed = true;
+        }
+    }
+
+    /**
+     * <p>
+     * Record that the last operation was undone.
+     * </p>
+     */
+    public synchronized void undo() {
+        record(UNDO);
+    }
+
+    /**
+     * <p>
+     * Record that the last operation undone was redone.
+     * </p>
+     */
+    public synchronized void redo() {
+        record(REDO);
+    }
+
+    /**
+     * <p>
+     * Record a jump to a step in the history.
+     * </p>
+     *
+     * @param step The number of operations applied after the jump.
+     */
+    public synchronized void goTo(int step) {
+        if (!started || failed) {
+            return;
+        }
+        payload.reset();
+        try {
+            payloadOut.writeInt(step);
+            payloadOut.flush();
+            append(GO_TO, 0);
+        } catch (IOException ex) {
+            failed = true;
+        }
+    }
+
+    /**
+     * <p>
+     * Stop using the journal and delete it, when the user quits.
+     * </p>
+     */
+    public synchronized void close() {
+        syncer.shutdownNow();
+        try {
+            lock.release();
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            // Nothing more can be done as the program exits
+        }
+    }
+
+    /**
+     * <p>
+     * Add a record with no operation.
+     * </p>
+     */
+    private void record(int kind) {
+        if (!started || failed) {
+            return;
+        }
+        payload.reset();
+        try {
+            append(kind, 0);
+        } catch (IOException ex) {
+            failed = true;
+        }
+    }
+
+    /**
+     * <p>
+     * Add a record holding the encoded payload to the end of the journal.
+     * </p>
+     */
+    private void append(int kind, int tag) throws IOException {
+        byte[] bytes = payload.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bytes.length);
+        record.put((byte) kind);
+        record.put((byte) tag);
+        record.putInt(bytes.length);
+        record.putInt((int) crc.getValue());
+        record.put(bytes);
+        record.flip();
+        writeFully(record);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        dirty = true;
+    }
+
+    /**
+     * <p>
+     * Force the journal onto the disk if it has changed, on the background
+     * thread.
+     * </p>
+     */
+    private void sync() {
+        if (!dirty || failed) {
+            return;
+        }
+        dirty = false;
+        try {
+            channel.force(false);
+        } catch (IOException ex) {
+            failed = true;
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package cosc202.andie;
+
+import java.util.*;
+
+/**
+ * <p>
+ * Simplifies a sequence of operations without changing its result.
+ * </p>
+ *
+ * <p>
+ * Stacks and macros often hold steps that undo or repeat each other, such as
+ * two flips in the same direction, a quarter turn each way, two negatives or
+ * a repeated greyscale conversion. The optimiser removes them, so replaying
+ * the sequence does strictly less work while giving exactly the same pixels:
+ * </p>
+ * <ul>
+ * <li>Runs of {@link RotateImage} and {@link ImageFlip} are folded into one
+ * {@link Dihedral} transform and replaced by at most two operations. Colour
+ * operations in between move past them, as they act on each pixel alone.</li>
+ * <li>Runs of {@link LookupOperation}s that together change nothing are
+ * removed.</li>
+ * <li>A {@link ConvertToGrey} straight after another is removed.</li>
+ * <li>Consecutive {@link BrightnessContrast} operations are merged where a
+ * single one has exactly the same lookup table.</li>
+ * </ul>
+ *
+ * <p>
+ * Operations are never changed, only dropped or replaced, and a run is left
+ * alone if it cannot be made shorter.
+ * </p>
+ *
+ * @version 1.0
+ */
+public class OperationOptimiser {
+
+    private OperationOptimiser() {
+    }
+
+    /**
+     * <p>
+     * Simplify a sequence of operations.
+     * </p>
+     *
+     * @param ops The operations, in the order they are applied.
+     * @return A sequence with the same effect and no more operations.
+     */
+    public static Stack<ImageOperation> optimise(List<ImageOperation> ops) {
+        Stack<ImageOperation> result = new Stack<ImageOperation>();
+        List<ImageOperation> run = new ArrayList<ImageOperation>();
+        for (ImageOperation op : ops) {
+            if (Dihedral.of(op) == null && !isPointOperation(op)) {
+                foldRun(run, result);
+                result.add(op);
+            } else {
+                run.add(op);
+            }
+        }
+        foldRun(run, result);
+        return result;
+    }
+
+    /**
+     * <p>
+     * Simplify a run of rotations, flips and colour operations, and empty it.
+     * </p>
+     *
+     * @param run    The run, in order.
+     * @param result Where to add the simplified run.
+     */
+    private static void foldRun(List<ImageOperation> run, List<ImageOperation> result) {
+        Dihedral transform = Dihedral.IDENTITY;
+        int geometric = 0;
+        List<ImageOperation> colour = new ArrayList<ImageOperation>();
+        for (ImageOperation op : run) {
+            Dihedral step = Dihedral.of(op);
+            if (step != null) {
+                transform = transform.then(step);
+                geometric++;
+            } else {
+                colour.add(op);
+            }
+        }
+        List<ImageOperation> folded = transform.toOperations();
+        List<ImageOperation> simplified = simplifyColour(colour);
+        if (folded.size() < geometric) {
+            // Each colour operation changes each pixel on its own, so it gives the
+            // same result whether the pixels are moved before or after it
+            result.addAll(folded);
+            result.addAll(simplified);
+        } else if (simplified.size() < colour.size()) {
+            result.addAll(geometric == 0 ? simplified : mergeInPlace(run, simplified));
+        } else {
+            result.addAll(run);
+        }
+        run.clear();
+    }
+
+    /**
+     * <p>
+     * Put simplified colour operations back among the rotations and flips of a
+     * run, where the rotations and flips could not be folded.
+     * </p>
+     *
+     * @param run        The run, in order.
+     * @param simplified The simplified colour operations.
+     * @return The rotations and flips in their original order, followed by the
+     *         colour operations.
+     */
+    private static List<ImageOperation> mergeInPlace(List<ImageOperation> run, List<ImageOperation> simplified) {
+        List<ImageOperation> merged = new ArrayList<ImageOperation>();
+        for (ImageOperation op : run) {
+            if (Dihedral.of(op) != null) {
+                merged.add(op);
+            }
+        }
+        merged.addAll(simplified);
+        return merged;
+    }
+
+    /**
+     * <p>
+     * Remove and merge redundant colour operations.
+     * </p>
+     *
+     * @param colour Colour operations, in order.
+     * @return The operations left, in order.
+     */
+    private static List<ImageOperation> simplifyColour(List<ImageOperation> colour) {
+        List<ImageOperation> out = new ArrayList<ImageOperation>();
+        for (ImageOperation op : colour) {
+            if (op instanceof ConvertToGrey && !out.isEmpty() && out.get(out.size() - 1) instanceof ConvertToGrey) {
+                // Grey pixels are left as they are by a second conversion
+                continue;
+            }
+            out.add(op);
+            if (op instanceof LookupOperation) {
+                dropIdentity(out);
+            }
+        }
+
+        // Merge brightness and contrast changes pairwise where that is exact
+        for (int i = out.size() - 1; i > 0; i--) {
+            if (out.get(i) instanceof BrightnessContrast && out.get(i - 1) instanceof BrightnessContrast) {
+                BrightnessContrast merged = ((BrightnessContrast) out.get(i - 1))
+                        .merge((BrightnessContrast) out.get(i));
+                if (merged != null) {
+                    out.set(i - 1, merged);
+                    out.remove(i);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * <p>
+     * Remove the shortest run of lookup operations at the end of a list that
+     * together change nothing, if there is one.
+     * </p>
+     *
+     * @param out The operations so far, ending with a lookup operation.
+     */
+    private static void dropIdentity(List<ImageOperation> out) {
+        // Built up from the end, table[v] is what the last few operations map v to
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = v;
+        }
+        for (int start = out.size() - 1; start >= 0 && out.get(start) instanceof LookupOperation; start--) {
+            int[] earlier = ((LookupOperation) out.get(start)).getLookupTable();
+            boolean identity = true;
+            int[] combined = new int[256];
+            for (int v = 0; v < 256; v++) {
+                combined[v] = table[earlier[v]];
+                identity &= combined[v] == v;
+            }
+            if (identity) {
+                out.subList(start, out.size()).clear();
+                return;
+            }
+            table = combined;
+        }
+    }
+
+    /**
+     * @param op An operation.
+     * @return True if the operation changes each pixel by its own value alone,
+     *         so it can be moved past rotations and flips.
+     */
+    private static boolean isPointOperation(ImageOperation op) {
+        return op instanceof LookupOperation || op instanceof ConvertToGrey;
+    }
+
+}
@@ -0,0 +1,172 @@
+package cosc202.andie;
+
+import java.awt.Component;
+import java.awt.image.*;
+import java.util.concurrent.*;
+import javax.swing.*;
+
+/**
+ * <p>
+ * Applies an {@link ImageOperation} to an {@link EditableImage} off the Swing
+ * event thread.
+ * </p>
+ *
+ * <p>
+ * The operation is applied to a copy of the current image, so the interface
+ * stays responsive and keeps painting the old image until the new one is
+ * ready. The result then replaces the current image in a single step.
+ * If the image was changed in the meantime (for example by an undo), the
+ * operation is applied again to the new image, so a result is never added on
+ * top of the wrong history.
+ * </p>
+ *
+ * <p>
+ * Operations run one at a time, in the order they were started, on a single
+ * worker thread. Progress is shown in a {@link ProgressMonitor}, which pops up
+ * if the operation takes more than half a second, and cancelling it stops the
+ * operation through its {@link OperationContext}.
+ * </p>
+ *
+ * @see EditableImage#applyInBackground(ImageOperation, Component)
+ * @version 1.0
+ */
+public class OperationWorker extends SwingWorker<Void, Void> {
+
+    /** Runs the operations one after another. */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "andie-operations");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** How often the progress monitor is updated, in milliseconds. */
+    private static final int UPDATE_INTERVAL = 100;
+
+    /** The image to apply the operation to. */
+    private final EditableImage image;
+    /** The operation to apply. */
+    private final ImageOperation op;
+    /** The component showing the image, repainted when the operation finishes. */
+    private final Component parent;
+    /** Reports progress from the operation and lets it be cancelled. */
+    private final OperationContext context;
+
+    /** Shows the progress of the operation. */
+    private ProgressMonitor monitor;
+    /** Updates the progress monitor. */
+    private Timer timer;
+
+    /**
+     * <p>
+     * Create a worker to apply an operation.
+     * </p>
+     *
+     * <p>
+     * This must be called on the Swing event thread. The operation does not start
+     * until {@link #start()} is called.
+     * </p>
+     *
+     * @param image  The image to apply the operation to.
+     * @param op     The operation to apply.
+     * @param parent The component showing the image.
+     */
+    OperationWorker(EditableImage image, ImageOperation op, Component parent) {
+        this.image = image;
+        this.op = op;
+        this.parent = parent;
+        this.context = new OperationContext(new OperationContext.ProgressListener() {
+            public void progress(double fraction) {
+                setProgress((int) (fraction * 100));
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Queue the operation to run after any operations already started.
+     * </p>
+     */
+    public void start() {
+        monitor = new ProgressMonitor(parent, "Applying " + op.getClass().getSimpleName(), null, 0, 100);
+        timer = new Timer(UPDATE_INTERVAL, e -> {
+            if (monitor.isCanceled()) {
+                context.cancel();
+            } else {
+                monitor.setProgress(getProgress());
+            }
+        });
+        timer.start();
+        EXECUTOR.execute(this);
+    }
+
+    /**
+     * <p>
+     * Ask the operation to stop.
+     * </p>
+     *
+     * <p>
+     * The operation stops at its next chance, and the image is left as it was.
+     * </p>
+     */
+    public void stop() {
+        context.cancel();
+    }
+
+    /**
+     * <p>
+     * Apply the operation, on the worker thread.
+     * </p>
+     *
+     * @return Nothing.
+     * @throws CancellationException If the operation was cancelled.
+     */
+    @Override
+    protected Void doInBackground() {
+        while (true) {
+            long version;
+            BufferedImage input;
+            // Copying may first bring pending rotations and flips into the pixels,
+            // so the version is read after the copy, while still holding the lock
+            synchronized (image) {
+                input = image.copyCurrent();
+                version = image.getVersion();
+            }
+            long start = System.nanoTime();
+            BufferedImage result = image.getProfiler().run(op, input, context, false);
+            context.checkCancelled();
+            if (image.commit(op, result, version, System.nanoTime() - start)) {
+                return null;
+            }
+            // The image changed while the operation ran, so it is applied again
+        }
+    }
+
+    /**
+     * <p>
+     * Tidy up and show the result, on the Swing event thread.
+     * </p>
+     */
+    @Override
+    protected void done() {
+        if (timer != null) {
+            timer.stop();
+            monitor.close();
+        }
+        try {
+            get();
+        } catch (ExecutionException ex) {
+            if (!(ex.getCause() instanceof CancellationException)) {
+                JOptionPane.showMessageDialog(parent, new JLabel("Operation could not be applied"), "Error",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        } catch (InterruptedException | CancellationException ex) {
+        }
+        parent.repaint();
+        if (parent.getParent() != null) {
+            parent.getParent().revalidate();
+        }
+    }
+
+}
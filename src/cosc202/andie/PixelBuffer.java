@@ -0,0 +1,209 @@
+package cosc202.andie;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.*;
+
+/**
+ * <p>
+ * Direct access to the packed pixels of an image.
+ * </p>
+ *
+ * <p>
+ * {@link BufferedImage#getRGB(int, int)} and
+ * {@link BufferedImage#setRGB(int, int, int)} go through the image's
+ * {@link ColorModel} on every call, which makes them far too slow to use in the
+ * inner loop of an {@link ImageOperation}.
+ * A PixelBuffer wraps an image stored in one of the canonical int-packed
+ * formats ({@code TYPE_INT_ARGB} or {@code TYPE_INT_RGB}) and exposes the
+ * {@code int[]} backing its {@link DataBufferInt}, so operations can read and
+ * write {@code 0xAARRGGBB} values from a plain array.
+ * </p>
+ *
+ * <p>
+ * Pixels are stored row by row, so the pixel at {@code (x, y)} is at index
+ * {@code y * getWidth() + x}.
+ * Writes to the array are writes to the image.
+ * </p>
+ *
+ * @version 1.0
+ */
+public class PixelBuffer {
+
+    /** The image whose pixels are being accessed. */
+    private final BufferedImage image;
+    /** The array backing the image's raster. */
+    private final int[] pixels;
+    /** The width of the image. */
+    private final int width;
+    /** The height of the image. */
+    private final int height;
+
+    /**
+     * <p>
+     * Wrap an image that is already in a canonical packed format.
+     * </p>
+     *
+     * @param image The image to wrap.
+     * @throws IllegalArgumentException If the image is not in a packed format.
+     * @see #isPacked(BufferedImage)
+     */
+    public PixelBuffer(BufferedImage image) {
+        if (!isPacked(image)) {
+            throw new IllegalArgumentException("image is not in a packed int format");
+        }
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * <p>
+     * Create a new, blank, {@code TYPE_INT_ARGB} pixel buffer.
+     * </p>
+     *
+     * @param width  The width of the new buffer.
+     * @param height The height of the new buffer.
+     */
+    public PixelBuffer(int width, int height) {
+        this(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    /**
+     * <p>
+     * Get a PixelBuffer for any image.
+     * </p>
+     *
+     * <p>
+     * If the image is already in a packed format it is wrapped directly, and
+     * changes to the buffer change the image.
+     * Otherwise the image is first converted with {@link #normalise}, and the
+     * buffer refers to the converted copy, which is available via
+     * {@link #getImage()}.
+     * </p>
+     *
+     * @param image The image to access.
+     * @return A PixelBuffer over the image, or over a packed copy of it.
+     */
+    public static PixelBuffer of(BufferedImage image) {
+        return new PixelBuffer(normalise(image));
+    }
+
+    /**
+     * <p>
+     * Create a blank buffer of the same type as this one.
+     * </p>
+     *
+     * @param width  The width of the new buffer.
+     * @param height The height of the new buffer.
+     * @return A new PixelBuffer with the same image type as this one.
+     */
+    public PixelBuffer createCompatible(int width, int height) {
+        return new PixelBuffer(new BufferedImage(width, height, image.getType()));
+    }
+
+    /**
+     * <p>
+     * Make a copy of this buffer and its pixels.
+     * </p>
+     *
+     * @return A new PixelBuffer with the same type and contents as this one.
+     */
+    public PixelBuffer copy() {
+        PixelBuffer copy = createCompatible(width, height);
+        System.arraycopy(pixels, 0, copy.pixels, 0, pixels.length);
+        return copy;
+    }
+
+    /**
+     * <p>
+     * Check whether an image can be wrapped directly by a PixelBuffer.
+     * </p>
+     *
+     * <p>
+     * Only {@code TYPE_INT_ARGB} and {@code TYPE_INT_RGB} images whose raster
+     * starts at the beginning of its data and has no padding between rows
+     * qualify. Sub-images made by {@link BufferedImage#getSubimage} share their
+     * parent's data with an offset, and so do not.
+     * </p>
+     *
+     * @param image The image to check.
+     * @return True if the image is in a canonical packed format.
+     */
+    public static boolean isPacked(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_RGB) {
+            return false;
+        }
+        WritableRaster raster = image.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+            return false;
+        }
+        if (raster.getDataBuffer().getOffset() != 0) {
+            return false;
+        }
+        SampleModel sampleModel = raster.getSampleModel();
+        return sampleModel instanceof SinglePixelPackedSampleModel
+                && ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride() == image.getWidth();
+    }
+
+    /**
+     * <p>
+     * Convert an image to a canonical packed format.
+     * </p>
+     *
+     * <p>
+     * Images that are already packed are returned unchanged.
+     * Others are redrawn into a new {@code TYPE_INT_ARGB} image if they have an
+     * alpha channel, or a {@code TYPE_INT_RGB} image if they do not.
+     * Keeping opaque images opaque means formats such as JPEG can still be
+     * written back out.
+     * </p>
+     *
+     * @param image The image to convert.
+     * @return The image itself, or a packed copy of it.
+     */
+    public static BufferedImage normalise(BufferedImage image) {
+        if (isPacked(image)) {
+            return image;
+        }
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage packed = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g2d = packed.createGraphics();
+        // Src rather than the default SrcOver so alpha values are copied exactly
+        g2d.setComposite(AlphaComposite.Src);
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        return packed;
+    }
+
+    /**
+     * @return The image whose pixels this buffer accesses.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return The array of packed pixels, in row-major order.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return The width of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+}
@@ -15,7 +15,10 @@ import java.awt.image.*;
  * @author Finn O'Neill & Angus Henderson
  * @version 1.0
  */
-public class Posterisation implements ImageOperation, java.io.Serializable {
+public class Posterisation implements LookupOperation, java.io.Serializable {
+
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = -2642205621457579476L;
 
     private int numBands;
     private int[] bandValues;
@@ -56,27 +59,22 @@ public class Posterisation implements ImageOperation, java.io.Serializable {
      * @return The resulting image.
      */
     public BufferedImage apply(BufferedImage input) {
-        for (int y = 0; y < input.getHeight(); ++y) {
-            for (int x = 0; x < input.getWidth(); ++x) {
-
-                // extracting the ARGB values from each pixel
-                int argb = input.getRGB(x, y);
-                int a = (argb & 0xFF000000) >> 24;
-                int r = (argb & 0x00FF0000) >> 16;
-                int g = (argb & 0x0000FF00) >> 8;
-                int b = (argb & 0x000000FF);
-
-                // applying the change in brightness and contrast to the individual colours
-                r = posteriseValue(r);
-                g = posteriseValue(g);
-                b = posteriseValue(b);
+        return LookupTable.apply(input, getLookupTable());
+    }
 
-                // re-initialising and setting the new pixel value
-                argb = (a << 24) | (r << 16) | (g << 8) | b;
-                input.setRGB(x, y, argb);
-            }
+    /**
+     * <p>
+     * Get the posterised value of every channel value.
+     * </p>
+     * 
+     * @return A table mapping each channel value to its nearest colour band.
+     */
+    public int[] getLookupTable() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = posteriseValue(v);
         }
-        return input;
+        return table;
     }
 
     /**
@@ -130,4 +128,11 @@ public class Posterisation implements ImageOperation, java.io.Serializable {
         }
     }
 
+    /**
+     * @return The number of colour bands.
+     */
+    int getNumBands() {
+        return numBands;
+    }
+
 }
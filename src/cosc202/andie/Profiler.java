@@ -0,0 +1,290 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.swing.SwingUtilities;
+import javax.swing.event.*;
+import jdk.jfr.*;
+
+/**
+ * <p>
+ * Records what each operation applied to an image costs.
+ * </p>
+ *
+ * <p>
+ * For every operation applied or replayed by an {@link EditableImage}, the
+ * profiler keeps the wall time taken, the bytes allocated while it ran and the
+ * size of the image it produced. Only the latest measurement of each operation
+ * is kept. The same measurements are emitted as {@link OperationEvent}s, so they
+ * show up in Java Flight Recorder recordings.
+ * </p>
+ *
+ * <p>
+ * Allocation is counted across every thread in the program, so that work done
+ * by the {@link TileScheduler}'s threads is included. Anything else allocating
+ * at the same time is counted as well.
+ * </p>
+ *
+ * @see ProfilerPanel
+ * @version 1.0
+ */
+public class Profiler {
+
+    /**
+     * <p>
+     * The cost of one operation.
+     * </p>
+     */
+    public static class Sample {
+
+        /** The wall time taken, in nanoseconds. */
+        public final long wallNanos;
+        /** The bytes allocated while the operation ran. */
+        public final long allocatedBytes;
+        /** The size of the pixel data of the result, in bytes. */
+        public final long outputBytes;
+        /** The width of the result. */
+        public final int width;
+        /** The height of the result. */
+        public final int height;
+        /** True if the operation was applied as part of a combined lookup table. */
+        public final boolean fused;
+        /**
+         * True if the operation was merged into others or dropped by the
+         * {@link OperationOptimiser} when last replayed, so cost nothing itself.
+         */
+        public final boolean merged;
+
+        Sample(long wallNanos, long allocatedBytes, BufferedImage output, boolean fused) {
+            this.wallNanos = wallNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.outputBytes = CheckpointStore.sizeOf(output);
+            this.width = output.getWidth();
+            this.height = output.getHeight();
+            this.fused = fused;
+            this.merged = false;
+        }
+
+        /** A sample of an operation that was merged away. */
+        private Sample() {
+            this.wallNanos = 0;
+            this.allocatedBytes = 0;
+            this.outputBytes = 0;
+            this.width = 0;
+            this.height = 0;
+            this.fused = false;
+            this.merged = true;
+        }
+    }
+
+    /**
+     * <p>
+     * A Java Flight Recorder event for one operation being applied.
+     * </p>
+     */
+    @Name("cosc202.andie.Operation")
+    @Label("Image Operation")
+    @Category("ANDIE")
+    @Description("An ImageOperation applied to or replayed on an image")
+    public static class OperationEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Replay")
+        @Description("True if the operation was replayed rather than newly applied")
+        boolean replay;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+
+        @Label("Output Size")
+        @DataAmount
+        long outputSize;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+    }
+
+    /** The allocation counters of the running JVM, or null if not supported. */
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    /** The latest sample of each operation. */
+    private final Map<ImageOperation, Sample> samples = Collections
+            .synchronizedMap(new WeakHashMap<ImageOperation, Sample>());
+
+    /** Told whenever a sample is recorded, on the Swing event thread. */
+    private final EventListenerList listeners = new EventListenerList();
+
+    /**
+     * <p>
+     * Apply an operation and record what it cost.
+     * </p>
+     *
+     * @param op      The operation to apply.
+     * @param input   The image to apply it to.
+     * @param context The context to apply it in, or null.
+     * @param replay  True if the operation is being replayed rather than newly
+     *                applied.
+     * @return The resulting image.
+     */
+    public BufferedImage run(ImageOperation op, BufferedImage input, OperationContext context, boolean replay) {
+        OperationEvent event = new OperationEvent();
+        event.begin();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        BufferedImage result = context == null ? op.apply(input) : context.apply(op, input);
+
+        long wall = System.nanoTime() - start;
+        allocated = Math.max(0, allocatedBytes() - allocated);
+        event.end();
+        record(Collections.singletonList(op), wall, allocated, result, false, event, replay);
+        return result;
+    }
+
+    /**
+     * <p>
+     * Apply several lookup operations as one combined table, and share what it
+     * cost between them.
+     * </p>
+     *
+     * @param run   The lookup operations, in order.
+     * @param input The image to apply them to.
+     * @return The resulting image.
+     */
+    public BufferedImage runFused(List<? extends LookupOperation> run, BufferedImage input) {
+        OperationEvent event = new OperationEvent();
+        event.begin();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        BufferedImage result = LookupTable.compose(run).apply(input);
+
+        long wall = System.nanoTime() - start;
+        allocated = Math.max(0, allocatedBytes() - allocated);
+        event.end();
+        record(run, wall / run.size(), allocated / run.size(), result, true, event, true);
+        return result;
+    }
+
+    /**
+     * <p>
+     * Mark the operations of a sequence that are not replayed, after it has been
+     * simplified by the {@link OperationOptimiser}.
+     * </p>
+     *
+     * <p>
+     * Their work is done by the operations that replace them, which are
+     * measured when they run, so they are marked as merged rather than left
+     * with no cost or an old one.
+     * </p>
+     *
+     * @param ops       The sequence as it is on the stack.
+     * @param optimised The sequence actually replayed.
+     */
+    public void markMerged(List<ImageOperation> ops, List<ImageOperation> optimised) {
+        Set<ImageOperation> replayed = Collections.newSetFromMap(new IdentityHashMap<ImageOperation, Boolean>());
+        replayed.addAll(optimised);
+        for (ImageOperation op : ops) {
+            if (!replayed.contains(op)) {
+                samples.put(op, new Sample());
+            }
+        }
+    }
+
+    /**
+     * @param op An operation.
+     * @return The latest sample of the operation, or null if it has not been
+     *         measured.
+     */
+    public Sample get(ImageOperation op) {
+        return samples.get(op);
+    }
+
+    /**
+     * <p>
+     * Be told whenever a new sample is recorded.
+     * </p>
+     *
+     * @param listener The listener, called on the Swing event thread.
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(ChangeListener.class, listener);
+    }
+
+    /**
+     * @param listener A listener added with {@link #addChangeListener}.
+     */
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(ChangeListener.class, listener);
+    }
+
+    /**
+     * Keep the samples, emit the flight recorder event and tell the listeners.
+     */
+    private void record(List<? extends ImageOperation> ops, long wall, long allocated, BufferedImage result,
+            boolean fused, OperationEvent event, boolean replay) {
+        for (ImageOperation op : ops) {
+            samples.put(op, new Sample(wall, allocated, result, fused));
+        }
+        if (event.shouldCommit()) {
+            event.operation = ops.size() == 1 ? ops.get(0).getClass().getSimpleName()
+                    : "LookupTable of " + ops.size() + " operations";
+            event.replay = replay;
+            event.allocated = allocated * ops.size();
+            event.outputSize = CheckpointStore.sizeOf(result);
+            event.width = result.getWidth();
+            event.height = result.getHeight();
+            event.commit();
+        }
+        if (listeners.getListenerCount() > 0) {
+            SwingUtilities.invokeLater(() -> {
+                ChangeEvent change = new ChangeEvent(this);
+                for (ChangeListener listener : listeners.getListeners(ChangeListener.class)) {
+                    listener.stateChanged(change);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The bytes allocated so far by every live thread, or 0 if the JVM
+     *         does not count them.
+     */
+    private static long allocatedBytes() {
+        if (THREADS == null) {
+            return 0;
+        }
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            // Threads that have ended since their ids were listed give -1
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    /**
+     * @return The JVM's thread allocation counters, switched on, or null if it
+     *         does not have them.
+     */
+    private static com.sun.management.ThreadMXBean threadBean() {
+        try {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+                    .getThreadMXBean();
+            if (!bean.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+            bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+package cosc202.andie;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * <p>
+ * A panel listing the operations applied to an image and what each one cost.
+ * </p>
+ *
+ * <p>
+ * Each row is one operation on the stack, in order, with the wall time,
+ * allocated memory and result size last measured by the image's
+ * {@link Profiler}. Operations applied together as one lookup table share the
+ * cost of the combined pass, and are marked as fused. Operations the
+ * {@link OperationOptimiser} merged into others when the stack was last
+ * replayed are marked as merged, with no cost of their own.
+ * The list is updated as operations are applied, undone and replayed.
+ * </p>
+ *
+ * <p>
+ * Underneath, the heap and disk space taken by the image's checkpoints is
+ * shown, along with how often checkpoints have been spilled to and read back
+ * from disk.
+ * </p>
+ *
+ * @see Profiler
+ * @version 1.0
+ */
+public class ProfilerPanel extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The column headings of the table. */
+    private static final String[] COLUMNS = { "#", "Operation", "Time (ms)", "Allocated (MB)", "Output (MB)",
+            "Size" };
+
+    /** How often to check whether the stack has changed, in milliseconds. */
+    private static final int POLL_INTERVAL = 500;
+
+    /** The image being profiled. */
+    private final EditableImage image;
+    /** The operations on the stack when the table was last updated. */
+    private List<ImageOperation> ops = new ArrayList<ImageOperation>();
+    /** The version of the image when the table was last updated. */
+    private long version = -1;
+
+    /** The model behind the table. */
+    private final AbstractTableModel model;
+    /** Shows the total time of the stack. */
+    private final JLabel total;
+    /** Shows the memory and disk used by checkpoints. */
+    private final JLabel checkpoints;
+
+    /**
+     * <p>
+     * Create a profiler panel for an image.
+     * </p>
+     *
+     * @param image The image whose operations are listed.
+     */
+    public ProfilerPanel(EditableImage image) {
+        super(new BorderLayout());
+        this.image = image;
+
+        model = new AbstractTableModel() {
+            public int getRowCount() {
+                return ops.size();
+            }
+
+            public int getColumnCount() {
+                return COLUMNS.length;
+            }
+
+            public String getColumnName(int column) {
+                return COLUMNS[column];
+            }
+
+            public Object getValueAt(int row, int column) {
+                return cell(row, column);
+            }
+        };
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setMaxWidth(40);
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(360, 200));
+        add(scrollPane, BorderLayout.CENTER);
+
+        total = new JLabel(" ");
+        checkpoints = new JLabel(" ");
+        JPanel summary = new JPanel(new GridLayout(2, 1));
+        summary.add(total);
+        summary.add(checkpoints);
+        add(summary, BorderLayout.SOUTH);
+
+        image.getProfiler().addChangeListener(e -> update());
+        new Timer(POLL_INTERVAL, e -> {
+            if (image.getVersion() != version) {
+                update();
+            }
+            // Checkpoints move between tiers in the background, so are always updated
+            showCheckpoints();
+        }).start();
+    }
+
+    /**
+     * Reload the stack and costs into the table.
+     */
+    private void update() {
+        version = image.getVersion();
+        ops = image.getOperations();
+        double totalMillis = 0;
+        for (ImageOperation op : ops) {
+            Profiler.Sample sample = image.getProfiler().get(op);
+            if (sample != null) {
+                totalMillis += sample.wallNanos / 1e6;
+            }
+        }
+        total.setText(String.format("%d operations, %.1f ms to replay", ops.size(), totalMillis));
+        model.fireTableDataChanged();
+        showCheckpoints();
+    }
+
+    /**
+     * Show the memory and disk used by the image's checkpoints.
+     */
+    private void showCheckpoints() {
+        CheckpointStore store = image.getCheckpoints();
+        checkpoints.setText(String.format("%d checkpoints, %.1f MB heap, %.1f MB disk (%d writes, %d reads)",
+                store.size(), store.getUsedBytes() / (double) (1 << 20), store.getSpilledBytes() / (double) (1 << 20),
+                store.getSpillWrites(), store.getSpillReads()));
+    }
+
+    /**
+     * @param row    The row of the table, which is the position on the stack.
+     * @param column The column of the table.
+     * @return What to show in the cell.
+     */
+    private Object cell(int row, int column) {
+        ImageOperation op = ops.get(row);
+        Profiler.Sample sample = image.getProfiler().get(op);
+        switch (column) {
+            case 0:
+                return row + 1;
+            case 1:
+                String name = op.getClass().getSimpleName();
+                if (sample != null && sample.merged) {
+                    return name + " (merged)";
+                }
+                return sample != null && sample.fused ? name + " (fused)" : name;
+        }
+        if (sample == null || sample.merged) {
+            return "";
+        }
+        switch (column) {
+            case 2:
+                return String.format("%.1f", sample.wallNanos / 1e6);
+            case 3:
+                return String.format("%.1f", sample.allocatedBytes / (double) (1 << 20));
+            case 4:
+                return String.format("%.1f", sample.outputBytes / (double) (1 << 20));
+            default:
+                return sample.width + "x" + sample.height;
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package cosc202.andie;
+
+import java.awt.Rectangle;
+
+/**
+ * <p>
+ * Interface for operations that only change part of an image.
+ * </p>
+ *
+ * <p>
+ * An operation that leaves every pixel outside some rectangle alone, and does
+ * not change the size of the image, can say so by implementing RegionOperation.
+ * The {@link EditableImage} then keeps a copy of just that rectangle from
+ * before and after the operation, so undoing or redoing it only has to copy the
+ * rectangle back rather than replay the whole history.
+ * </p>
+ *
+ * @see RegionPatch
+ * @version 1.0
+ */
+public interface RegionOperation extends ImageOperation {
+
+    /**
+     * <p>
+     * Get the part of an image the operation may change.
+     * </p>
+     *
+     * @param width  The width of the image the operation will be applied to.
+     * @param height The height of the image the operation will be applied to.
+     * @return A rectangle, in image coordinates, containing every pixel the
+     *         operation may change, or null if it cannot tell.
+     */
+    public Rectangle getRegion(int width, int height);
+}
@@ -0,0 +1,104 @@
+package cosc202.andie;
+
+import java.awt.Rectangle;
+import java.awt.image.*;
+
+/**
+ * <p>
+ * A copy of the pixels in a rectangle of an image.
+ * </p>
+ *
+ * <p>
+ * Patches let a {@link RegionOperation} be undone and redone by copying a
+ * rectangle back into the image, which costs time in proportion to the size of
+ * the rectangle rather than of the image.
+ * </p>
+ *
+ * @version 1.0
+ */
+public class RegionPatch {
+
+    /** The rectangle the pixels were copied from. */
+    private final Rectangle region;
+    /** The pixels, as aRGB values, row by row. */
+    private final int[] pixels;
+
+    /**
+     * <p>
+     * Copy a rectangle of an image.
+     * </p>
+     *
+     * @param image  The image to copy from.
+     * @param region The rectangle to copy. Must lie within the image.
+     */
+    public RegionPatch(BufferedImage image, Rectangle region) {
+        this.region = new Rectangle(region);
+        this.pixels = new int[region.width * region.height];
+        if (PixelBuffer.isPacked(image)) {
+            PixelBuffer buffer = new PixelBuffer(image);
+            int[] source = buffer.getPixels();
+            for (int row = 0; row < region.height; row++) {
+                System.arraycopy(source, (region.y + row) * buffer.getWidth() + region.x, pixels,
+                        row * region.width, region.width);
+            }
+        } else {
+            image.getRGB(region.x, region.y, region.width, region.height, pixels, 0, region.width);
+        }
+    }
+
+    /**
+     * <p>
+     * Copy the pixels back into an image.
+     * </p>
+     *
+     * @param image The image to copy into, which must be at least as large as
+     *              the one the patch was taken from.
+     */
+    public void paste(BufferedImage image) {
+        if (PixelBuffer.isPacked(image)) {
+            PixelBuffer buffer = new PixelBuffer(image);
+            int[] target = buffer.getPixels();
+            for (int row = 0; row < region.height; row++) {
+                System.arraycopy(pixels, row * region.width, target, (region.y + row) * buffer.getWidth() + region.x,
+                        region.width);
+            }
+        } else {
+            image.setRGB(region.x, region.y, region.width, region.height, pixels, 0, region.width);
+        }
+    }
+
+    /**
+     * @return The rectangle the pixels were copied from.
+     */
+    public Rectangle getRegion() {
+        return new Rectangle(region);
+    }
+
+    /**
+     * @return The memory taken by the copied pixels, in bytes.
+     */
+    public long getBytes() {
+        return pixels.length * 4L;
+    }
+
+    /**
+     * <p>
+     * Work out the rectangle of an image a region operation may change.
+     * </p>
+     *
+     * @param op     The operation.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return The operation's region clipped to the image, or null if the
+     *         operation cannot tell or the region is empty.
+     */
+    public static Rectangle regionOf(RegionOperation op, int width, int height) {
+        Rectangle region = op.getRegion(width, height);
+        if (region == null) {
+            return null;
+        }
+        region = region.intersection(new Rectangle(0, 0, width, height));
+        return region.isEmpty() ? null : region;
+    }
+
+}
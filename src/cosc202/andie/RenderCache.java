@@ -0,0 +1,257 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ * The final image of a saved edit, kept in a <code>.render</code> file next to
+ * its <code>.ops</code> file.
+ * </p>
+ *
+ * <p>
+ * Opening an image with a long list of operations means replaying all of them
+ * before the result can be shown. When the image is saved, the result is also
+ * written to <code>some/path/to/image.png.render</code>, and opening the image
+ * again shows it straight away instead of replaying the operations.
+ * </p>
+ *
+ * <p>
+ * The file holds a small header and then the raw packed pixels, in the byte
+ * order of the machine that wrote it, so it can be read straight into the
+ * pixels of an image without any decoding. The header holds a key made from
+ * the hash of the original image file and of the operations file, so a render
+ * is only used with exactly the files it was made from.
+ * </p>
+ *
+ * <p>
+ * A render is 4 bytes a pixel uncompressed, so the cache is off unless the
+ * {@code andie.renderCache} system property is true, and images over
+ * {@link #MAX_PIXELS} are never kept. Renders are written on a background
+ * thread from a copy of the pixels, so saving does not wait for them, and
+ * each is written to a temporary file and moved into place, so a render that
+ * is only partly written is never read. Problems reading or writing the cache
+ * are ignored, as the image can always be remade by replaying the
+ * operations.
+ * </p>
+ *
+ * @see EditableImage#open(String)
+ * @version 1.0
+ */
+public class RenderCache {
+
+    /** True if renders are written and read. */
+    public static final boolean ENABLED = Boolean.getBoolean("andie.renderCache");
+
+    /**
+     * The most pixels an image may have to be kept, 16 megapixels by default,
+     * which is a 64 MB file. Set in megapixels with the
+     * {@code andie.renderCacheMaxMegapixels} system property.
+     */
+    public static final long MAX_PIXELS = Long.getLong("andie.renderCacheMaxMegapixels", 16) * 1000000L;
+
+    /** The first four bytes of a render file, "ANRC". */
+    private static final int MAGIC = 0x414E5243;
+    /** The version of the format written. */
+    private static final int VERSION = 1;
+
+    /** The bytes in a key, which is a SHA-256 hash. */
+    private static final int KEY_LENGTH = 32;
+
+    /** The bytes before the pixels. */
+    private static final int HEADER_LENGTH = 4 + 2 + 1 + 1 + 4 + 4 + KEY_LENGTH;
+
+    /** The number of pixels written or read at a time. */
+    private static final int CHUNK = 1 << 16;
+
+    /** Writes and deletes renders one after another, in the order asked for. */
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "andie-render");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private RenderCache() {
+    }
+
+    /**
+     * <p>
+     * Make the key of the render of an image and its operations.
+     * </p>
+     *
+     * @param source      The image file the operations apply to.
+     * @param opsFilename The operations file.
+     * @return The key, or null if the operations file cannot be read.
+     */
+    public static byte[] keyOf(SourceFile source, String opsFilename) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.getHash().getBytes(StandardCharsets.US_ASCII));
+            digest.update(Files.readAllBytes(Paths.get(opsFilename)));
+            return digest.digest();
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Write a render in the background.
+     * </p>
+     *
+     * <p>
+     * The pixels are copied before this returns, so the image may be changed
+     * straight away. An image over {@link #MAX_PIXELS} is not kept, and any
+     * render already in the file is deleted.
+     * </p>
+     *
+     * @param file  The render file.
+     * @param key   The key of the render, from {@link #keyOf}.
+     * @param image The final image.
+     */
+    public static void write(File file, byte[] key, BufferedImage image) {
+        PixelBuffer pixels = PixelBuffer.of(image);
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        if ((long) width * height > MAX_PIXELS) {
+            delete(file);
+            return;
+        }
+        int[] data = pixels.getPixels().clone();
+        boolean alpha = pixels.getImage().getType() == BufferedImage.TYPE_INT_ARGB;
+        WRITER.execute(() -> writeNow(file, key, width, height, alpha, data));
+    }
+
+    /**
+     * <p>
+     * Delete a render in the background, after any writes already asked for.
+     * </p>
+     *
+     * @param file The render file.
+     */
+    public static void delete(File file) {
+        WRITER.execute(() -> file.delete());
+    }
+
+    /**
+     * <p>
+     * Write a render, on the background thread.
+     * </p>
+     */
+    private static void writeNow(File file, byte[] key, int width, int height, boolean alpha, int[] data) {
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.put((byte) (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 0 : 1));
+        header.put((byte) (alpha ? 1 : 0));
+        header.putInt(width);
+        header.putInt(height);
+        header.put(key);
+        header.flip();
+
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                writeFully(channel, header);
+                ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK * 4).order(ByteOrder.nativeOrder());
+                for (int start = 0; start < data.length; start += CHUNK) {
+                    int count = Math.min(CHUNK, data.length - start);
+                    chunk.clear();
+                    chunk.asIntBuffer().put(data, start, count);
+                    chunk.limit(count * 4);
+                    writeFully(channel, chunk);
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            // Only a cache, so the operations will be replayed instead
+            file.delete();
+        } finally {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Read a render, if it matches a key.
+     * </p>
+     *
+     * @param file The render file.
+     * @param key  The key the render must have, from {@link #keyOf}.
+     * @return The final image, or null if there is no render with that key.
+     */
+    public static BufferedImage read(File file, byte[] key) {
+        if (key == null || !file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LENGTH) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    return null;
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getShort() != VERSION) {
+                return null;
+            }
+            ByteOrder order = header.get() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            int type = header.get() == 1 ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            int width = header.getInt();
+            int height = header.getInt();
+            byte[] stored = new byte[KEY_LENGTH];
+            header.get(stored);
+            if (!MessageDigest.isEqual(stored, key) || width <= 0 || height <= 0
+                    || size != HEADER_LENGTH + 4L * width * height) {
+                return null;
+            }
+
+            PixelBuffer pixels = new PixelBuffer(new BufferedImage(width, height, type));
+            int[] data = pixels.getPixels();
+            ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK * 4).order(order);
+            for (int start = 0; start < data.length; start += CHUNK) {
+                int count = Math.min(CHUNK, data.length - start);
+                chunk.clear();
+                chunk.limit(count * 4);
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk) < 0) {
+                        return null;
+                    }
+                }
+                chunk.flip();
+                chunk.asIntBuffer().get(data, start, count);
+            }
+            return pixels.getImage();
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,387 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Resizes images with a choice of resampling filters.
+ * </p>
+ *
+ * <p>
+ * Resampling is separable: rows are first resized across, then combined down
+ * into the output rows. For every output column and every output row the
+ * source pixels it draws on and their weights are worked out once, up front,
+ * and reused along the whole image. The output is split into bands of rows
+ * across threads by the {@link TileScheduler}.
+ * </p>
+ *
+ * <p>
+ * When shrinking, the filter is stretched to cover every source pixel, so fine
+ * detail is averaged rather than skipped. For large reductions the image is
+ * first halved, by averaging pairs of pixels, until it is less than three times
+ * the target size, which keeps the number of pixels each output pixel draws on
+ * small.
+ * </p>
+ *
+ * <p>
+ * Colours are weighted by their alpha, so transparent pixels do not darken or
+ * tint the edges of opaque ones.
+ * </p>
+ *
+ * @see ResizeImage
+ * @version 1.0
+ */
+public class Resampler {
+
+    /** A Lanczos filter over three pixels each side. Sharp, with slight ringing. */
+    public static final int LANCZOS3 = 0;
+    /** A Catmull-Rom bicubic filter over two pixels each side. */
+    public static final int BICUBIC = 1;
+    /** Linear interpolation between neighbouring pixels. */
+    public static final int BILINEAR = 2;
+    /** The average of the pixels each output pixel covers. */
+    public static final int BOX = 3;
+
+    /** The names of the filters, in the order of their constants. */
+    public static final String[] FILTER_NAMES = { "Lanczos3", "Bicubic", "Bilinear", "Box" };
+
+    /** The number of values in each piece of work handed to a thread. */
+    private static final int GRAIN = 1 << 15;
+
+    /** The fewest output rows made together by one thread. */
+    private static final int BAND = 16;
+
+    /** How many times the target size an image may be before it is halved. */
+    private static final int HALVING_LIMIT = 3;
+
+    /**
+     * <p>
+     * The source pixels and weights for each output pixel along one direction.
+     * </p>
+     */
+    private static class Weights {
+
+        /** The number of source pixels each output pixel draws on. */
+        final int taps;
+        /** The source pixel of each tap, {@code taps} to each output pixel. */
+        final int[] index;
+        /** The weight of each tap, adding up to 1 for each output pixel. */
+        final float[] weight;
+
+        Weights(int taps, int outputs) {
+            this.taps = taps;
+            this.index = new int[taps * outputs];
+            this.weight = new float[taps * outputs];
+        }
+    }
+
+    private Resampler() {
+    }
+
+    /**
+     * <p>
+     * Resize an image.
+     * </p>
+     *
+     * @param input  The image to resize. It is not changed.
+     * @param width  The width of the result.
+     * @param height The height of the result.
+     * @param filter The filter to use, such as {@link #LANCZOS3}.
+     * @return A new image of the given size, in the same packed format as the
+     *         input after {@link PixelBuffer#normalise}.
+     */
+    public static BufferedImage resize(BufferedImage input, int width, int height, int filter) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("cannot resize to " + width + "x" + height);
+        }
+        PixelBuffer source = PixelBuffer.of(input);
+        boolean alpha = source.getImage().getType() == BufferedImage.TYPE_INT_ARGB;
+
+        // Halve while far larger than the target
+        int[] pixels = source.getPixels();
+        int w = source.getWidth();
+        int h = source.getHeight();
+        while (w >= HALVING_LIMIT * width || h >= HALVING_LIMIT * height) {
+            boolean across = w >= HALVING_LIMIT * width;
+            boolean down = h >= HALVING_LIMIT * height;
+            int halfWidth = across ? (w + 1) / 2 : w;
+            int halfHeight = down ? (h + 1) / 2 : h;
+            int[] half = new int[halfWidth * halfHeight];
+            halve(pixels, w, h, half, halfWidth, halfHeight, across, down, alpha);
+            pixels = half;
+            w = halfWidth;
+            h = halfHeight;
+        }
+
+        PixelBuffer output = source.createCompatible(width, height);
+        if (w == width && h == height) {
+            System.arraycopy(pixels, 0, output.getPixels(), 0, pixels.length);
+            return output.getImage();
+        }
+
+        resample(pixels, w, output.getPixels(), width, height, weights(w, width, filter), weights(h, height, filter),
+                alpha);
+        return output.getImage();
+    }
+
+    /**
+     * <p>
+     * Halve an image in both directions, by averaging each square of four
+     * pixels.
+     * </p>
+     *
+     * <p>
+     * A side that is only one pixel long is left as it is, and odd sides are
+     * rounded up.
+     * </p>
+     *
+     * @param input The image to halve. It is not changed.
+     * @return A new image half the size, in the same packed format as the input
+     *         after {@link PixelBuffer#normalise}.
+     */
+    public static BufferedImage halve(BufferedImage input) {
+        PixelBuffer source = PixelBuffer.of(input);
+        int width = source.getWidth();
+        int height = source.getHeight();
+        PixelBuffer output = source.createCompatible((width + 1) / 2, (height + 1) / 2);
+        halve(source.getPixels(), width, height, output.getPixels(), output.getWidth(), output.getHeight(),
+                width > 1, height > 1, source.getImage().getType() == BufferedImage.TYPE_INT_ARGB);
+        return output.getImage();
+    }
+
+    /**
+     * <p>
+     * Work out the source pixels and weights of every output pixel along one
+     * direction.
+     * </p>
+     *
+     * @param from   The number of source pixels.
+     * @param to     The number of output pixels.
+     * @param filter The filter to use.
+     * @return The weights.
+     */
+    private static Weights weights(int from, int to, int filter) {
+        double scale = (double) from / to;
+        // Shrinking stretches the filter over all the source pixels covered
+        double stretch = Math.max(1, scale);
+        double support = radius(filter) * stretch;
+        // No more whole pixels than this fit strictly inside the filter
+        int taps = Math.max(1, (int) Math.ceil(support * 2));
+        Weights weights = new Weights(taps, to);
+        for (int i = 0; i < to; i++) {
+            double centre = (i + 0.5) * scale - 0.5;
+            int first = (int) Math.floor(centre - support) + 1;
+            double total = 0;
+            for (int t = 0; t < taps; t++) {
+                double w = kernel(filter, (first + t - centre) / stretch);
+                weights.index[i * taps + t] = Math.max(0, Math.min(from - 1, first + t));
+                weights.weight[i * taps + t] = (float) w;
+                total += w;
+            }
+            for (int t = 0; t < taps; t++) {
+                weights.weight[i * taps + t] /= total == 0 ? 1 : total;
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @param filter A filter.
+     * @return How far either side of its centre the filter reaches, in pixels.
+     */
+    private static double radius(int filter) {
+        switch (filter) {
+            case BICUBIC:
+                return 2;
+            case BILINEAR:
+                return 1;
+            case BOX:
+                return 0.5;
+            default:
+                return 3;
+        }
+    }
+
+    /**
+     * @param filter A filter.
+     * @param x      The distance from the centre of the filter, in pixels.
+     * @return The weight of the filter at that distance.
+     */
+    private static double kernel(int filter, double x) {
+        x = Math.abs(x);
+        switch (filter) {
+            case BICUBIC:
+                if (x < 1) {
+                    return (1.5 * x - 2.5) * x * x + 1;
+                } else if (x < 2) {
+                    return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                }
+                return 0;
+            case BILINEAR:
+                return x < 1 ? 1 - x : 0;
+            case BOX:
+                return x <= 0.5 ? 1 : 0;
+            default:
+                return x < 3 ? sinc(x) * sinc(x / 3) : 0;
+        }
+    }
+
+    /**
+     * @param x A value.
+     * @return The normalised sinc function, sin(pi x) / (pi x).
+     */
+    private static double sinc(double x) {
+        if (x == 0) {
+            return 1;
+        }
+        x *= Math.PI;
+        return Math.sin(x) / x;
+    }
+
+    /**
+     * <p>
+     * Resample an image across and then down.
+     * </p>
+     *
+     * <p>
+     * The output is made in bands of rows, each on one thread. A band first
+     * resizes just the source rows it needs across, into premultiplied floating
+     * point values, then combines those rows down into each of its output rows.
+     * The rows in between stay small enough to keep in cache, at the cost of
+     * resizing the few rows shared by neighbouring bands twice.
+     * </p>
+     */
+    private static void resample(int[] in, int width, int[] out, int outWidth, int outHeight, Weights across,
+            Weights down, boolean alpha) {
+        TileScheduler.parallelFor(0, outHeight, Math.max(BAND, GRAIN / outWidth), new TileScheduler.RangeTask() {
+            public void run(int start, int end) {
+                // The source rows drawn on by this band
+                int first = down.index[start * down.taps];
+                int last = down.index[end * down.taps - 1];
+                int stride = outWidth * 4;
+                float[] rows = new float[(last - first + 1) * stride];
+                for (int y = first; y <= last; y++) {
+                    resizeRow(in, y * width, rows, (y - first) * stride, outWidth, across, alpha);
+                }
+
+                float[] sum = new float[stride];
+                for (int y = start; y < end; y++) {
+                    Arrays.fill(sum, 0);
+                    for (int t = y * down.taps, stop = t + down.taps; t < stop; t++) {
+                        float w = down.weight[t];
+                        if (w == 0) {
+                            continue;
+                        }
+                        for (int i = 0, row = (down.index[t] - first) * stride; i < stride; i++) {
+                            sum[i] += w * rows[row + i];
+                        }
+                    }
+                    for (int x = 0; x < outWidth; x++) {
+                        float a = sum[x * 4];
+                        // Undo the weighting by alpha
+                        float unweight = a > 0 ? 1 / a : 0;
+                        out[y * outWidth + x] = (alpha ? clamp(a * 255) << 24 : 0xFF000000)
+                                | clamp(sum[x * 4 + 1] * unweight) << 16 | clamp(sum[x * 4 + 2] * unweight) << 8
+                                | clamp(sum[x * 4 + 3] * unweight);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Resize one row across, into premultiplied alpha, red, green and blue
+     * values.
+     * </p>
+     */
+    private static void resizeRow(int[] in, int row, float[] out, int offset, int outWidth, Weights weights,
+            boolean alpha) {
+        int taps = weights.taps;
+        for (int x = 0; x < outWidth; x++) {
+            float a = 0, r = 0, g = 0, b = 0;
+            for (int t = x * taps, last = t + taps; t < last; t++) {
+                int argb = in[row + weights.index[t]];
+                float w = weights.weight[t];
+                float wa = alpha ? w * (argb >>> 24) * (1 / 255f) : w;
+                a += wa;
+                r += wa * ((argb >> 16) & 0xFF);
+                g += wa * ((argb >> 8) & 0xFF);
+                b += wa * (argb & 0xFF);
+            }
+            int o = offset + x * 4;
+            out[o] = a;
+            out[o + 1] = r;
+            out[o + 2] = g;
+            out[o + 3] = b;
+        }
+    }
+
+    /**
+     * <p>
+     * Halve an image across, down or both, by averaging pairs of pixels.
+     * </p>
+     *
+     * <p>
+     * If the size being halved is odd, the last pixel is averaged with itself.
+     * </p>
+     */
+    private static void halve(int[] in, int width, int height, int[] out, int outWidth, int outHeight,
+            boolean across, boolean down, boolean alpha) {
+        TileScheduler.parallelFor(0, outHeight, Math.max(1, GRAIN / outWidth), new TileScheduler.RangeTask() {
+            public void run(int start, int end) {
+                for (int y = start; y < end; y++) {
+                    int y0 = down ? 2 * y : y;
+                    int y1 = down ? Math.min(height - 1, y0 + 1) : y0;
+                    for (int x = 0; x < outWidth; x++) {
+                        int x0 = across ? 2 * x : x;
+                        int x1 = across ? Math.min(width - 1, x0 + 1) : x0;
+                        int p = in[y0 * width + x0];
+                        int q = in[y0 * width + x1];
+                        int r = in[y1 * width + x0];
+                        int s = in[y1 * width + x1];
+                        if (!alpha) {
+                            // Opaque pixels are averaged channel by channel, rounding halves up
+                            out[y * outWidth + x] = 0xFF000000 | average(p, q, r, s, 16) << 16
+                                    | average(p, q, r, s, 8) << 8 | average(p, q, r, s, 0);
+                            continue;
+                        }
+                        int pa = p >>> 24, qa = q >>> 24, ra = r >>> 24, sa = s >>> 24;
+                        int a = pa + qa + ra + sa;
+                        if (a == 0) {
+                            out[y * outWidth + x] = 0;
+                            continue;
+                        }
+                        // Colours are weighted by alpha
+                        int red = pa * ((p >> 16) & 0xFF) + qa * ((q >> 16) & 0xFF) + ra * ((r >> 16) & 0xFF)
+                                + sa * ((s >> 16) & 0xFF);
+                        int green = pa * ((p >> 8) & 0xFF) + qa * ((q >> 8) & 0xFF) + ra * ((r >> 8) & 0xFF)
+                                + sa * ((s >> 8) & 0xFF);
+                        int blue = pa * (p & 0xFF) + qa * (q & 0xFF) + ra * (r & 0xFF) + sa * (s & 0xFF);
+                        out[y * outWidth + x] = ((a + 2) / 4) << 24 | ((red + a / 2) / a) << 16
+                                | ((green + a / 2) / a) << 8 | ((blue + a / 2) / a);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The average of one channel of four packed pixels.
+     */
+    private static int average(int p, int q, int r, int s, int shift) {
+        return (((p >> shift) & 0xFF) + ((q >> shift) & 0xFF) + ((r >> shift) & 0xFF) + ((s >> shift) & 0xFF) + 2)
+                / 4;
+    }
+
+    /**
+     * @param v A channel value.
+     * @return The value rounded and limited to [0, 255].
+     */
+    private static int clamp(float v) {
+        int i = Math.round(v);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+}
@@ -1,6 +1,5 @@
 package cosc202.andie;
 
-import java.awt.*;
 import java.awt.image.*;
 
 /**
@@ -10,7 +9,7 @@ import java.awt.image.*;
  * 
  * <p>
  * This class performs operations on a BufferedImage object to resize it
- * to different dimensions using a Graphics2D object.
+ * to different dimensions using a {@link Resampler}.
  * </p>
  * 
  * <p>
@@ -23,9 +22,17 @@ import java.awt.image.*;
  */
 
 public class ResizeImage implements ImageOperation, java.io.Serializable {
+
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 1517931074926837697L;
     public int resizedHeight;
     public int resizedWidth;
     public double resizedScale;
+    /**
+     * The resampling filter, one of the {@link Resampler} filters. Operations
+     * saved before there was a choice read back as {@link Resampler#LANCZOS3}.
+     */
+    public int filter;
 
     /**
      * 
@@ -38,10 +45,25 @@ public class ResizeImage implements ImageOperation, java.io.Serializable {
      */
 
     public ResizeImage(int resizedHeight, int resizedWidth, double resizedScale) {
+        this(resizedHeight, resizedWidth, resizedScale, Resampler.LANCZOS3);
+    }
+
+    /**
+     * <p>
+     * Create a new Resize operation with a given resampling filter.
+     * </p>
+     * 
+     * @param resizedHeight The height of the result.
+     * @param resizedWidth  The width of the result.
+     * @param resizedScale  The scale the size was worked out from.
+     * @param filter        The resampling filter, such as
+     *                      {@link Resampler#BICUBIC}.
+     */
+    public ResizeImage(int resizedHeight, int resizedWidth, double resizedScale, int filter) {
         this.resizedHeight = resizedHeight;
         this.resizedWidth = resizedWidth;
         this.resizedScale = resizedScale;
-
+        this.filter = filter;
     }
 
     /**
@@ -52,32 +74,19 @@ public class ResizeImage implements ImageOperation, java.io.Serializable {
      * 
      * </p>
      *
-     * 
-     * 
      * <p>
-     * 
-     * FILL THIS OUT
-     * 
+     * The image is resampled in two passes, across and then down, with the
+     * chosen filter, on several threads. Images in any format are accepted, and
+     * the result is in a packed int format.
      * </p>
-     *
-     * 
      * 
-     * @param input The image to be resized
+     * @param inputImage The image to be resized
      * 
      * @return The resulting resized image.
      * 
      */
-
     public BufferedImage apply(BufferedImage inputImage) {
-
-        Image resultingImage = inputImage.getScaledInstance(resizedWidth, resizedHeight, Image.SCALE_DEFAULT);
-
-        BufferedImage outputImage = new BufferedImage(resizedWidth, resizedHeight, inputImage.getType());
-
-        outputImage.getGraphics().drawImage(resultingImage, 0, 0, null);
-
-        return outputImage;
-
+        return Resampler.resize(inputImage, Math.max(1, resizedWidth), Math.max(1, resizedHeight), filter);
     }
 
 }
@@ -20,6 +20,9 @@ import java.awt.image.*;
 
 public class RotateImage implements ImageOperation, java.io.Serializable {
 
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 7067220364308084911L;
+
     // Three different variables for rotating 180 degrees, 90 degrees left and
     // right.
     public static final int ROTATE_90 = 0;
@@ -67,43 +70,28 @@ public class RotateImage implements ImageOperation, java.io.Serializable {
      * 
      * <p>
      * This apply method simply exchanges pixels to produce the required rotated
-     * image.
+     * image. Quarter turns are made with a blocked transpose by
+     * {@link GeometricTransform}, and the result keeps the type of the input.
      * </p>
      * 
      * @param input The image to apply the rotation to.
      * @return The resulting (rotated) image.
      */
     public BufferedImage apply(BufferedImage input) {
-
-        int width = input.getWidth();
-        int height = input.getHeight();
-
-        BufferedImage rotated;
-
-        // If the rotation is 180 degrees, keep original dimensions.
-        // Otherwise, exchange the height and width of the output BufferedImage.
-        if (rotation == ROTATE_180) {
-            rotated = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        } else {
-            rotated = new BufferedImage(height, width, BufferedImage.TYPE_INT_ARGB);
+        Dihedral transform = Dihedral.of(this);
+        if (transform == null) {
+            // Not one of the three rotations, so there is nothing to do
+            return input;
         }
+        return GeometricTransform.apply(input, transform);
+    }
 
-        for (int y = 0; y < height; y++) { // nested for loop with goes through all pixels of the image and switches
-            for (int x = 0; x < width; x++) {
-                switch (rotation) {
-                    case ROTATE_90:
-                        rotated.setRGB(height - 1 - y, x, input.getRGB(x, y));
-                        break;
-                    case ROTATE_270:
-                        rotated.setRGB(y, width - 1 - x, input.getRGB(x, y));
-                        break;
-                    case ROTATE_180:
-                        rotated.setRGB(width - 1 - x, height - 1 - y, input.getRGB(x, y));
-                        break;
-                }
-            }
-        }
-        return rotated; // return the rotated Buffered image
+    /**
+     * @return The rotation, one of {@link #ROTATE_90}, {@link #ROTATE_180} or
+     *         {@link #ROTATE_270}.
+     */
+    int getRotation() {
+        return rotation;
     }
 
 }
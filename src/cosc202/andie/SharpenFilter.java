@@ -14,6 +14,15 @@ import java.awt.image.*;
 
 public class SharpenFilter implements ImageOperation, java.io.Serializable {
 
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 4783500209844325354L;
+
+    /**
+     * How pixels beyond the edge of the image are found, one of the
+     * ConvolutionOperation edge modes.
+     */
+    private int edgeMode;
+
     /**
      * <p>
      * Construct a sharpen filter.
@@ -21,6 +30,19 @@ public class SharpenFilter implements ImageOperation, java.io.Serializable {
      *
      */
     SharpenFilter() {
+        this(ConvolutionOperation.EDGE_CLAMP);
+    }
+
+    /**
+     * <p>
+     * Construct a sharpen filter with the given edge mode.
+     * </p>
+     *
+     * @param edgeMode How pixels beyond the edge of the image are found
+     * @see ConvolutionOperation#edgeIndex(int, int, int)
+     */
+    SharpenFilter(int edgeMode) {
+        this.edgeMode = edgeMode;
     }
 
     /**
@@ -40,15 +62,23 @@ public class SharpenFilter implements ImageOperation, java.io.Serializable {
         // Creates a kernel from the matrix
         Kernel kernel = new Kernel(3, 3, array);
         // Passes the kernel to a convolution operation
-        ConvolutionOperation convOp = new ConvolutionOperation(kernel);
+        ConvolutionOperation convOp = new ConvolutionOperation(kernel, edgeMode);
         // Creates a copy of the buffered image
         BufferedImage output = new BufferedImage(input.getColorModel(), input.copyData(null),
                 input.isAlphaPremultiplied(), null);
         // Applies the convolution to the input, outputting the result to the output
         // image.
-        convOp.filter(input, output);
+        output = convOp.filter(input, output);
 
         return output;
     }
 
+    /**
+     * @return How pixels beyond the edge of the image are read, one of the
+     *         {@link ConvolutionOperation} edge modes.
+     */
+    int getEdgeMode() {
+        return edgeMode;
+    }
+
 }
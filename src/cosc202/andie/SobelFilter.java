@@ -17,10 +17,19 @@ import java.awt.image.*;
  */
 public class SobelFilter implements ImageOperation, java.io.Serializable {
 
+    // The serialver value of the first release, see OperationFile
+    private static final long serialVersionUID = 5752272240601152139L;
+
     /**
      * The direction of the filter to apply. True is vertical, false is horizontal.
      */
     private boolean direction;
+
+    /**
+     * How pixels beyond the edge of the image are found, one of the
+     * ConvolutionOperation edge modes.
+     */
+    private int edgeMode;
     private static final boolean VERTICAL = true;
     private static final boolean HORIZONTAL = false;
     private static final float[][] KERNELARRAYS = {
@@ -36,7 +45,21 @@ public class SobelFilter implements ImageOperation, java.io.Serializable {
      * @param direction The radius of the newly constructed MeanFilter
      */
     SobelFilter(boolean direction) {
+        this(direction, ConvolutionOperation.EDGE_CLAMP);
+    }
+
+    /**
+     * <p>
+     * Construct a Sobel filter with the given direction and edge mode.
+     * </p>
+     * 
+     * @param direction The direction of the newly constructed SobelFilter
+     * @param edgeMode  How pixels beyond the edge of the image are found
+     * @see ConvolutionOperation#edgeIndex(int, int, int)
+     */
+    SobelFilter(boolean direction, int edgeMode) {
         this.direction = direction;
+        this.edgeMode = edgeMode;
     }
 
     /**
@@ -74,12 +97,27 @@ public class SobelFilter implements ImageOperation, java.io.Serializable {
         }
         // Applying the convolution op
         Kernel kernel = new Kernel(3, 3, array);
-        ConvolutionOperation convOp = new ConvolutionOperation(kernel);
+        ConvolutionOperation convOp = new ConvolutionOperation(kernel, edgeMode);
         BufferedImage output = new BufferedImage(input.getColorModel(), input.copyData(null),
                 input.isAlphaPremultiplied(), null);
-        convOp.filter(input, output);
+        output = convOp.filter(input, output);
 
         return output;
     }
 
+    /**
+     * @return True if the filter finds vertical edges, false for horizontal.
+     */
+    boolean getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return How pixels beyond the edge of the image are read, one of the
+     *         {@link ConvolutionOperation} edge modes.
+     */
+    int getEdgeMode() {
+        return edgeMode;
+    }
+
 }
@@ -0,0 +1,157 @@
+package cosc202.andie;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+
+/**
+ * <p>
+ * The identity of the file an image was opened from.
+ * </p>
+ *
+ * <p>
+ * ANDIE never changes the original image, so the file it came from already
+ * holds it exactly. Saving can then skip decoding and re-encoding the image:
+ * saving over the same file writes nothing, and saving somewhere else copies
+ * the file byte for byte. That is much quicker for large images, and keeps
+ * formats such as JPEG from losing quality each time they are saved.
+ * </p>
+ *
+ * <p>
+ * The path, size, modification time and a SHA-256 hash of the contents are
+ * taken when the image is opened. If the file is later changed by something
+ * else, its size or time changes, and unless the hash still matches it is no
+ * longer trusted to hold the image.
+ * </p>
+ *
+ * @see EditableImage#save()
+ * @version 1.0
+ */
+public class SourceFile {
+
+    /** The size of each read while hashing. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path path;
+    private final long size;
+    private final long modified;
+    private final String hash;
+
+    private SourceFile(Path path, long size, long modified, String hash) {
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+    }
+
+    /**
+     * <p>
+     * Take the identity of a file as it is now.
+     * </p>
+     *
+     * @param file The file.
+     * @return The identity of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    public static SourceFile of(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        long size = Files.size(path);
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        return new SourceFile(path, size, modified, hash(path));
+    }
+
+    /**
+     * @return The SHA-256 hash of the file's contents when it was opened, in
+     *         hexadecimal.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return The file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * <p>
+     * Check that the file still holds what it did when it was opened.
+     * </p>
+     *
+     * @return True if the file is unchanged.
+     */
+    public boolean isUnchanged() {
+        try {
+            if (Files.size(path) != size) {
+                return false;
+            }
+            if (Files.getLastModifiedTime(path).toMillis() == modified) {
+                return true;
+            }
+            // Touched but perhaps not changed, so the contents decide
+            return hash(path).equals(hash);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @param file Another file.
+     * @return True if the other file is this one, by whatever path.
+     */
+    public boolean isFile(File file) {
+        try {
+            return file.exists() && Files.isSameFile(path, file.toPath());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * <p>
+     * Copy the file byte for byte, replacing the target if it exists.
+     * </p>
+     *
+     * @param target The file to copy to.
+     * @return The identity of the copy.
+     * @throws IOException If the file cannot be copied.
+     */
+    public SourceFile copyTo(File target) throws IOException {
+        Path to = target.toPath().toAbsolutePath();
+        Files.copy(path, to, StandardCopyOption.REPLACE_EXISTING);
+        return new SourceFile(to, size, Files.getLastModifiedTime(to).toMillis(), hash);
+    }
+
+    /**
+     * <p>
+     * Hash the contents of a file.
+     * </p>
+     */
+    private static String hash(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(ex);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,233 @@
+package cosc202.andie;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Runs image operations across several threads.
+ * </p>
+ *
+ * <p>
+ * The TileScheduler splits an image into horizontal bands of rows and computes
+ * them in parallel on a shared {@link ForkJoinPool}.
+ * Bands are made at least {@link #getTileHeight()} rows tall, and taller for
+ * operations with a large halo (see {@link TiledOperation#getHaloRadius()}), so
+ * that the extra rows each band reads around its edges stay a small part of the
+ * work.
+ * </p>
+ *
+ * <p>
+ * The band height and the number of threads can be set with the
+ * {@code andie.tileHeight} and {@code andie.threads} system properties, or
+ * changed while running with {@link #setTileHeight(int)} and
+ * {@link #setThreadCount(int)}.
+ * </p>
+ *
+ * @see TiledOperation
+ * @version 1.0
+ */
+public class TileScheduler {
+
+    /** The default number of rows in a band. */
+    public static final int DEFAULT_TILE_HEIGHT = 64;
+
+    /**
+     * How many times the halo radius a band must be in height. A band of
+     * {@code 4 * halo} rows reads at most 50% more rows than it writes.
+     */
+    private static final int HALO_FACTOR = 4;
+
+    /** The minimum number of rows in a band. */
+    private static int tileHeight = Math.max(1, Integer.getInteger("andie.tileHeight", DEFAULT_TILE_HEIGHT));
+
+    /** The number of threads to run bands on. */
+    private static int threadCount = Math.max(1,
+            Integer.getInteger("andie.threads", Runtime.getRuntime().availableProcessors()));
+
+    /** The pool the bands are run on, created when first needed. */
+    private static ForkJoinPool pool;
+
+    /**
+     * <p>
+     * A piece of work over a range of indices.
+     * </p>
+     */
+    public interface RangeTask {
+
+        /**
+         * Do the work for indices in {@code [start, end)}.
+         *
+         * @param start The first index (inclusive).
+         * @param end   The last index (exclusive).
+         */
+        public void run(int start, int end);
+    }
+
+    /**
+     * The scheduler only has static methods, so should not be constructed.
+     */
+    private TileScheduler() {
+    }
+
+    /**
+     * <p>
+     * Run a tiled operation over a whole image.
+     * </p>
+     *
+     * @param op     The operation to run.
+     * @param input  The image to read from.
+     * @param output The image to write to.
+     */
+    public static void run(TiledOperation op, PixelBuffer input, PixelBuffer output) {
+        int bandHeight = Math.max(tileHeight, HALO_FACTOR * op.getHaloRadius());
+        parallelFor(0, output.getHeight(), bandHeight, new RangeTask() {
+            public void run(int y0, int y1) {
+                op.applyTile(input, output, y0, y1);
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Run a task over a range of indices in parallel.
+     * </p>
+     *
+     * <p>
+     * The range is split into chunks of {@code grain} indices (the last may be
+     * shorter), and each chunk is passed to the task once.
+     * This returns when every chunk is done. If any chunk throws, the exception
+     * is rethrown here.
+     * </p>
+     *
+     * <p>
+     * If an {@link OperationContext} is attached to the calling thread, each
+     * chunk is reported to it as done, and a cancelled context stops the work
+     * before the next chunk starts.
+     * </p>
+     *
+     * @param start The first index (inclusive).
+     * @param end   The last index (exclusive).
+     * @param grain The number of indices in each chunk.
+     * @param task  The work to do for each chunk.
+     */
+    public static void parallelFor(int start, int end, int grain, RangeTask task) {
+        if (end <= start) {
+            return;
+        }
+        grain = Math.max(1, grain);
+        // Counts the work towards the progress of the running operation, and lets
+        // it be cancelled between chunks
+        OperationContext context = OperationContext.current();
+        if (context != null) {
+            context.checkCancelled();
+            task = context.track(task, end - start);
+        }
+        // Not worth handing to the pool if there is only one chunk or one thread
+        if (end - start <= grain || threadCount == 1) {
+            for (int i = start; i < end; i += grain) {
+                task.run(i, Math.min(end, i + grain));
+            }
+            return;
+        }
+        getPool().invoke(new RangeAction(start, end, grain, task));
+    }
+
+    /**
+     * @return The pool bands are run on.
+     */
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threadCount);
+        }
+        return pool;
+    }
+
+    /**
+     * @return The minimum number of rows in a band.
+     */
+    public static int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * <p>
+     * Set the minimum number of rows in a band.
+     * </p>
+     *
+     * @param rows The new band height, at least 1.
+     */
+    public static void setTileHeight(int rows) {
+        tileHeight = Math.max(1, rows);
+    }
+
+    /**
+     * @return The number of threads operations are run on.
+     */
+    public static int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * <p>
+     * Set the number of threads operations are run on.
+     * </p>
+     *
+     * <p>
+     * The current pool is shut down once any work already running on it has
+     * finished, and a new one is made for the next operation.
+     * </p>
+     *
+     * @param threads The new number of threads, at least 1.
+     */
+    public static synchronized void setThreadCount(int threads) {
+        threads = Math.max(1, threads);
+        if (threads == threadCount) {
+            return;
+        }
+        threadCount = threads;
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * <p>
+     * A fork/join task that halves its range until it is a single chunk.
+     * </p>
+     *
+     * <p>
+     * Splits are made on multiples of the grain from the start of the range, so
+     * the chunks are the same however the work is divided up.
+     * </p>
+     */
+    private static class RangeAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+        private final int grain;
+        private final RangeTask task;
+
+        RangeAction(int start, int end, int grain, RangeTask task) {
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            int chunks = (end - start + grain - 1) / grain;
+            if (chunks <= 1) {
+                task.run(start, end);
+                return;
+            }
+            int middle = start + (chunks / 2) * grain;
+            invokeAll(new RangeAction(start, middle, grain, task), new RangeAction(middle, end, grain, task));
+        }
+    }
+
+}
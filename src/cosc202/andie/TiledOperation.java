@@ -0,0 +1,56 @@
+package cosc202.andie;
+
+/**
+ * <p>
+ * Interface for operations that can be computed one band of rows at a time.
+ * </p>
+ *
+ * <p>
+ * Many filters compute each output pixel from a small neighbourhood of input
+ * pixels, so separate horizontal bands of the output can be worked on at the
+ * same time.
+ * Classes implementing TiledOperation are run by the {@link TileScheduler},
+ * which splits the output into bands and hands them to a pool of threads.
+ * </p>
+ *
+ * <p>
+ * Each band reads the whole of the input but writes only its own rows of the
+ * output, so bands never interfere with each other.
+ * An implementation must not write to the input, and must not keep per-pixel
+ * state in fields, as several bands are computed at once.
+ * </p>
+ *
+ * @see TileScheduler
+ * @version 1.0
+ */
+public interface TiledOperation {
+
+    /**
+     * <p>
+     * Get the halo radius of the operation.
+     * </p>
+     *
+     * <p>
+     * The halo is how far beyond the edges of a band the operation reads from
+     * the input. A 3x3 filter has a halo of 1, a 5x5 filter a halo of 2, and
+     * so on. Point operations have a halo of 0.
+     * The scheduler uses this to size bands so that the rows read twice by
+     * neighbouring bands stay a small part of the work.
+     * </p>
+     *
+     * @return The number of pixels read beyond each edge of a band.
+     */
+    public int getHaloRadius();
+
+    /**
+     * <p>
+     * Compute one band of the output.
+     * </p>
+     *
+     * @param input  The image being filtered. Must not be written to.
+     * @param output The image to write the result to.
+     * @param y0     The first row of the band (inclusive).
+     * @param y1     The last row of the band (exclusive).
+     */
+    public void applyTile(PixelBuffer input, PixelBuffer output, int y0, int y1);
+}
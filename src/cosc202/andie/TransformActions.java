@@ -137,8 +137,8 @@ public class TransformActions {
                 return;
             }
 
-            resizedHeight = target.getImage().getCurrentImage().getHeight();
-            resizedWidth = target.getImage().getCurrentImage().getWidth();
+            resizedHeight = target.getImage().getHeight();
+            resizedWidth = target.getImage().getWidth();
             resizedScale = 1.0;
 
             // Pop-up dialog box to ask for the resized height, resized width and resized
@@ -150,11 +150,13 @@ public class TransformActions {
             JSpinner height = new JSpinner(heightSpinner);
             JSpinner width = new JSpinner(widthSpinner);
             JSpinner scale = new JSpinner(scaleSpinner);
+            JComboBox<String> filter = new JComboBox<String>(Resampler.FILTER_NAMES);
 
             Object[] Spinner = {
                     "Height (%):", height,
                     "Width (%):", width,
-                    "Scale (%)", scale
+                    "Scale (%)", scale,
+                    "Filter:", filter
             };
 
             int option = JOptionPane.showOptionDialog(target.getParent(), Spinner, "Resize",
@@ -170,9 +172,7 @@ public class TransformActions {
             }
 
             // Create and apply the filter
-            target.getImage().apply(new ResizeImage(resizedHeight, resizedWidth, resizedScale));
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new ResizeImage(resizedHeight, resizedWidth, resizedScale, filter.getSelectedIndex()));
         }
 
         /**
@@ -261,9 +261,7 @@ public class TransformActions {
             if (!hasImage()) {
                 return;
             }
-            target.getImage().apply(new RotateImage(direction));
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new RotateImage(direction));
         }
 
     }
@@ -315,10 +313,7 @@ public class TransformActions {
                 return;
             }
             // Create and apply the filter
-            target.getImage().apply(new ImageFlip(direction));
-
-            target.repaint();
-            target.getParent().revalidate();
+            applyInBackground(new ImageFlip(direction));
         }
     }
 
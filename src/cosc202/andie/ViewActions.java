@@ -103,7 +103,7 @@ public class ViewActions {
          * 
          * <p>
          * This method is called whenever the ZoomInAction is triggered.
-         * It increases the zoom level by 10%, to a maximum of 200%.
+         * It increases the zoom level by a tenth, up to the panel's largest zoom.
          * </p>
          * 
          * @param e The event triggering this callback.
@@ -114,7 +114,7 @@ public class ViewActions {
                 return;
             }
 
-            target.setZoom(target.getZoom() + 10);
+            target.setZoom(target.getZoom() + Math.max(1, target.getZoom() / 10));
             target.repaint();
             target.getParent().revalidate();
         }
@@ -155,7 +155,7 @@ public class ViewActions {
          * 
          * <p>
          * This method is called whenever the ZoomOutAction is triggered.
-         * It decreases the zoom level by 10%, to a minimum of 50%.
+         * It decreases the zoom level by a tenth, down to the panel's smallest zoom.
          * </p>
          * 
          * @param e The event triggering this callback.
@@ -165,7 +165,7 @@ public class ViewActions {
                 return;
             }
 
-            target.setZoom(target.getZoom() - 10);
+            target.setZoom(target.getZoom() - Math.max(1, target.getZoom() / 10));
             target.repaint();
             target.getParent().revalidate();
         }